@@ -0,0 +1,64 @@
+package neuronsystemsimulation;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long it takes to build a brain, both the headless
+ * SimulationCore and the Swing Brain(int N, int M, String) with one Neuron
+ * panel per cell. The Swing brain only goes up to sizes a window can show.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ConstructionBenchmark {
+
+    @State(Scope.Thread)
+    public static class CoreSize {
+
+        @Param({"4x8", "100x100", "500x500", "1000x1000", "2000x2000"})
+        public String size;
+
+        @Param({"Random", "Structured"})
+        public String setup;
+    }
+
+    @State(Scope.Thread)
+    public static class BrainSize {
+
+        @Param({"4x8", "50x50", "100x100"})
+        public String brainSize;
+
+        @Param({"Random", "Structured"})
+        public String brainSetup;
+    }
+
+    @Benchmark
+    public SimulationCore buildCore(CoreSize s) {
+        return new SimulationCore(GenerationBenchmark.rows(s.size),
+                GenerationBenchmark.cols(s.size), s.setup,
+                new CounterRandom(GenerationBenchmark.SEED));
+    }
+
+    @Benchmark
+    public Brain buildBrain(BrainSize s) {
+        return new Brain(GenerationBenchmark.rows(s.brainSize),
+                GenerationBenchmark.cols(s.brainSize), s.brainSetup,
+                new CounterRandom(GenerationBenchmark.SEED));
+    }
+
+}
@@ -0,0 +1,106 @@
+package neuronsystemsimulation;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long SimulationCore.update() takes per generation. The
+ * cellGenerations counter turns the score into ns per cell-generation; run
+ * with -prof gc to get the bytes allocated per generation
+ * (gc.alloc.rate.norm).
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GenerationBenchmark {
+
+    static final long SEED = 2016;
+    static final int STIMULATION_SPACING = 7;
+
+    @Param({"4x8", "100x100", "500x500", "1000x1000", "2000x2000"})
+    public String size;
+
+    @Param({"Random", "Structured"})
+    public String setup;
+
+    @Param({"false", "true"})
+    public boolean auto;
+
+    private SimulationCore core;
+
+    @Setup(Level.Trial)
+    public void createCore() {
+        core = createCore(size, setup);
+        core.setAuto(auto);
+    }
+
+    @Benchmark
+    public int update(CellGenerations counter) {
+        core.update();
+        counter.cellGenerations += (long) core.getN() * core.getM();
+        return core.getGeneration();
+    }
+
+    /**
+     * Creates a core with a fixed seed and clicks every seventh neuron, so
+     * the manual runs have some activity too.
+     *
+     * @param size - String - "NxM"
+     * @param setup - String - "Random" or "Structured"
+     * @return the new core
+     */
+    static SimulationCore createCore(String size, String setup) {
+        SimulationCore core = new SimulationCore(rows(size), cols(size), setup,
+                new CounterRandom(SEED));
+        for (int i = 0; i < core.getN(); i++) {
+            for (int j = 0; j < core.getM(); j++) {
+                if ((i * core.getM() + j) % STIMULATION_SPACING == 0) {
+                    core.stimulate(i, j, 4);
+                }
+            }
+        }
+        return core;
+    }
+
+    static int rows(String size) {
+        return Integer.parseInt(size.substring(0, size.indexOf('x')));
+    }
+
+    static int cols(String size) {
+        return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+    }
+
+    /**
+     * Counts the neurons updated, so JMH reports the time per neuron update.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class CellGenerations {
+
+        public long cellGenerations;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            cellGenerations = 0;
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+package neuronsystemsimulation;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the row by row update with the blocked update in strips of
+ * blockWidth cols on grids of about 4 million neurons, from square to very
+ * wide. blockWidth 0 is the row by row update.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Thread)
+public class TraversalBenchmark {
+
+    @Param({"2000x2000", "1000x4000", "250x16000"})
+    public String size;
+
+    @Param({"0", "128", "256", "1024"})
+    public int blockWidth;
+
+    @Param({"false", "true"})
+    public boolean auto;
+
+    private SimulationCore core;
+
+    @Setup(Level.Trial)
+    public void createCore() {
+        core = GenerationBenchmark.createCore(size, "Random");
+        core.setAuto(auto);
+        core.setBlockWidth(blockWidth);
+    }
+
+    @Benchmark
+    public int update(GenerationBenchmark.CellGenerations counter) {
+        core.update();
+        counter.cellGenerations += (long) core.getN() * core.getM();
+        return core.getGeneration();
+    }
+
+}
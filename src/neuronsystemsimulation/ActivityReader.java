@@ -0,0 +1,356 @@
+package neuronsystemsimulation;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The ActivityReader reads a file written by an ActivityRecorder one
+ * generation at a time, and rebuilds the states and resistances of the grid
+ * along the way. Usage as a program:
+ * <pre>
+ * java -cp NeuronSystemSimulation.jar neuronsystemsimulation.ActivityReader
+ *         file [summary|raster|plasticity]
+ * </pre>
+ * summary prints how many neurons fired and how many synapses did LTP and LTD
+ * per generation, raster prints every firing neuron and plasticity every LTP
+ * and LTD, one per line.
+ *
+ * After a generation the recorder dropped, or one it wrote without its
+ * states, the events go on, but the states and resistances are only rebuilt
+ * again from the next keyframe; hasStates() tells whether they can be used.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class ActivityReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final DataInputStream in;
+    private final int N;
+    private final int M;
+    private final long seed;
+    private final String setup;
+    private final short version;
+
+    private final double[] state;
+    private final byte[] resistance;
+    private int[] fired = new int[16];
+    private int[] potentiated = new int[16];
+    private int[] depressed = new int[16];
+    private int[] changed = new int[16];
+    private int count; //length of the last list read
+    private int firedCount;
+    private int potentiatedCount;
+    private int depressedCount;
+    private int generation = -1;
+    private int expected = -1; //generation of the next record, -1 for any
+    private boolean keyframe;
+    private boolean gap; //generations were dropped just before this one
+    private boolean states; //the states and resistances are rebuilt
+    private long dropped = -1;
+
+    /**
+     * Opens a recording and reads its header.
+     *
+     * @param file - Path - the file written by an ActivityRecorder
+     * @throws IOException if the file is not a recording
+     */
+    public ActivityReader(Path file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                Files.newInputStream(file), BUFFER_SIZE), BUFFER_SIZE));
+        if (in.readInt() != ActivityRecorder.MAGIC) {
+            in.close();
+            throw new IOException("Not an activity recording");
+        }
+        version = in.readShort();
+        //version 1 wrote a keyframe after every dropped generation
+        if (version != 1 && version != ActivityRecorder.VERSION) {
+            in.close();
+            throw new IOException("Unsupported recording version " + version);
+        }
+        N = in.readInt();
+        M = in.readInt();
+        seed = in.readLong();
+        setup = in.readUTF();
+        state = new double[N * M];
+        resistance = new byte[2 * N * M];
+    }
+
+    /**
+     * Reads the next record. After a keyframe the states and resistances are
+     * those at the start of getGeneration() and there are no events; after a
+     * generation they are those at the start of the following one.
+     *
+     * @return false once the end of the recording is reached
+     * @throws IOException if the file is damaged
+     */
+    public boolean next() throws IOException {
+        if (dropped >= 0) {
+            return false;
+        }
+        byte type = in.readByte();
+        switch (type) {
+            case ActivityRecorder.END:
+                dropped = in.readLong();
+                return false;
+            case ActivityRecorder.KEYFRAME:
+                keyframe = true;
+                generation = ActivityRecorder.readVarint(in);
+                gap = expected >= 0 && generation != expected;
+                expected = generation;
+                states = true;
+                for (int c = 0; c < N * M; c++) {
+                    state[c] = in.readDouble();
+                }
+                in.readFully(resistance);
+                firedCount = 0;
+                potentiatedCount = 0;
+                depressedCount = 0;
+                return true;
+            case ActivityRecorder.GENERATION:
+            case ActivityRecorder.EVENTS:
+                keyframe = false;
+                generation = ActivityRecorder.readVarint(in);
+                gap = expected >= 0 && generation != expected;
+                expected = generation + 1;
+                states &= !gap && type == ActivityRecorder.GENERATION;
+                fired = readIndices(fired, N * M);
+                firedCount = count;
+                potentiated = readIndices(potentiated, 2 * N * M);
+                potentiatedCount = count;
+                depressed = readIndices(depressed, 2 * N * M);
+                depressedCount = count;
+                for (int k = 0; k < potentiatedCount; k++) {
+                    int e = potentiated[k];
+                    if (resistance[e] > 0) {
+                        resistance[e]--;
+                    }
+                }
+                for (int k = 0; k < depressedCount; k++) {
+                    int e = depressed[k];
+                    if (resistance[e] < SimulationCore.MAX_RESISTANCE) {
+                        resistance[e]++;
+                    }
+                }
+                if (type == ActivityRecorder.EVENTS) {
+                    return true;
+                }
+                changed = readIndices(changed, N * M);
+                for (int k = 0; k < count; k++) {
+                    int c = changed[k];
+                    state[c] = Double.longBitsToDouble(in.readLong()
+                            ^ Double.doubleToRawLongBits(state[c]));
+                }
+                return true;
+            default:
+                throw new IOException("Unknown record " + type);
+        }
+    }
+
+    /**
+     * Reads a list of indices into an array, growing it if needed, and
+     * leaves its length in count.
+     *
+     * @param size - int - number of neurons or edges the indices are of
+     */
+    private int[] readIndices(int[] indices, int size) throws IOException {
+        count = ActivityRecorder.readVarint(in);
+        boolean bitmap = false;
+        if (version > 1) {
+            bitmap = (count & 1) != 0;
+            count >>>= 1;
+        }
+        if (count > indices.length) {
+            indices = new int[Math.max(count, 2 * indices.length)];
+        }
+        if (bitmap) {
+            int k = 0;
+            for (int w = 0; w < (size + 63) / 64; w++) {
+                for (long b = in.readLong(); b != 0; b &= b - 1) {
+                    if (k == count) {
+                        throw new IOException("Bitmap has too many indices");
+                    }
+                    indices[k++] = 64 * w + Long.numberOfTrailingZeros(b);
+                }
+            }
+            if (k != count) {
+                throw new IOException("Bitmap has too few indices");
+            }
+            return indices;
+        }
+        int last = 0;
+        for (int k = 0; k < count; k++) {
+            last += ActivityRecorder.readVarint(in);
+            indices[k] = last;
+        }
+        return indices;
+    }
+
+    public int getN() {
+        return N;
+    }
+
+    public int getM() {
+        return M;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public String getSetup() {
+        return setup;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    public boolean isKeyframe() {
+        return keyframe;
+    }
+
+    /**
+     * Checks whether the recorder dropped generations just before the
+     * current one.
+     */
+    public boolean followsGap() {
+        return gap;
+    }
+
+    /**
+     * Checks whether the states and resistances are those of the recording:
+     * they are from the first keyframe on, until a generation is dropped.
+     */
+    public boolean hasStates() {
+        return states;
+    }
+
+    /**
+     * Gets the neurons that fired in the current generation.
+     *
+     * @return the neuron indices (i * M + j), in increasing order
+     */
+    public int[] getFired() {
+        return Arrays.copyOf(fired, firedCount);
+    }
+
+    /**
+     * Gets the synapses that did LTP in the current generation.
+     *
+     * @return the edge indices, in increasing order
+     */
+    public int[] getPotentiated() {
+        return Arrays.copyOf(potentiated, potentiatedCount);
+    }
+
+    /**
+     * Gets the synapses that did LTD in the current generation.
+     *
+     * @return the edge indices, in increasing order
+     */
+    public int[] getDepressed() {
+        return Arrays.copyOf(depressed, depressedCount);
+    }
+
+    public double getState(int i, int j) {
+        return state[i * M + j];
+    }
+
+    public int getResistance(int i, int j, int side) {
+        int e = SimulationCore.edgeIndex(N, M, i, j, side);
+        return e < 0 ? 0 : resistance[e];
+    }
+
+    /**
+     * Gets the states as they are rebuilt, without copying them.
+     */
+    double[] getStates() {
+        return state;
+    }
+
+    /**
+     * Gets the resistances as they are rebuilt, without copying them.
+     */
+    byte[] getResistances() {
+        return resistance;
+    }
+
+    /**
+     * Gets the number of generations the recorder had to drop.
+     *
+     * @return the dropped generations, -1 before the end is reached
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ActivityReader file"
+                    + " [summary|raster|plasticity]");
+            return;
+        }
+        String mode = args.length > 1 ? args[1] : "summary";
+        PrintStream out = System.out;
+        try (ActivityReader reader = new ActivityReader(Paths.get(args[0]))) {
+            int M = reader.getM();
+            out.println("# " + reader.getN() + "x" + M + " "
+                    + reader.getSetup() + ", seed " + reader.getSeed());
+            while (reader.next()) {
+                int g = reader.getGeneration();
+                if (reader.followsGap()) {
+                    out.println("# generations dropped before " + g);
+                }
+                if (reader.isKeyframe()) {
+                    out.println("# keyframe at generation " + g);
+                    continue;
+                }
+                switch (mode) {
+                    case "raster":
+                        for (int c : reader.getFired()) {
+                            out.println(g + "," + c / M + "," + c % M);
+                        }
+                        break;
+                    case "plasticity":
+                        printEdges(out, g, M, reader.getPotentiated(), "LTP");
+                        printEdges(out, g, M, reader.getDepressed(), "LTD");
+                        break;
+                    default:
+                        out.println(g + " fired " + reader.firedCount
+                                + " LTP " + reader.potentiatedCount
+                                + " LTD " + reader.depressedCount);
+                }
+            }
+            out.println("# dropped generations: " + reader.getDropped());
+        }
+    }
+
+    /**
+     * Prints one line per synapse: generation, row, col and side of the west
+     * or north neuron, and the event.
+     */
+    private static void printEdges(PrintStream out, int g, int M,
+            int[] edges, String event) {
+        for (int e : edges) {
+            int c = e / 2;
+            out.println(g + "," + c / M + "," + c % M + ","
+                    + (e % 2 == 0 ? "EAST" : "SOUTH") + "," + event);
+        }
+    }
+
+}
@@ -0,0 +1,622 @@
+package neuronsystemsimulation;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The ActivityRecorder streams what happens in a SimulationCore to a gzipped
+ * file: for every generation the neurons that fired, the synapses that did
+ * LTP() or LTD(), and the neuron states that changed.
+ *
+ * The engines list those events in a StepEvents while they update, next to
+ * where they count them, and at the end of every update the recorder copies
+ * the lists and the new states of the changed neurons into a frame from a
+ * small pool. A writer thread sorts them, turns the states into deltas and
+ * compresses them. So a generation costs the recorder as much as its events,
+ * apart from the dense updates comparing the two state buffers once, and the
+ * sparse update is not made to catch up on every synapse.
+ *
+ * Every keyframeEvery generations the whole grid is written as a keyframe,
+ * which needs the sparse update to catch up once. The changed states of a
+ * busy grid are most of what there is to write and hardly compress, so while
+ * more than half of the frames wait for the writer only the events of a
+ * generation are handed over. If no frame is free at all, a generation in
+ * which nothing happened goes with the next frame, and any other generation
+ * is dropped, which shows as a gap in the generation numbers. Either way the
+ * states and resistances can only be rebuilt again from the next keyframe. A
+ * recorder can be made to block instead, which suits runs nobody is waiting
+ * for.
+ *
+ * With the sparse update, a synapse whose neuron was skipped does the LTD it
+ * missed when it is caught up, and is listed in that generation, as the
+ * StepCounts counts it.
+ *
+ * File layout, after the gzip header:
+ * <pre>
+ * int    magic "NSSA"
+ * short  version
+ * int    N, M
+ * long   seed of the RandomSource
+ * UTF    setup
+ * then records, each starting with a byte:
+ * KEYFRAME    generation, N * M states, 2 * N * M resistances at its start
+ * GENERATION  generation, fired neurons, LTP synapses, LTD synapses, changed
+ *             states at the start of the next generation
+ * EVENTS      generation, fired neurons, LTP synapses, LTD synapses
+ * END         number of dropped generations
+ * </pre>
+ * Generations are varints. A list of neuron or edge indices starts with a
+ * varint of twice its length, plus 1 if a bitmap of the listed indices
+ * follows, as longs; else the gaps between the sorted indices follow, as
+ * varints. A synapse that did LTD more than once is listed that many times. A
+ * changed state is stored as the xor of its bits with the bits of the
+ * previous state, which is mostly zero bytes and compresses well.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class ActivityRecorder {
+
+    static final int MAGIC = 0x4e535341; // "NSSA"
+    static final short VERSION = 2;
+    static final byte END = 0;
+    static final byte KEYFRAME = 1;
+    static final byte GENERATION = 2;
+    static final byte EVENTS = 3;
+
+    public static final int DEFAULT_FRAMES = 8;
+    public static final int DEFAULT_KEYFRAME_EVERY = 256;
+    private static final int KEYFRAMES = 2; //grids that may wait
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final Frame LAST = new Frame(0); //tells the writer to finish
+
+    private final SimulationCore core;
+    private final int N;
+    private final int M;
+    private final int frames;
+    private final int keyframeEvery;
+    private final boolean block;
+    private final DataOutputStream out;
+    private final ArrayBlockingQueue<Frame> free;
+    private final ArrayBlockingQueue<Frame> full;
+    private final ArrayBlockingQueue<Keyframe> freeKeyframes;
+    private final Thread writer;
+    private volatile IOException failure;
+    private long dropped = 0;
+    private int nextKeyframe; //generation the next keyframe starts
+    private boolean statesLost; //since the last keyframe
+    private int quietFrom; //first of the quiet generations without a frame
+    private int quiet;
+    private boolean quietStates;
+    private boolean closed = false;
+
+    //used by the writer thread only
+    private final double[] state; //as the reader will rebuild it
+    private final long[] delta; //xor of the new and old bits of a state
+    private int[] changed;
+    private ByteBuffer record = ByteBuffer.allocate(BUFFER_SIZE);
+    private final long[] bitmap; //of one list of edge or neuron indices
+
+    /**
+     * Creates a recorder with the default number of frames and keyframe
+     * interval that drops generations if the writer falls behind. Attach it
+     * with SimulationCore.setRecorder().
+     *
+     * @param core - SimulationCore - the simulation to record
+     * @param file - Path - the file to write
+     * @throws IOException if the file cannot be created
+     */
+    public ActivityRecorder(SimulationCore core, Path file)
+            throws IOException {
+        this(core, file, DEFAULT_FRAMES, DEFAULT_KEYFRAME_EVERY, false);
+    }
+
+    /**
+     * Creates a recorder. Attach it with SimulationCore.setRecorder().
+     *
+     * @param core - SimulationCore - the simulation to record
+     * @param file - Path - the file to write
+     * @param frames - int - generations that may wait for the writer
+     * @param keyframeEvery - int - generations from one keyframe to the next
+     * @param block - boolean - whether the simulation waits for the writer
+     * instead of dropping generations
+     * @throws IOException if the file cannot be created
+     */
+    public ActivityRecorder(SimulationCore core, Path file, int frames,
+            int keyframeEvery, boolean block) throws IOException {
+        if (frames < 1 || keyframeEvery < 1) {
+            throw new IllegalArgumentException("frames and keyframeEvery"
+                    + " must be at least 1");
+        }
+        this.core = core;
+        N = core.getN();
+        M = core.getM();
+        this.frames = frames;
+        this.keyframeEvery = keyframeEvery;
+        this.block = block;
+        state = new double[N * M];
+        delta = new long[N * M];
+        bitmap = new long[(2 * N * M + 63) / 64];
+        changed = new int[Math.max(16, N * M / 16)];
+
+        free = new ArrayBlockingQueue<>(frames);
+        full = new ArrayBlockingQueue<>(frames + 1);
+        for (int f = 0; f < frames; f++) {
+            free.add(new Frame(1024));
+        }
+        freeKeyframes = new ArrayBlockingQueue<>(KEYFRAMES);
+        for (int k = 0; k < KEYFRAMES; k++) {
+            freeKeyframes.add(new Keyframe(N * M));
+        }
+
+        //the states of a busy grid hardly compress, so spend little on them
+        out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(file),
+                        BUFFER_SIZE) {
+                    {
+                        def.setLevel(Deflater.BEST_SPEED);
+                    }
+                }, BUFFER_SIZE));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(N);
+        out.writeInt(M);
+        out.writeLong(core.getRandom().getSeed());
+        out.writeUTF(String.valueOf(core.getSetup()));
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "activity-recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Writes a keyframe of the grid as it is. Called by
+     * SimulationCore.setRecorder() while it holds the lock of the core.
+     */
+    void attached() {
+        nextKeyframe = core.getGeneration() + 1;
+        Frame frame = nextFrame();
+        if (frame == null) {
+            dropped++;
+            return;
+        }
+        frame.generation = core.getGeneration();
+        frame.events = false;
+        frame.quiet = 0;
+        frame.keyframe = takeKeyframe();
+        //the keyframe already has the LTD the sparse update caught up on
+        core.counts.events.clear();
+        full.add(frame);
+    }
+
+    /**
+     * Hands the events and changed states of the generation that was just
+     * computed to the writer, and a keyframe if one is due. Called by
+     * SimulationCore.update() while it holds the lock of the core. Unless the
+     * recorder blocks, the states are left out while more than half of the
+     * frames wait for the writer, and if no frame is free the generation is
+     * dropped, or kept for the next frame if nothing happened in it.
+     */
+    void generationDone() {
+        StepEvents events = core.counts.events;
+        int generation = core.getGeneration();
+        Frame frame = nextFrame();
+        if (frame == null) {
+            if (events.firedCount + events.potentiatedCount
+                    + events.depressedCount + events.changedCount > 0) {
+                dropped++;
+                statesLost = true;
+                return;
+            }
+            //nothing happened, which the next frame can tell
+            if (quiet > 0 && quietFrom + quiet != generation) {
+                dropped += quiet;
+                quiet = 0;
+            }
+            if (quiet == 0) {
+                quietFrom = generation;
+                quietStates = !statesLost;
+            }
+            quiet++;
+            return;
+        }
+        frame.quietFrom = quietFrom;
+        frame.quiet = quiet;
+        frame.quietStates = quietStates;
+        quiet = 0;
+        Keyframe keyframe = null;
+        if (generation + 1 >= nextKeyframe) {
+            keyframe = freeKeyframes.poll(); //else the next generation
+            if (keyframe != null) {
+                //its LTD goes into the events of this generation
+                core.settle();
+            }
+        }
+        frame.generation = generation;
+        frame.events = true;
+        frame.fired = copy(events.fired, events.firedCount, frame.fired);
+        frame.firedCount = events.firedCount;
+        frame.potentiated = copy(events.potentiated, events.potentiatedCount,
+                frame.potentiated);
+        frame.potentiatedCount = events.potentiatedCount;
+        frame.depressed = copy(events.depressed, events.depressedCount,
+                frame.depressed);
+        frame.depressedCount = events.depressedCount;
+        //the states are most of the work of the writer: once it is behind,
+        //keep the events going and leave the states to the next keyframe,
+        //since the ones in between cannot be rebuilt without them
+        int waiting = frames - 1 - free.size();
+        frame.states = block || (!statesLost && 2 * waiting <= frames);
+        statesLost = !frame.states && keyframe == null;
+        frame.changedCount = frame.states ? events.changedCount : 0;
+        frame.changed = copy(events.changed, frame.changedCount,
+                frame.changed);
+        if (frame.values.length < frame.changed.length) {
+            frame.values = new double[frame.changed.length];
+        }
+        double[] coreState = core.state;
+        for (int k = 0; k < frame.changedCount; k++) {
+            frame.values[k] = coreState[frame.changed[k]];
+        }
+        if (keyframe != null) {
+            copyGrid(keyframe);
+        }
+        frame.keyframe = keyframe;
+        full.add(frame);
+    }
+
+    /**
+     * Checks whether the changed states of the current generation may be
+     * written, so the core need not look for them if not.
+     */
+    boolean isRecordingStates() {
+        return !statesLost;
+    }
+
+    private Frame nextFrame() {
+        if (!block) {
+            Frame frame = free.poll();
+            if (frame == null) {
+                //on a single CPU a small grid can run many generations before
+                //the writer gets its turn, so let it have one
+                Thread.yield();
+                frame = free.poll();
+            }
+            return frame;
+        }
+        try {
+            return free.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Takes a keyframe and copies the grid into it, waiting for the writer
+     * if needed.
+     */
+    private Keyframe takeKeyframe() {
+        try {
+            Keyframe keyframe = freeKeyframes.take();
+            core.settle();
+            copyGrid(keyframe);
+            return keyframe;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void copyGrid(Keyframe keyframe) {
+        System.arraycopy(core.state, 0, keyframe.state, 0, N * M);
+        System.arraycopy(core.resistance, 0, keyframe.resistance, 0,
+                2 * N * M);
+        nextKeyframe = core.getGeneration() + 1 + keyframeEvery;
+    }
+
+    private static int[] copy(int[] from, int count, int[] to) {
+        if (to.length < count) {
+            to = new int[Math.max(count, 2 * to.length)];
+        }
+        System.arraycopy(from, 0, to, 0, count);
+        return to;
+    }
+
+    /**
+     * Detaches the recorder from the core and waits until everything is on
+     * disk.
+     *
+     * @throws IOException if writing failed
+     */
+    public void close() throws IOException {
+        synchronized (core) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            dropped += quiet;
+            quiet = 0;
+            if (core.getRecorder() == this) {
+                core.setRecorder(null);
+            }
+        }
+        full.add(LAST);
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Gets the number of generations that were dropped because the writer
+     * was behind.
+     *
+     * @return the dropped generations so far
+     */
+    public long getDropped() {
+        synchronized (core) {
+            return dropped;
+        }
+    }
+
+    /**
+     * Runs on the writer thread until close() sends the LAST frame.
+     */
+    private void write() {
+        try {
+            while (true) {
+                Frame frame = full.take();
+                if (frame == LAST) {
+                    break;
+                }
+                for (int q = 0; q < frame.quiet; q++) {
+                    writeQuiet(frame.quietFrom + q, frame.quietStates);
+                }
+                if (frame.events) {
+                    writeGeneration(frame);
+                }
+                if (frame.keyframe != null) {
+                    writeKeyframe(frame.generation + 1, frame.keyframe);
+                    freeKeyframes.add(frame.keyframe);
+                    frame.keyframe = null;
+                }
+                free.add(frame);
+            }
+            out.writeByte(END);
+            out.writeLong(getDropped());
+        } catch (IOException ex) {
+            failure = ex;
+        } catch (InterruptedException ex) {
+            failure = new IOException("Recorder interrupted", ex);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+        }
+    }
+
+    private void writeKeyframe(int generation, Keyframe keyframe)
+            throws IOException {
+        clear(6 + 10 * N * M);
+        record.put(KEYFRAME);
+        putVarint(record, generation);
+        for (int c = 0; c < N * M; c++) {
+            record.putDouble(keyframe.state[c]);
+        }
+        record.put(keyframe.resistance);
+        out.write(record.array(), 0, record.position());
+        System.arraycopy(keyframe.state, 0, state, 0, N * M);
+    }
+
+    /**
+     * Writes a generation in which nothing happened.
+     */
+    private void writeQuiet(int generation, boolean states)
+            throws IOException {
+        clear(6 + 4);
+        record.put(states ? GENERATION : EVENTS);
+        putVarint(record, generation);
+        for (int list = states ? 4 : 3; list > 0; list--) {
+            putVarint(record, 0);
+        }
+        out.write(record.array(), 0, record.position());
+    }
+
+    /**
+     * Writes the events of a generation and the states it changed.
+     */
+    private void writeGeneration(Frame frame) throws IOException {
+        clear(6 + 5 * (4 + frame.firedCount + frame.potentiatedCount
+                + frame.depressedCount) + 13 * frame.changedCount);
+        record.put(frame.states ? GENERATION : EVENTS);
+        putVarint(record, frame.generation);
+        putIndices(frame.fired, frame.firedCount, N * M);
+        putIndices(frame.potentiated, frame.potentiatedCount, 2 * N * M);
+        putIndices(frame.depressed, frame.depressedCount, 2 * N * M);
+        if (!frame.states) {
+            out.write(record.array(), 0, record.position());
+            return;
+        }
+
+        //a neuron listed twice has the same new state both times, so the
+        //second time it no longer differs
+        int count = 0;
+        for (int k = 0; k < frame.changedCount; k++) {
+            int c = frame.changed[k];
+            long bits = Double.doubleToRawLongBits(frame.values[k]);
+            long old = Double.doubleToRawLongBits(state[c]);
+            if (bits != old) {
+                delta[c] = bits ^ old;
+                state[c] = frame.values[k];
+                changed = StepEvents.add(changed, count++, c);
+            }
+        }
+        if (putIndices(changed, count, N * M)) {
+            for (int w = 0; w < (N * M + 63) / 64; w++) {
+                for (long b = bitmap[w]; b != 0; b &= b - 1) {
+                    record.putLong(delta[64 * w
+                            + Long.numberOfTrailingZeros(b)]);
+                }
+            }
+        } else {
+            for (int k = 0; k < count; k++) {
+                record.putLong(delta[changed[k]]);
+            }
+        }
+        out.write(record.array(), 0, record.position());
+    }
+
+    /**
+     * Empties the record buffer, growing it to hold at least some bytes. A
+     * record is put together there and written in one go, instead of a byte
+     * at a time through the streams.
+     */
+    private void clear(int bytes) {
+        if (record.capacity() < bytes) {
+            record = ByteBuffer.allocate(Math.max(bytes,
+                    2 * record.capacity()));
+        }
+        record.clear();
+    }
+
+    /**
+     * Puts a list of neuron or edge indices into the record: a varint of
+     * twice the count, plus 1 if a bitmap of all the indices follows, in
+     * longs; else the gaps between the sorted indices follow, as varints.
+     * The bitmap is used where it is shorter, e.g. for the neurons that fire
+     * in a busy grid, if no index is listed twice.
+     *
+     * @param indices - int[] - the list, sorted unless a bitmap is used
+     * @param count - int - length of the list
+     * @param size - int - number of neurons or edges
+     * @return whether the indices were put as a bitmap, which is left in
+     * bitmap
+     */
+    private boolean putIndices(int[] indices, int count, int size) {
+        int words = (size + 63) / 64;
+        if (8 * words < count && fillBitmap(indices, count, words)) {
+            putVarint(record, 2 * count + 1);
+            for (int w = 0; w < words; w++) {
+                record.putLong(bitmap[w]);
+            }
+            return true;
+        }
+        Arrays.sort(indices, 0, count);
+        putVarint(record, 2 * count);
+        int last = 0;
+        for (int k = 0; k < count; k++) {
+            putVarint(record, indices[k] - last);
+            last = indices[k];
+        }
+        return false;
+    }
+
+    /**
+     * Sets the bits of the indices in bitmap.
+     *
+     * @return false if an index is listed twice
+     */
+    private boolean fillBitmap(int[] indices, int count, int words) {
+        Arrays.fill(bitmap, 0, words, 0);
+        for (int k = 0; k < count; k++) {
+            int index = indices[k];
+            long bit = 1L << index; //shifts by index % 64
+            if ((bitmap[index >>> 6] & bit) != 0) {
+                return false;
+            }
+            bitmap[index >>> 6] |= bit;
+        }
+        return true;
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int readVarint(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * The events and changed states of one generation, and maybe a keyframe
+     * after it.
+     */
+    private static class Frame {
+
+        int generation;
+        boolean events; //false for the keyframe when the recorder is attached
+        boolean states; //whether the changed states are in it
+        int quietFrom; //generations before it in which nothing happened
+        int quiet;
+        boolean quietStates;
+        int[] fired;
+        int firedCount;
+        int[] potentiated;
+        int potentiatedCount;
+        int[] depressed;
+        int depressedCount;
+        int[] changed;
+        int changedCount;
+        double[] values; //new states of the changed neurons
+        Keyframe keyframe;
+
+        Frame(int capacity) {
+            capacity = Math.max(16, capacity);
+            fired = new int[capacity];
+            potentiated = new int[capacity];
+            depressed = new int[capacity];
+            changed = new int[capacity];
+            values = new double[capacity];
+        }
+    }
+
+    /**
+     * A copy of the grid at the end of a generation.
+     */
+    private static class Keyframe {
+
+        final double[] state;
+        final byte[] resistance;
+
+        Keyframe(int cells) {
+            state = new double[cells];
+            resistance = new byte[2 * cells];
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+package neuronsystemsimulation;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Checks that the running path does not allocate. Each mode builds a core,
+ * runs it until it is warmed up, and then measures with the ThreadMXBean how
+ * many bytes the simulation threads allocate per generation. The program
+ * exits with status 1 if any mode is over the budget. The default budget of
+ * 1 byte per generation leaves room for the rare bookkeeping of the
+ * ForkJoinPool but fails as soon as a generation allocates anything. Only the
+ * calling thread and, in the parallel mode, the workers of its pool that are
+ * alive for the whole measurement are counted. Usage:
+ * <pre>
+ * java -cp NeuronSystemSimulation.jar neuronsystemsimulation.AllocationBudget
+ *         [rows] [cols] [warmup generations] [measured generations]
+ *         [budget in bytes per generation]
+ * </pre>
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class AllocationBudget {
+
+    private static final String[] MODES = {"sequential", "parallel", "sparse",
+        "stats", "recorder", "metrics"};
+
+    private final com.sun.management.ThreadMXBean threads;
+    private final int N;
+    private final int M;
+    private final int warmup;
+    private final int generations;
+
+    private AllocationBudget(int N, int M, int warmup, int generations) {
+        threads = (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+        this.N = N;
+        this.M = M;
+        this.warmup = warmup;
+        this.generations = generations;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int N = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int M = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int warmup = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int generations = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        double budget = args.length > 4 ? Double.parseDouble(args[4]) : 1;
+
+        AllocationBudget check = new AllocationBudget(N, M, warmup,
+                generations);
+        //step() refers to these. Compiled code that meets a class that is not
+        //loaded yet goes back to the interpreter, which loads it on the
+        //measured thread, so load them before any measurement
+        new GenerationStats();
+        new BrainSnapshot(1, 1);
+        boolean failed = false;
+        System.out.println("Bytes allocated per generation, " + N + "x" + M
+                + ", budget " + budget);
+        for (String mode : MODES) {
+            double perGeneration = check.measure(mode);
+            boolean over = perGeneration > budget;
+            failed |= over;
+            System.out.printf("%-12s %10.2f %s%n", mode, perGeneration,
+                    over ? "OVER BUDGET" : "ok");
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs one mode and gets the bytes it allocated per measured generation.
+     */
+    private double measure(String mode) throws IOException {
+        SimulationCore core = new SimulationCore(N, M, "Random",
+                new CounterRandom(2016));
+        core.setAuto(true);
+        GenerationStats stats = null;
+        BrainSnapshot snapshot = null;
+        ActivityRecorder recorder = null;
+        Path file = null;
+        switch (mode) {
+            case "parallel":
+                core.setThreads(Math.max(2,
+                        Runtime.getRuntime().availableProcessors()));
+                break;
+            case "sparse":
+                core.setSparse(true);
+                break;
+            case "stats":
+                stats = new GenerationStats();
+                snapshot = new BrainSnapshot(core.getN(), core.getM());
+                break;
+            case "recorder":
+                file = Files.createTempFile("allocation", ".nssa");
+                recorder = new ActivityRecorder(core, file);
+                core.setRecorder(recorder);
+                break;
+            case "metrics":
+                new SimulationMetrics(core);
+                break;
+            default:
+                break;
+        }
+        try {
+            for (int g = 0; g < warmup; g++) {
+                step(core, stats, snapshot);
+            }
+            //the pool threads of the parallel update count too, the writer
+            //thread of the recorder does not
+            long[] ids = measuredThreads(mode.equals("parallel"));
+            //reading the counters allocates their result, measure that once
+            long[] empty = threads.getThreadAllocatedBytes(ids);
+            long[] before = threads.getThreadAllocatedBytes(ids);
+            long overhead = 0;
+            for (int t = 0; t < ids.length; t++) {
+                if (empty[t] >= 0 && before[t] >= 0) {
+                    overhead += before[t] - empty[t];
+                }
+            }
+            before = threads.getThreadAllocatedBytes(ids);
+            for (int g = 0; g < generations; g++) {
+                step(core, stats, snapshot);
+            }
+            long[] after = threads.getThreadAllocatedBytes(ids);
+            long bytes = 0;
+            for (int t = 0; t < ids.length; t++) {
+                if (before[t] >= 0 && after[t] >= 0) {
+                    bytes += after[t] - before[t];
+                }
+            }
+            return (double) Math.max(0, bytes - overhead) / generations;
+        } finally {
+            core.setThreads(1);
+            if (recorder != null) {
+                recorder.close();
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Gets the threads to measure: the calling thread and, for the parallel
+     * update, the workers of its pool. The ParallelStep starts all of them
+     * when it is created. A thread that ends before the measurement does has
+     * no count and is left out.
+     *
+     * @param workers - boolean - whether to add the pool workers
+     * @return the thread ids
+     */
+    private static long[] measuredThreads(boolean workers) {
+        List<Long> list = new ArrayList<>();
+        list.add(Thread.currentThread().getId());
+        if (workers) {
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread instanceof ForkJoinWorkerThread) {
+                    ForkJoinPool pool = ((ForkJoinWorkerThread) thread)
+                            .getPool();
+                    if (pool != ForkJoinPool.commonPool()
+                            && !pool.isShutdown()) {
+                        list.add(thread.getId());
+                    }
+                }
+            }
+        }
+        long[] ids = new long[list.size()];
+        for (int t = 0; t < ids.length; t++) {
+            ids[t] = list.get(t);
+        }
+        return ids;
+    }
+
+    private static void step(SimulationCore core, GenerationStats stats,
+            BrainSnapshot snapshot) {
+        core.update();
+        if (stats != null) {
+            stats.capture(core);
+            core.snapshot(snapshot);
+        }
+    }
+
+}
@@ -0,0 +1,335 @@
+package neuronsystemsimulation;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a parameter sweep of headless brains in parallel. Every combination of
+ * the parameters is run once per seed on its own SimulationCore; the runs are
+ * spread over a bounded ForkJoinPool, so only as many brains as there are
+ * threads are in memory at once. Usage:
+ * <pre>
+ * java -cp NeuronSystemSimulation.jar neuronsystemsimulation.BatchRunner
+ *         sizes=100x100,200x200 setups=Random,Structured
+ *         stimulation=0.1,0.2 maxStimulation=3,5 maxRounds=10,20
+ *         seeds=1-100 generations=1000 threads=8 out=sweep
+ * </pre>
+ * stimulation is the chance a neuron is auto stimulated in a generation, 0
+ * for none. Every run is written to (out)-runs.csv and the mean and standard
+ * deviation over the seeds of every combination to (out)-summary.csv. A run
+ * that fails does not stop the others: it is written with its error and
+ * left out of the summary, and the program exits with status 1 after both
+ * files are written.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class BatchRunner {
+
+    private static final String[] METRICS = {"active", "aboveThreshold",
+        "meanState", "maxState", "resistance0", "resistance1", "resistance2",
+        "resistance3", "runMillis"};
+
+    private final List<Run> runs = new ArrayList<>();
+    private final int generations;
+    private final AtomicInteger finished = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private BatchRunner(int generations) {
+        this.generations = generations;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String sizes = "100x100";
+        String setups = "Random";
+        String stimulation = "0.2";
+        String maxStimulation = "" + SimulationCore.MAX_RANDOM_STIMULATION;
+        String maxRounds = "" + SimulationCore.MAX_ROUNDS_SINCE_LTP;
+        String seeds = "1-10";
+        int generations = 1000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String out = "batch";
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value: "
+                        + arg);
+            }
+            String value = arg.substring(eq + 1);
+            switch (arg.substring(0, eq)) {
+                case "sizes":
+                    sizes = value;
+                    break;
+                case "setups":
+                    setups = value;
+                    break;
+                case "stimulation":
+                    stimulation = value;
+                    break;
+                case "maxStimulation":
+                    maxStimulation = value;
+                    break;
+                case "maxRounds":
+                    maxRounds = value;
+                    break;
+                case "seeds":
+                    seeds = value;
+                    break;
+                case "generations":
+                    generations = Integer.parseInt(value);
+                    break;
+                case "threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "out":
+                    out = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown key " + arg);
+            }
+        }
+
+        BatchRunner batch = new BatchRunner(generations);
+        long[] seedList = parseSeeds(seeds);
+        for (String size : sizes.split(",")) {
+            String[] nm = size.split("x");
+            for (String setup : setups.split(",")) {
+                for (String p : stimulation.split(",")) {
+                    for (String max : maxStimulation.split(",")) {
+                        for (String rounds : maxRounds.split(",")) {
+                            for (long seed : seedList) {
+                                batch.runs.add(new Run(
+                                        Integer.parseInt(nm[0]),
+                                        Integer.parseInt(nm[1]), setup,
+                                        Double.parseDouble(p),
+                                        Double.parseDouble(max),
+                                        Integer.parseInt(rounds), seed));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        System.out.println("Running " + batch.runs.size() + " brains for "
+                + generations + " generations on " + threads + " threads");
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(batch.new Runs(0, batch.runs.size()));
+        } finally {
+            pool.shutdown();
+        }
+        System.out.printf("Done in %.1f s%n",
+                (System.nanoTime() - start) / 1e9);
+
+        batch.writeRuns(out + "-runs.csv");
+        batch.writeSummary(out + "-summary.csv", seedList.length);
+        System.out.println("Wrote " + out + "-runs.csv and " + out
+                + "-summary.csv");
+        if (batch.failed.get() > 0) {
+            System.err.println(batch.failed.get() + " of " + batch.runs.size()
+                    + " runs failed");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Parses a list of seeds such as "1-100" or "3,7,42".
+     */
+    private static long[] parseSeeds(String seeds) {
+        List<Long> list = new ArrayList<>();
+        for (String part : seeds.split(",")) {
+            int dash = part.indexOf('-', 1);
+            if (dash < 0) {
+                list.add(Long.parseLong(part));
+            } else {
+                long from = Long.parseLong(part.substring(0, dash));
+                long to = Long.parseLong(part.substring(dash + 1));
+                for (long s = from; s <= to; s++) {
+                    list.add(s);
+                }
+            }
+        }
+        long[] result = new long[list.size()];
+        for (int k = 0; k < result.length; k++) {
+            result[k] = list.get(k);
+        }
+        return result;
+    }
+
+    /**
+     * Runs a range of the sweep, splitting it in halves so idle threads can
+     * steal the other half.
+     */
+    private class Runs extends RecursiveAction {
+
+        private final int lo;
+        private final int hi;
+
+        Runs(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                Run run = runs.get(lo);
+                try {
+                    run.run(generations);
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    run.error = e.toString();
+                    failed.incrementAndGet();
+                    System.err.println("Run " + run.parameters() + ", seed "
+                            + run.seed + " failed: " + e);
+                }
+                int done = finished.incrementAndGet();
+                if (done % Math.max(1, runs.size() / 20) == 0) {
+                    System.out.println(done + "/" + runs.size() + " runs");
+                }
+            } else if (hi > lo) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Runs(lo, mid), new Runs(mid, hi));
+            }
+        }
+    }
+
+    private void writeRuns(String file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(
+                Paths.get(file)))) {
+            writer.println(Run.HEADER + ",seed," + String.join(",", METRICS)
+                    + ",error");
+            for (Run run : runs) {
+                writer.print(run.parameters() + "," + run.seed);
+                for (double metric : run.metrics) {
+                    writer.print(run.error == null ? "," + format(metric)
+                            : ",");
+                }
+                writer.println(run.error == null ? ","
+                        : ",\"" + run.error.replace("\"", "\"\"")
+                                .replaceAll("[\r\n]+", " ") + "\"");
+            }
+        }
+    }
+
+    /**
+     * Writes the mean and standard deviation of every metric over the seeds
+     * of each combination that did not fail, and how many failed. The seeds
+     * of a combination are consecutive runs.
+     */
+    private void writeSummary(String file, int seeds) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(
+                Paths.get(file)))) {
+            StringBuilder header = new StringBuilder(Run.HEADER
+                    + ",runs,failed");
+            for (String metric : METRICS) {
+                header.append(',').append(metric).append("Mean,")
+                        .append(metric).append("Sd");
+            }
+            writer.println(header);
+            for (int first = 0; first < runs.size(); first += seeds) {
+                int ok = 0;
+                for (int r = first; r < first + seeds; r++) {
+                    if (runs.get(r).error == null) {
+                        ok++;
+                    }
+                }
+                writer.print(runs.get(first).parameters() + "," + ok + ","
+                        + (seeds - ok));
+                for (int m = 0; m < METRICS.length; m++) {
+                    if (ok == 0) {
+                        writer.print(",,");
+                        continue;
+                    }
+                    double sum = 0;
+                    double squares = 0;
+                    for (int r = first; r < first + seeds; r++) {
+                        if (runs.get(r).error == null) {
+                            double x = runs.get(r).metrics[m];
+                            sum += x;
+                            squares += x * x;
+                        }
+                    }
+                    double mean = sum / ok;
+                    double variance = ok > 1 ? Math.max(0,
+                            (squares - ok * mean * mean) / (ok - 1)) : 0;
+                    writer.print("," + format(mean) + ","
+                            + format(Math.sqrt(variance)));
+                }
+                writer.println();
+            }
+        }
+    }
+
+    private static String format(double x) {
+        return String.format(Locale.ROOT, "%.6g", x);
+    }
+
+    /**
+     * One brain of the sweep and the metrics it ended with.
+     */
+    private static class Run {
+
+        static final String HEADER = "rows,cols,setup,stimulation,"
+                + "maxStimulation,maxRounds";
+
+        final int N;
+        final int M;
+        final String setup;
+        final double stimulation;
+        final double maxStimulation;
+        final int maxRounds;
+        final long seed;
+        final double[] metrics = new double[METRICS.length];
+        String error; //why the run failed, null if it did not
+
+        Run(int N, int M, String setup, double stimulation,
+                double maxStimulation, int maxRounds, long seed) {
+            this.N = N;
+            this.M = M;
+            this.setup = setup;
+            this.stimulation = stimulation;
+            this.maxStimulation = maxStimulation;
+            this.maxRounds = maxRounds;
+            this.seed = seed;
+        }
+
+        String parameters() {
+            return N + "," + M + "," + setup + "," + stimulation + ","
+                    + maxStimulation + "," + maxRounds;
+        }
+
+        void run(int generations) {
+            long start = System.nanoTime();
+            SimulationCore core = new SimulationCore(N, M, setup,
+                    new CounterRandom(seed));
+            core.setAuto(stimulation > 0);
+            core.setStimulation(stimulation, maxStimulation);
+            core.setMaxRoundsSinceLTP(maxRounds);
+            for (int g = 0; g < generations; g++) {
+                core.update();
+            }
+
+            GenerationStats stats = new GenerationStats();
+            stats.capture(core);
+            metrics[0] = stats.getActive();
+            metrics[1] = stats.getAboveThreshold();
+            metrics[2] = stats.getMeanState();
+            metrics[3] = stats.getMaxState();
+            for (int r = 0; r < SimulationCore.NUM_THICKNESSES; r++) {
+                metrics[4 + r] = stats.getResistanceCount(r);
+            }
+            metrics[8] = (System.nanoTime() - start) / 1e6;
+        }
+    }
+
+}
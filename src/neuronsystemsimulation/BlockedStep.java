@@ -0,0 +1,162 @@
+package neuronsystemsimulation;
+
+import java.util.Arrays;
+
+/**
+ * The BlockedStep updates a SimulationCore in vertical strips of columns
+ * instead of whole rows. Every neuron reads and writes its own row and the
+ * rows above and below it, so the row by row update needs three rows of
+ * every array in the cache; on a grid thousands of columns wide that is more
+ * than the cache holds, and the signals sent south miss it. A strip of
+ * DEFAULT_WIDTH columns keeps those three rows to a few tens of kilobytes.
+ * The strips are updated from west to east, each from the first row to the
+ * last, so the arrays keep their row-major layout and every other engine,
+ * checkpoint and view keeps working on them.
+ *
+ * A neuron adds up its inputs in the order of the row by row update: the
+ * signal from the north before the one from the west, and after its own
+ * update the signal from the east before the one from the south. Inside a
+ * strip that order holds by itself. Across the edge between two strips, the
+ * signals the last col of a strip sends east are kept until the next strip
+ * gets to that row, and so are the ones it sends north: they must arrive
+ * after the signal coming back west from the next strip. So the result is
+ * the same as the row by row update.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+class BlockedStep {
+
+    static final int DEFAULT_WIDTH = 256; //3 rows of 40 bytes per cell
+
+    private final SimulationCore core;
+    private final int width;
+    private double[] inEast; //per row, signal into the first col
+    private double[] inNorth; //per row, signal into the col before the first
+    private double[] outEast; //per row, signal out of the last col
+    private double[] outNorth; //per row, signal into the last col
+
+    /**
+     * Splits the grid of a core into strips.
+     *
+     * @param core - SimulationCore - the simulation to update
+     * @param width - int - cols per strip
+     */
+    BlockedStep(SimulationCore core, int width) {
+        this.core = core;
+        this.width = width;
+        int N = core.getN();
+        inEast = new double[N];
+        inNorth = new double[N];
+        outEast = new double[N];
+        outNorth = new double[N];
+    }
+
+    /**
+     * Computes one generation into the new state buffer of the core.
+     */
+    void step() {
+        int N = core.getN();
+        int M = core.getM();
+        double[] newState = core.newState;
+        StepCounts counts = core.counts;
+        for (int left = 0; left < M; left += width) {
+            int right = Math.min(M, left + width);
+            boolean fromWest = left > 0;
+            boolean toEast = right < M;
+            //cols updated by the core, without the edge cols handled here
+            int first = fromWest ? left + 1 : left;
+            int last = toEast ? Math.max(first, right - 1) : right;
+            Arrays.fill(outEast, 0);
+            Arrays.fill(outNorth, 0);
+            core.prepareRow(0, left, right);
+            for (int i = 0; i < N; i++) {
+                if (i + 1 < N) {
+                    core.prepareRow(i + 1, left, right);
+                }
+                int c = i * M + left;
+                if (fromWest) {
+                    if (inEast[i] > 0) {
+                        newState[c] += inEast[i];
+                    }
+                    if (toEast && right - left == 1) {
+                        updateLastCol(c, i, left);
+                    } else {
+                        core.updateCols(i, left, left + 1, counts);
+                    }
+                    if (inNorth[i] > 0) {
+                        newState[c - 1] += inNorth[i];
+                    }
+                }
+                core.updateCols(i, first, last, counts);
+                if (toEast && last < right) {
+                    updateLastCol(i * M + last, i, last);
+                }
+            }
+            double[] swap = inEast;
+            inEast = outEast;
+            outEast = swap;
+            swap = inNorth;
+            inNorth = outNorth;
+            outNorth = swap;
+        }
+    }
+
+    /**
+     * Updates a neuron in the last col of a strip like
+     * SimulationCore.updateNeuron(), keeping the signals it sends north and
+     * east for later.
+     *
+     * @param c - int - index of the neuron
+     * @param i - int - row the neuron is in
+     * @param j - int - col the neuron is in
+     */
+    private void updateLastCol(int c, int i, int j) {
+        int M = core.getM();
+        byte[] direction = core.direction;
+        double[] newState = core.newState;
+        StepCounts counts = core.counts;
+        int north = i > 0 && direction[2 * (c - M) + 1]
+                == SimulationCore.BACKWARD ? 2 * (c - M) + 1 : -1;
+        int east = direction[2 * c] == SimulationCore.FORWARD ? 2 * c : -1;
+        int south = direction[2 * c + 1] == SimulationCore.FORWARD
+                ? 2 * c + 1 : -1;
+        int west = j > 0 && direction[2 * (c - 1)]
+                == SimulationCore.BACKWARD ? 2 * (c - 1) : -1;
+
+        double s = core.state[c];
+        if (s >= core.threshold[c]) {
+            counts.fired++;
+            if (counts.events != null) {
+                counts.events.fired(c);
+            }
+            double signal = core.fire(c, s, north, counts);
+            if (signal > 0) {
+                outNorth[i - 1] = signal;
+            }
+            signal = core.fire(c, s, east, counts);
+            if (signal > 0) {
+                outEast[i] = signal;
+            }
+            signal = core.fire(c, s, south, counts);
+            if (signal > 0) {
+                newState[c + M] += signal;
+            }
+            signal = core.fire(c, s, west, counts);
+            if (signal > 0) {
+                newState[c - 1] += signal;
+            }
+        }
+        if (core.applyLeak(c)) {
+            core.age(north, counts);
+            core.age(east, counts);
+            core.age(south, counts);
+            core.age(west, counts);
+        }
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+}
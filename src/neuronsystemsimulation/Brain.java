@@ -1,238 +1,234 @@
 package neuronsystemsimulation;
 
+import java.awt.BorderLayout;
 import java.awt.GridLayout;
+import java.io.IOException;
 import javax.swing.JPanel;
 
 /**
- * The Brain class is a JPanel that holds all the cells and synapse information
- * to be able to display itself in a container. 
- * 
+ * The Brain class is a JPanel that displays a SimulationCore in a container.
+ * Small grids get one Neuron panel per cell; larger ones are drawn on a
+ * single BrainCanvas. All of the simulation state lives in the core. The
+ * simulation may run on another thread: display() is called on the event
+ * dispatch thread and draws from a snapshot of the core. The core is stepped
+ * and stimulated by a SimulationLoop on its own thread, which adds every
+ * generation to a History so past ones can be shown again.
+ *
  * @author Geeling Chau
  * @date May 2016
  */
 public class Brain extends JPanel{
-    
-    private int N; //num rows
-    private int M; //num cols
-    private int synapseArrayVerticalN; 
-    private int synapseArrayVerticalM;
-    private int synapseArrayHorizontalN; 
-    private int synapseArrayHorizontalM; 
-    
-    private Neuron[][] neuronArray; 
-    private Synapse[][] synapseArrayVertical; 
-    private Synapse[][] synapseArrayHorizontal; 
-    
-    private int generation = 0; 
-    private boolean auto; 
-    
-    private static final int NUM_THICKNESSES = 4; // 0, 1, 2, 3
-    private static final int DEFAULT_HORIZONTAL_THICKNESS = 2; 
-    private static final int DEFAULT_VERTICAL_THICKNESS = 1; 
-    private static final int MAX_RANDOM_STIMULATION = 3;
-    
-    private String setup; 
-    
+
+    private static final int MAX_PANEL_CELLS = 1600; //e.g. 40x40
+
+    private final SimulationCore core;
+    private final SimulationLoop loop;
+    private Neuron[][] neuronArray;
+    private BrainCanvas canvas;
+    private BrainSnapshot snapshot;
+    private History history;
+    private boolean replaying; //showing a generation from the history
+
     Brain() {
-        this(4, 8, "Random"); //default board dimensions 
+        this(4, 8, "Random"); //default board dimensions
     }
 
     /**
-     * Creates brain and calls initialization functions to create neurons and 
-     * synapses. 
-     * 
-     * @param N - int - num rows 
+     * Creates the simulation core with a random seed and one neuron panel
+     * per cell.
+     *
+     * @param N - int - num rows
      * @param M - int - num cols
-     * @param setupCommand - String - "Random" or "Structured" 
+     * @param setupCommand - String - "Random" or "Structured"
      */
     Brain(int N, int M, String setupCommand) {
+        this(N, M, setupCommand, new CounterRandom(System.nanoTime()));
+    }
+
+    /**
+     * Creates the simulation core and one neuron panel per cell. Nothing is
+     * drawn or copied until the first display(), so a large brain is ready
+     * as soon as its core is.
+     *
+     * @param N - int - num rows
+     * @param M - int - num cols
+     * @param setupCommand - String - "Random" or "Structured"
+     * @param random - RandomSource - source of all random numbers of the run
+     */
+    Brain(int N, int M, String setupCommand, RandomSource random) {
         super();
-        generation = 0; 
-        if(N>=2 && M>=2){ //min board size 2x2
-            this.N = N; 
-            this.M = M;
-        }
-        else{
-            this.N = 2; //minimize board size
-            this.M = 2;
-            System.out.println("Brain size too small! ");
+        core = new SimulationCore(N, M, setupCommand, random);
+        loop = new SimulationLoop(core);
+        try {
+            history = new History(N, M);
+            history.add(core);
+            loop.setHistory(history);
+        } catch (IOException e) {
+            System.out.println("No history: " + e);
+            history = null;
         }
-        
+
         initializeArrays();
-        
-        
-        
-        if(setupCommand.equals("Random")){
-            initializeRandomSetUp();
-            setup = "Random";
-        }
-        else if (setupCommand.equals("Structured")){
-            initializeStructuredSetUp(); 
-            setup = "Structured"; 
-        }
-        else {
-            System.out.println("Unrecognized setup command");
-        }
-        
-        display(); 
-        
     }
-    
+
     /**
-     * Initializes the synapse array and the neuron array. 
+     * Initializes the neuron panels, or the canvas for large grids.
      */
     private void initializeArrays(){
-        synapseArrayVerticalN = N; 
-        synapseArrayVerticalM = M-1; 
-        synapseArrayHorizontalN = N-1; 
-        synapseArrayHorizontalM = M; 
-        
+        int N = core.getN();
+        int M = core.getM();
+        if(N * M > MAX_PANEL_CELLS){
+            setLayout(new BorderLayout());
+            canvas = new BrainCanvas(core, loop);
+            add(canvas, BorderLayout.CENTER);
+            return;
+        }
         setLayout(new GridLayout(N, M));
-        synapseArrayVertical = 
-                new Synapse[synapseArrayVerticalN][synapseArrayVerticalM];
-        synapseArrayHorizontal = 
-                new Synapse[synapseArrayHorizontalN][synapseArrayHorizontalM];
         neuronArray = new Neuron[N][M];
         for (int i = 0; i < N; i++) {
             for (int j = 0; j < M; j++) {
-                neuronArray[i][j] = new Neuron(i, j);
+                neuronArray[i][j] = new Neuron(core, loop, i, j);
                 this.add(neuronArray[i][j]);
             }
         }
-        
+
     }
-    
+
     /**
-     * Randomly selects the direction of all the synapses. 
+     * Stops the loop of the brain for good, when it is replaced.
      */
-    private void initializeRandomSetUp() {
-        for (int i = 0; i < synapseArrayVerticalN; i++) {
-            for (int j = 0; j < synapseArrayVerticalM; j++) {
-                if((int)(Math.random()*3) == 0){
-                    synapseArrayVertical[i][j] = new Synapse(neuronArray[i][j], 
-                            neuronArray[i][j+1], 
-                            (int)(Math.random()*NUM_THICKNESSES));
-                }
-                else{
-                    synapseArrayVertical[i][j] = new Synapse(
-                            neuronArray[i][j+1], neuronArray[i][j], 
-                            (int)(Math.random()*NUM_THICKNESSES));
-                }
-                neuronArray[i][j].setEastSynapse(synapseArrayVertical[i][j]);
-                neuronArray[i][j+1].setWestSynapse(synapseArrayVertical[i][j]);
-                
-            }
-        }
-        for (int i = 0; i < synapseArrayHorizontalN; i++) {
-            for (int j = 0; j < synapseArrayHorizontalM; j++) {
-                if((int)(Math.random()*4) == 0){
-                    synapseArrayHorizontal[i][j] = new Synapse(
-                            neuronArray[i][j], neuronArray[i+1][j], 
-                            (int)(Math.random()*NUM_THICKNESSES));
-                }
-                else{
-                    synapseArrayHorizontal[i][j] = new Synapse(
-                            neuronArray[i+1][j], neuronArray[i][j], 
-                            (int)(Math.random()*NUM_THICKNESSES));
-                }
-                neuronArray[i][j].setSouthSynapse(
-                        synapseArrayHorizontal[i][j]);
-                neuronArray[i+1][j].setNorthSynapse(
-                        synapseArrayHorizontal[i][j]);
-                
+    public void shutdown(){
+        loop.shutdown();
+        loop.setHistory(null);
+        if(history != null){
+            try {
+                history.close();
+            } catch (IOException e) {
+                System.out.println("Could not close the history: " + e);
             }
         }
     }
-    
+
     /**
-     * Initialized a structured set up where the right and south borders are 
-     * permeable to the next neurons. 
+     * Takes a snapshot of the core and calls the display function on all the
+     * neurons, if anything changed since the last call. Does nothing while a
+     * generation from the history is shown.
      */
-    private void initializeStructuredSetUp() {
-        for (int i = 0; i < synapseArrayVerticalN; i++) {
-            for (int j = 0; j < synapseArrayVerticalM; j++) {
-                synapseArrayVertical[i][j] = new Synapse(neuronArray[i][j], 
-                        neuronArray[i][j+1], DEFAULT_VERTICAL_THICKNESS);
-                neuronArray[i][j].setEastSynapse(synapseArrayVertical[i][j]);
-                neuronArray[i][j+1].setWestSynapse(synapseArrayVertical[i][j]);
-            }
+    public void display(){
+        if(snapshot == null){
+            snapshot = new BrainSnapshot(core.getN(), core.getM());
         }
-        for (int i = 0; i < synapseArrayHorizontalN; i++) {
-            for (int j = 0; j < synapseArrayHorizontalM; j++) {
-                synapseArrayHorizontal[i][j] = new Synapse(neuronArray[i][j], 
-                        neuronArray[i+1][j],  DEFAULT_HORIZONTAL_THICKNESS);
-                neuronArray[i][j].setSouthSynapse(
-                        synapseArrayHorizontal[i][j]);
-                neuronArray[i+1][j].setNorthSynapse(
-                        synapseArrayHorizontal[i][j]);
-            }
+        if(replaying
+                || core.getModifications() == snapshot.getModifications()){
+            return;
         }
+        core.snapshot(snapshot);
+        draw();
     }
-    
+
     /**
-     * Updates the state of each neuron.
+     * Shows a past generation from the history instead of the core, until
+     * showLive() is called. The core is not changed.
+     *
+     * @param generation - int - a generation in the history
+     * @return false if the generation is not in the history or could not be
+     * read
      */
-    protected void update(){ 
-        generation++; 
-        for(int i = 0; i < N; i++){
-            for(int j = 0; j < M; j++){
-                neuronArray[i][j].updateNewState();
-            }
+    public boolean showGeneration(int generation){
+        if(history == null || !history.contains(generation)){
+            return false;
         }
-        if(auto){
-            for(int i = 0; i < N; i++){
-                for(int j = 0; j < M; j++){
-                    if(Math.random()>0.8){
-                        neuronArray[i][j].incrementNewState(
-                                Math.random()*MAX_RANDOM_STIMULATION);
-                    }
-                    
-                }
-            }
-        }
-        for(int i = 0; i < N; i++){
-            for(int j = 0; j < M; j++){
-                neuronArray[i][j].update();
-            }
+        if(snapshot == null){
+            snapshot = new BrainSnapshot(core.getN(), core.getM());
         }
-        for(int i = 0; i < N; i++){
-            for(int j = 0; j < M; j++){
-                neuronArray[i][j].updateState();
-            }
+        try {
+            history.seek(generation, snapshot);
+        } catch (IOException | IllegalArgumentException e) {
+            //the generation may have been dropped from the history since
+            System.out.println("Could not read generation " + generation
+                    + ": " + e);
+            return false;
         }
-        
+        replaying = true;
+        draw();
+        return true;
     }
-    
+
     /**
-     * Calls the display function on all the neurons. 
+     * Goes back to showing the core after showGeneration().
      */
-    public void display(){
-        for(int i = 0; i < N; i++){
-            for(int j = 0; j < M; j++){
-                neuronArray[i][j].display();
+    public void showLive(){
+        replaying = false;
+    }
+
+    public boolean isReplaying(){
+        return replaying;
+    }
+
+    /**
+     * Draws the snapshot on the neuron panels or the canvas.
+     */
+    private void draw(){
+        if(canvas != null){
+            canvas.display(snapshot);
+            return;
+        }
+        for(int i = 0; i < core.getN(); i++){
+            for(int j = 0; j < core.getM(); j++){
+                neuronArray[i][j].display(snapshot);
             }
         }
     }
-    
+
+    /**
+     * Gets the generation that is on the screen.
+     *
+     * @return the generation of the last snapshot shown
+     */
+    public int getDisplayedGeneration(){
+        return snapshot != null ? snapshot.getGeneration() : 0;
+    }
+
     public int getN(){
-        return N; 
+        return core.getN();
     }
     public int getM(){
-        return M; 
+        return core.getM();
     }
-    
+
     public int getGeneration(){
-        return generation; 
+        return core.getGeneration();
     }
-    
+
     public String getSetup(){
-        return setup; 
+        return core.getSetup();
     }
-    
+
+    /**
+     * Turns the auto stimulation on or off. The loop thread applies it before
+     * the next generation, since only that thread changes the core.
+     *
+     * @param a - boolean - whether to stimulate neurons at random
+     */
     public void setAuto(boolean a){
-        auto = a; 
+        loop.setAuto(a);
+    }
+
+    public SimulationCore getCore(){
+        return core;
+    }
+
+    public SimulationLoop getLoop(){
+        return loop;
+    }
+
+    /**
+     * Gets the history of the brain.
+     *
+     * @return the history, or null if it could not be created
+     */
+    public History getHistory(){
+        return history;
     }
 
-    
-    
 }
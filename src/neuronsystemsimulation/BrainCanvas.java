@@ -0,0 +1,149 @@
+package neuronsystemsimulation;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import javax.swing.JComponent;
+
+/**
+ * The BrainCanvas draws a whole brain into one BufferedImage instead of using
+ * one Neuron panel per cell, so large grids can be watched live. Each neuron
+ * is a square of gray pixels written straight into the int[] raster of the
+ * image, and the synapses on its east and south sides are drawn as red lines
+ * as thick as their resistance. Clicking the canvas stimulates the neuron
+ * under the mouse.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class BrainCanvas extends JComponent {
+
+    private static final double MAX_STIMULI = 5;
+    private static final int MAX_COLOR = 250;
+    private static final double CLICK_STIMULATION = 4;
+    private static final int SYNAPSE_COLOR = Color.RED.getRGB();
+    private static final int MIN_CELL_FOR_SYNAPSES = 4;
+
+    private final SimulationLoop loop;
+    private final int N;
+    private final int M;
+    private BufferedImage image;
+    private int[] pixels;
+    private int cellSize;
+    private BrainSnapshot lastSnapshot;
+
+    /**
+     * Creates the canvas for a core.
+     *
+     * @param core - SimulationCore - the simulation to draw
+     * @param loop - SimulationLoop - the loop to send clicks to
+     */
+    BrainCanvas(SimulationCore core, final SimulationLoop loop) {
+        this.loop = loop;
+        N = core.getN();
+        M = core.getM();
+        setOpaque(true);
+        addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent me) {
+                int i = cellAt(me.getY(), getHeight(), N);
+                int j = cellAt(me.getX(), getWidth(), M);
+                if (i >= 0 && j >= 0) {
+                    loop.stimulate(i, j, CLICK_STIMULATION);
+                }
+            }
+        });
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent ce) {
+                if (lastSnapshot != null) {
+                    display(lastSnapshot);
+                }
+            }
+        });
+    }
+
+    /**
+     * Maps a mouse coordinate to a row or col of the grid.
+     *
+     * @param position - int - x or y of the mouse
+     * @param length - int - width or height of the canvas
+     * @param cells - int - number of cols or rows
+     * @return the row or col, or -1 if the mouse is outside the grid
+     */
+    static int cellAt(int position, int length, int cells) {
+        if (length <= 0 || position < 0 || position >= length) {
+            return -1;
+        }
+        return (int) ((long) position * cells / length);
+    }
+
+    /**
+     * Redraws the image from a snapshot. Runs on the event dispatch thread.
+     *
+     * @param snapshot - BrainSnapshot - the generation to show
+     */
+    public void display(BrainSnapshot snapshot) {
+        lastSnapshot = snapshot;
+        int size = Math.max(1, Math.min(getWidth() / M, getHeight() / N));
+        if (image == null || size != cellSize) {
+            cellSize = size;
+            image = new BufferedImage(M * cellSize, N * cellSize,
+                    BufferedImage.TYPE_INT_RGB);
+            pixels = ((DataBufferInt) image.getRaster().getDataBuffer())
+                    .getData();
+        }
+        int width = M * cellSize;
+        boolean synapses = cellSize >= MIN_CELL_FOR_SYNAPSES;
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < M; j++) {
+                int gray = gray(snapshot.getState(i, j));
+                int rgb = (gray << 16) | (gray << 8) | gray;
+                int east = synapses ? lineWidth(
+                        snapshot.getResistance(i, j, SimulationCore.EAST)) : 0;
+                int south = synapses ? lineWidth(
+                        snapshot.getResistance(i, j, SimulationCore.SOUTH)) : 0;
+                int row = i * cellSize * width + j * cellSize;
+                for (int y = 0; y < cellSize; y++, row += width) {
+                    boolean southLine = y >= cellSize - south;
+                    for (int x = 0; x < cellSize; x++) {
+                        pixels[row + x] = southLine || x >= cellSize - east
+                                ? SYNAPSE_COLOR : rgb;
+                    }
+                }
+            }
+        }
+        repaint();
+    }
+
+    /**
+     * Gets the gray level of a neuron, the same as the Neuron panel uses.
+     */
+    private static int gray(double state) {
+        if (state > MAX_STIMULI) {
+            return MAX_COLOR;
+        }
+        return (int) ((state * MAX_COLOR) / MAX_STIMULI);
+    }
+
+    /**
+     * Gets how many pixels wide the line of a synapse is.
+     */
+    private int lineWidth(int resistance) {
+        return Math.min(resistance, cellSize / MIN_CELL_FOR_SYNAPSES);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        if (image != null) {
+            g.drawImage(image, 0, 0, getWidth(), getHeight(), null);
+        }
+    }
+
+}
@@ -0,0 +1,434 @@
+package neuronsystemsimulation;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The BrainCheckpoint writes the full state of a SimulationCore to a binary
+ * file and reads it back, so a run can be resumed or forked without
+ * simulating from generation 0. The arrays are copied through a direct buffer
+ * with FileChannel reads and writes rather than mapped into memory: a mapped
+ * region stays open until it is garbage collected, and while it is, Windows
+ * refuses to move or delete the file.
+ *
+ * A file starts with a versioned header:
+ * <pre>
+ * int    magic "NSSC"
+ * short  version
+ * short  flags (FLAG_STATIC, FLAG_AUTO)
+ * int    N, M
+ * int    generation
+ * long   seed of the RandomSource
+ * int    base generation (the checkpoint holding the static sections)
+ * short  length of the setup name, then the name in UTF-8
+ * double auto stimulation cutoff, double max stimulation (since version 2)
+ * int    max rounds since LTP (since version 2)
+ * </pre>
+ * followed, 8-byte aligned and little-endian, by the sections state, then
+ * leak, threshold and direction if FLAG_STATIC is set, then resistance and
+ * roundsSinceLTP. Leak, threshold and direction never change during a run, so
+ * an incremental checkpoint leaves them out and is read on top of a full
+ * checkpoint of the same run.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class BrainCheckpoint {
+
+    static final int MAGIC = 0x4e535343; // "NSSC"
+    static final short VERSION = 2;
+    static final short FLAG_STATIC = 1; //has leak, threshold and direction
+    static final short FLAG_AUTO = 2; //auto stimulation was on
+
+    private static final int CHUNK = 1 << 20; //bytes copied at a time
+    private static final int ALIGNMENT = 8;
+
+    private BrainCheckpoint() {
+    }
+
+    /**
+     * Writes a full checkpoint of a core.
+     *
+     * @param core - SimulationCore - the simulation to save
+     * @param file - Path - the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(SimulationCore core, Path file)
+            throws IOException {
+        write(core, file, true, core.getGeneration());
+    }
+
+    /**
+     * Writes an incremental checkpoint of a core, holding only the parts that
+     * change from one generation to the next.
+     *
+     * @param core - SimulationCore - the simulation to save
+     * @param file - Path - the file to write
+     * @param baseGeneration - int - generation of the full checkpoint it
+     * will be read on top of
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeIncremental(SimulationCore core, Path file,
+            int baseGeneration) throws IOException {
+        write(core, file, false, baseGeneration);
+    }
+
+    /**
+     * Writes a checkpoint into a temporary file and moves it over the target,
+     * so a crash never leaves a half written checkpoint behind.
+     */
+    private static void write(SimulationCore core, Path file, boolean full,
+            int baseGeneration) throws IOException {
+        if (core.isOffHeap()) {
+            throw new IllegalArgumentException("An off-heap core is saved"
+                    + " with SimulationCore.flush()");
+        }
+        if (core.isCompact()) {
+            throw new IllegalArgumentException("A compact core cannot be"
+                    + " checkpointed");
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        synchronized (core) {
+            core.settle();
+            byte[] setup = String.valueOf(core.getSetup())
+                    .getBytes(StandardCharsets.UTF_8);
+            ByteBuffer header = ByteBuffer.allocate(
+                    headerLength(setup.length, VERSION));
+            header.putInt(MAGIC);
+            header.putShort(VERSION);
+            header.putShort((short) ((full ? FLAG_STATIC : 0)
+                    | (core.isAuto() ? FLAG_AUTO : 0)));
+            header.putInt(core.getN());
+            header.putInt(core.getM());
+            header.putInt(core.getGeneration());
+            header.putLong(core.getRandom().getSeed());
+            header.putInt(baseGeneration);
+            header.putShort((short) setup.length);
+            header.put(setup);
+            header.putDouble(core.stimulationCutoff);
+            header.putDouble(core.maxStimulation);
+            header.putInt(core.maxRoundsSinceLTP);
+            header.flip();
+
+            try (FileChannel channel = FileChannel.open(temporary,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                Sections out = new Sections(channel, true, header.limit());
+                out.doubles(core.state);
+                if (full) {
+                    out.doubles(core.leak);
+                    out.doubles(core.threshold);
+                    out.bytes(core.direction);
+                }
+                out.bytes(core.resistance);
+                out.shorts(core.roundsSinceLTP);
+                channel.force(true);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a full checkpoint. The core uses a CounterRandom with the seed of
+     * the saved run, so it continues exactly where that run left off.
+     *
+     * @param file - Path - the checkpoint to read
+     * @return the restored core
+     * @throws IOException if the file cannot be read or is not a full
+     * checkpoint
+     */
+    public static SimulationCore read(Path file) throws IOException {
+        return read(file, null);
+    }
+
+    /**
+     * Reads a checkpoint. An incremental checkpoint is read on top of the full
+     * checkpoint it was based on.
+     *
+     * @param file - Path - the checkpoint to read
+     * @param base - Path - the full checkpoint of the same run, or null
+     * @return the restored core
+     * @throws IOException if the files cannot be read or do not fit together
+     */
+    public static SimulationCore read(Path file, Path base)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            Header header = Header.read(channel);
+            SimulationCore core = new SimulationCore(header.N, header.M,
+                    header.setup, new CounterRandom(header.seed),
+                    header.generation);
+            core.setAuto((header.flags & FLAG_AUTO) != 0);
+            core.stimulationCutoff = header.stimulationCutoff;
+            core.maxStimulation = header.maxStimulation;
+            core.maxRoundsSinceLTP = header.maxRoundsSinceLTP;
+
+            Sections in = new Sections(channel, false, header.length);
+            in.doubles(core.state);
+            if ((header.flags & FLAG_STATIC) != 0) {
+                in.doubles(core.leak);
+                in.doubles(core.threshold);
+                in.bytes(core.direction);
+            } else if (base == null) {
+                throw new IOException(file + " is incremental, it needs the"
+                        + " full checkpoint of generation "
+                        + header.baseGeneration);
+            } else {
+                readStatic(base, header, core);
+            }
+            in.bytes(core.resistance);
+            in.shorts(core.roundsSinceLTP);
+            core.directionsChanged();
+            return core;
+        }
+    }
+
+    /**
+     * Reads leak, threshold and direction from the full checkpoint an
+     * incremental checkpoint was based on.
+     */
+    private static void readStatic(Path base, Header incremental,
+            SimulationCore core) throws IOException {
+        try (FileChannel channel = FileChannel.open(base,
+                StandardOpenOption.READ)) {
+            Header header = Header.read(channel);
+            if (!header.isBaseOf(incremental)) {
+                throw new IOException(base + " is not the full checkpoint"
+                        + " of generation " + incremental.baseGeneration);
+            }
+            Sections in = new Sections(channel, false, header.length);
+            in.skip((long) header.N * header.M * Double.BYTES);
+            in.doubles(core.leak);
+            in.doubles(core.threshold);
+            in.bytes(core.direction);
+        }
+    }
+
+    /**
+     * Reads the generation of a checkpoint without reading the grid.
+     *
+     * @param file - Path - the checkpoint
+     * @return the generation it was written at
+     * @throws IOException if the file is not a checkpoint
+     */
+    public static int readGeneration(Path file) throws IOException {
+        return readHeader(file).generation;
+    }
+
+    /**
+     * Checks whether a checkpoint can be read on top of a full one: the grid,
+     * setup and seed must be the same and the base generation must be the
+     * generation of the full one. Only the headers are read.
+     *
+     * @param file - Path - the incremental checkpoint
+     * @param base - Path - the full checkpoint
+     * @return whether read(file, base) fits them together
+     * @throws IOException if a file is not a checkpoint
+     */
+    static boolean isBasedOn(Path file, Path base) throws IOException {
+        return readHeader(base).isBaseOf(readHeader(file));
+    }
+
+    private static Header readHeader(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            return Header.read(channel);
+        }
+    }
+
+    private static int headerLength(int setupLength, int version) {
+        int length = 4 + 2 + 2 + 4 + 4 + 4 + 8 + 4 + 2 + setupLength;
+        return version >= 2 ? length + 8 + 8 + 4 : length;
+    }
+
+    /**
+     * The header of a checkpoint file.
+     */
+    private static class Header {
+
+        short flags;
+        int N;
+        int M;
+        int generation;
+        long seed;
+        int baseGeneration;
+        String setup;
+        double stimulationCutoff = SimulationCore.STIMULATION_CUTOFF;
+        double maxStimulation = SimulationCore.MAX_RANDOM_STIMULATION;
+        int maxRoundsSinceLTP = SimulationCore.MAX_ROUNDS_SINCE_LTP;
+        int length;
+
+        static Header read(FileChannel channel) throws IOException {
+            ByteBuffer fixed = ByteBuffer.allocate(headerLength(0, 1));
+            readFully(channel, fixed, 0);
+            Header header = new Header();
+            if (fixed.getInt() != MAGIC) {
+                throw new IOException("Not a brain checkpoint");
+            }
+            short version = fixed.getShort();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported checkpoint version "
+                        + version);
+            }
+            header.flags = fixed.getShort();
+            header.N = fixed.getInt();
+            header.M = fixed.getInt();
+            header.generation = fixed.getInt();
+            header.seed = fixed.getLong();
+            header.baseGeneration = fixed.getInt();
+            int setupLength = fixed.getShort();
+            header.length = headerLength(setupLength, version);
+            ByteBuffer rest = ByteBuffer.allocate(header.length
+                    - fixed.limit());
+            readFully(channel, rest, fixed.limit());
+            byte[] setup = new byte[setupLength];
+            rest.get(setup);
+            header.setup = new String(setup, StandardCharsets.UTF_8);
+            if (version >= 2) {
+                header.stimulationCutoff = rest.getDouble();
+                header.maxStimulation = rest.getDouble();
+                header.maxRoundsSinceLTP = rest.getInt();
+            }
+            return header;
+        }
+
+        /**
+         * Checks whether this is the full checkpoint an incremental one was
+         * based on.
+         */
+        boolean isBaseOf(Header incremental) {
+            return (flags & FLAG_STATIC) != 0 && N == incremental.N
+                    && M == incremental.M && seed == incremental.seed
+                    && setup.equals(incremental.setup)
+                    && generation == incremental.baseGeneration;
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buffer,
+                long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Checkpoint is truncated");
+                }
+            }
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Copies arrays to or from consecutive, aligned regions of a file through
+     * a direct buffer of CHUNK bytes.
+     */
+    private static class Sections {
+
+        private final FileChannel channel;
+        private final boolean writing;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        private long position;
+
+        Sections(FileChannel channel, boolean writing, long position) {
+            this.channel = channel;
+            this.writing = writing;
+            this.position = position;
+        }
+
+        /**
+         * Starts the next chunk of a section. When reading, the chunk is read
+         * from the file into the buffer.
+         *
+         * @param bytes - int - length of the chunk
+         * @param first - boolean - whether it starts a section, which is
+         * aligned
+         */
+        private void begin(int bytes, boolean first) throws IOException {
+            if (first) {
+                position = (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+            }
+            buffer.clear();
+            buffer.limit(bytes);
+            if (!writing) {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position())
+                            < 0) {
+                        throw new EOFException("Checkpoint is truncated");
+                    }
+                }
+                buffer.flip();
+            }
+        }
+
+        /**
+         * Ends a chunk. When writing, the buffer is written to the file.
+         */
+        private void end() throws IOException {
+            if (writing) {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            } else {
+                position += buffer.limit();
+            }
+        }
+
+        void skip(long bytes) {
+            position = (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT
+                    + bytes;
+        }
+
+        void doubles(double[] array) throws IOException {
+            int perChunk = CHUNK / Double.BYTES;
+            for (int from = 0; from < array.length; from += perChunk) {
+                int count = Math.min(perChunk, array.length - from);
+                begin(count * Double.BYTES, from == 0);
+                if (writing) {
+                    buffer.asDoubleBuffer().put(array, from, count);
+                } else {
+                    buffer.asDoubleBuffer().get(array, from, count);
+                }
+                end();
+            }
+        }
+
+        void shorts(short[] array) throws IOException {
+            int perChunk = CHUNK / Short.BYTES;
+            for (int from = 0; from < array.length; from += perChunk) {
+                int count = Math.min(perChunk, array.length - from);
+                begin(count * Short.BYTES, from == 0);
+                if (writing) {
+                    buffer.asShortBuffer().put(array, from, count);
+                } else {
+                    buffer.asShortBuffer().get(array, from, count);
+                }
+                end();
+            }
+        }
+
+        void bytes(byte[] array) throws IOException {
+            for (int from = 0; from < array.length; from += CHUNK) {
+                int count = Math.min(CHUNK, array.length - from);
+                begin(count, from == 0);
+                if (writing) {
+                    buffer.put(array, from, count);
+                    buffer.flip();
+                } else {
+                    buffer.get(array, from, count);
+                }
+                end();
+            }
+        }
+    }
+
+}
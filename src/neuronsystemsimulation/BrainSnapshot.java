@@ -0,0 +1,93 @@
+package neuronsystemsimulation;
+
+/**
+ * The BrainSnapshot is a copy of the neuron states and synapse resistances of
+ * a SimulationCore at one generation. The view draws from a snapshot, so the
+ * simulation can keep running while the screen is painted.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class BrainSnapshot {
+
+    private final int N;
+    private final int M;
+    private final double[] state;
+    private final byte[] resistance;
+    private int generation = -1;
+    private long modifications = -1;
+
+    /**
+     * Creates an empty snapshot for an N x M grid.
+     *
+     * @param N - int - num rows
+     * @param M - int - num cols
+     */
+    public BrainSnapshot(int N, int M) {
+        this.N = N;
+        this.M = M;
+        state = new double[N * M];
+        resistance = new byte[2 * N * M];
+    }
+
+    void copy(int generation, long modifications, double[] state,
+            byte[] resistance) {
+        this.generation = generation;
+        this.modifications = modifications;
+        System.arraycopy(state, 0, this.state, 0, this.state.length);
+        System.arraycopy(resistance, 0, this.resistance, 0,
+                this.resistance.length);
+    }
+
+    void copy(int generation, long modifications, GridStore grid) {
+        this.generation = generation;
+        this.modifications = modifications;
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < M; j++) {
+                int c = i * M + j;
+                state[c] = grid.getState(i, j);
+                if (j < M - 1) {
+                    resistance[2 * c] = (byte) grid.getResistance(2 * c);
+                }
+                if (i < N - 1) {
+                    resistance[2 * c + 1] =
+                            (byte) grid.getResistance(2 * c + 1);
+                }
+            }
+        }
+    }
+
+    public int getN() {
+        return N;
+    }
+
+    public int getM() {
+        return M;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    public long getModifications() {
+        return modifications;
+    }
+
+    public double getState(int i, int j) {
+        return state[i * M + j];
+    }
+
+    /**
+     * Gets the resistance of the synapse on one side of a neuron.
+     *
+     * @param i - int - row the neuron is in
+     * @param j - int - col the neuron is in
+     * @param side - int - NORTH, EAST, SOUTH or WEST
+     * @return the resistance, or 0 if there is no synapse on that side
+     */
+    public int getResistance(int i, int j, int side) {
+        int e = SimulationCore.edgeIndex(N, M, i, j, side);
+        return e < 0 ? 0 : resistance[e];
+    }
+
+}
@@ -0,0 +1,233 @@
+package neuronsystemsimulation;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * The Checkpointer saves a running SimulationCore into a directory every few
+ * generations. The first checkpoint is a full one, brain-base.nssc; after that
+ * only the state, resistance and LTP counters are written, to
+ * brain-(generation).nssc, and only the newest few of those are kept.
+ * Incremental checkpoints of an earlier run are deleted once the new base is
+ * in place. If the process dies in between, restoreLatest() skips the ones
+ * whose grid, setup, seed or base generation differ from the base; the ones
+ * of an earlier run with the same grid, setup and seed have the same leak,
+ * threshold and directions, so they still restore a grid that fits together.
+ * main() checks this.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class Checkpointer {
+
+    static final String BASE = "brain-base.nssc";
+    private static final String PREFIX = "brain-";
+    private static final String SUFFIX = ".nssc";
+
+    private final SimulationCore core;
+    private final Path directory;
+    private final int every;
+    private final int keep;
+    private final ArrayDeque<Path> written = new ArrayDeque<>();
+    private int baseGeneration = -1;
+
+    /**
+     * Creates a checkpointer for a core.
+     *
+     * @param core - SimulationCore - the simulation to save
+     * @param directory - Path - where the checkpoints go
+     * @param every - int - generations between two checkpoints
+     * @param keep - int - number of incremental checkpoints to keep
+     */
+    public Checkpointer(SimulationCore core, Path directory, int every,
+            int keep) {
+        if (every < 1 || keep < 1) {
+            throw new IllegalArgumentException("every and keep must be >= 1");
+        }
+        this.core = core;
+        this.directory = directory;
+        this.every = every;
+        this.keep = keep;
+    }
+
+    /**
+     * Saves the core if its generation is a multiple of every. Call it after
+     * each update.
+     *
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public void generationDone() throws IOException {
+        if (core.getGeneration() % every == 0) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Saves the core now.
+     *
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public void checkpoint() throws IOException {
+        if (baseGeneration < 0) {
+            Files.createDirectories(directory);
+            Path base = directory.resolve(BASE);
+            BrainCheckpoint.write(core, base);
+            baseGeneration = BrainCheckpoint.readGeneration(base);
+            deleteIncremental();
+            return;
+        }
+        Path file = directory.resolve(PREFIX + core.getGeneration() + SUFFIX);
+        BrainCheckpoint.writeIncremental(core, file, baseGeneration);
+        written.remove(file);
+        written.addLast(file);
+        while (written.size() > keep) {
+            Files.deleteIfExists(written.removeFirst());
+        }
+    }
+
+    /**
+     * Deletes incremental checkpoints of an earlier run, which do not fit the
+     * new base.
+     */
+    private void deleteIncremental() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                if (!file.getFileName().toString().equals(BASE)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Restores the newest checkpoint in a directory written by a
+     * Checkpointer.
+     *
+     * @param directory - Path - the checkpoint directory
+     * @return the restored core
+     * @throws IOException if there is no readable checkpoint
+     */
+    public static SimulationCore restoreLatest(Path directory)
+            throws IOException {
+        Path base = directory.resolve(BASE);
+        Path latest = null;
+        int latestGeneration = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                if (file.getFileName().toString().equals(BASE)) {
+                    continue;
+                }
+                int generation = BrainCheckpoint.readGeneration(file);
+                if (generation > latestGeneration
+                        && BrainCheckpoint.isBasedOn(file, base)) {
+                    latest = file;
+                    latestGeneration = generation;
+                }
+            }
+        }
+        if (latest == null) {
+            return BrainCheckpoint.read(base);
+        }
+        return BrainCheckpoint.read(latest, base);
+    }
+
+    /**
+     * Checks restoreLatest() in a temporary directory: after a normal run,
+     * and after runs that died between writing their base and deleting the
+     * incremental checkpoints of the run before, with another seed and with
+     * another setup. Exits with status 1 if a restored grid differs from the
+     * one that was saved. Usage:
+     * <pre>
+     * java -cp NeuronSystemSimulation.jar neuronsystemsimulation.Checkpointer
+     *         [rows] [cols] [generations]
+     * </pre>
+     *
+     * @param args - String[] - the command line
+     * @throws IOException if the checkpoints cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        int N = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int M = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int generations = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        Path directory = Files.createTempDirectory("checkpoints");
+        boolean failed = false;
+        try {
+            SimulationCore core = new SimulationCore(N, M, "Random",
+                    new CounterRandom(1));
+            core.setAuto(true);
+            Checkpointer checkpointer = new Checkpointer(core, directory,
+                    generations / 4 + 1, 2);
+            checkpointer.checkpoint();
+            SimulationCore saved = null;
+            for (int g = 0; g < generations; g++) {
+                core.update();
+                checkpointer.generationDone();
+                if (core.getGeneration() % checkpointer.every == 0) {
+                    saved = BrainCheckpoint.read(directory.resolve(PREFIX
+                            + core.getGeneration() + SUFFIX),
+                            directory.resolve(BASE));
+                }
+            }
+            failed |= !check("after a run", saved, directory);
+
+            //the base of the next run is in place, the old increments not
+            core = new SimulationCore(N, M, "Random", new CounterRandom(2));
+            BrainCheckpoint.write(core, directory.resolve(BASE));
+            failed |= !check("after a crash, new seed", core, directory);
+            core = new SimulationCore(N, M, "Structured",
+                    new CounterRandom(1));
+            BrainCheckpoint.write(core, directory.resolve(BASE));
+            failed |= !check("after a crash, new setup", core, directory);
+        } finally {
+            try (DirectoryStream<Path> files
+                    = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Restores the latest checkpoint and compares it with the grid that
+     * should come back.
+     *
+     * @return whether they are the same
+     */
+    private static boolean check(String name, SimulationCore expected,
+            Path directory) {
+        String result;
+        try {
+            SimulationCore core = restoreLatest(directory);
+            expected.settle();
+            result = core.getGeneration() != expected.getGeneration()
+                    ? "generation " + core.getGeneration() + " instead of "
+                    + expected.getGeneration()
+                    : !Arrays.equals(core.state, expected.state)
+                    || !Arrays.equals(core.leak, expected.leak)
+                    || !Arrays.equals(core.threshold, expected.threshold)
+                    || !Arrays.equals(core.direction, expected.direction)
+                    || !Arrays.equals(core.resistance, expected.resistance)
+                    || !Arrays.equals(core.roundsSinceLTP,
+                            expected.roundsSinceLTP)
+                    ? "a different grid" : null;
+        } catch (IOException ex) {
+            result = ex.getMessage();
+        }
+        System.out.printf("%-24s %s%n", name, result == null
+                ? "restored generation " + expected.getGeneration()
+                : "FAILED, " + result);
+        return result == null;
+    }
+
+}
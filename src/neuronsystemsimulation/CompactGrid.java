@@ -0,0 +1,552 @@
+package neuronsystemsimulation;
+
+/**
+ * The CompactGrid keeps the neurons and synapses of a SimulationCore in fewer
+ * bytes per cell than its arrays, so larger grids fit in the caches and in
+ * memory. The arrays take 40 bytes per cell: four doubles for the state, new
+ * state, leak rate and threshold, and four bytes for each of the two
+ * synapses. Here
+ * <ul>
+ * <li>the threshold is not stored, it is always the leak rate + 0.5;</li>
+ * <li>a synapse is one byte: the direction in bits 0-1, the resistance in
+ * bits 2-3 and the rounds since LTP in bits 4-7, so a core with a compact
+ * grid counts at most MAX_ROUNDS rounds;</li>
+ * <li>the states and leak rates are floats (FloatGrid, 14 bytes per cell) or
+ * 16-bit fixed-point numbers (FixedGrid, 8 bytes per cell).</li>
+ * </ul>
+ * The update follows the same rules in the same order as the arrays, but
+ * every value is rounded when it is stored, so the run drifts away from the
+ * one in double precision. PrecisionDrift measures how far.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+abstract class CompactGrid implements GridStore {
+
+    static final int MAX_ROUNDS = 15; //what fits in the 4 bits of a synapse
+    static final double THRESHOLD_ABOVE_LEAK = 0.5;
+
+    private static final int DIRECTION_MASK = 0x03;
+    private static final int RESISTANCE_SHIFT = 2;
+    private static final int RESISTANCE_MASK = 0x0c;
+    private static final int ROUNDS_SHIFT = 4;
+    private static final int ROUNDS_MASK = 0xf0;
+
+    final int N;
+    final int M;
+    private final byte[] edges; //2c east, 2c + 1 south, see SimulationCore
+    private boolean mixedDirections; //see SimulationCore.directionsChanged()
+
+    /**
+     * Allocates an N x M grid with every value 0.
+     *
+     * @param N - int - num rows
+     * @param M - int - num cols
+     */
+    CompactGrid(int N, int M) {
+        if (N < 2 || M < 2 || 2L * N * M > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The grid must be at least 2x2"
+                    + " and have fewer than 2^30 neurons");
+        }
+        this.N = N;
+        this.M = M;
+        edges = new byte[2 * N * M];
+    }
+
+    /**
+     * Allocates a grid of a precision.
+     *
+     * @param N - int - num rows
+     * @param M - int - num cols
+     * @param precision - String - "float" or "fixed"
+     * @return the grid
+     */
+    static CompactGrid create(int N, int M, String precision) {
+        switch (precision) {
+            case "float":
+                return new FloatGrid(N, M);
+            case "fixed":
+                return new FixedGrid(N, M);
+            default:
+                throw new IllegalArgumentException("Unknown precision "
+                        + precision + ", expected float or fixed");
+        }
+    }
+
+    abstract double state(int c);
+
+    abstract void setState(int c, double s);
+
+    abstract double next(int c);
+
+    abstract void setNext(int c, double s);
+
+    abstract double leak(int c);
+
+    abstract void setLeak(int c, double leak);
+
+    /**
+     * Makes the new states the current ones.
+     */
+    abstract void swap();
+
+    /**
+     * Gets the bytes stored for every neuron and its two synapses.
+     */
+    abstract int getBytesPerCell();
+
+    /**
+     * Gets the precision, as passed to create().
+     */
+    abstract String getPrecision();
+
+    /**
+     * Draws the leak rates and synapses of a new grid like the constructor
+     * of a SimulationCore on the heap, in parallel for large grids.
+     *
+     * @param setup - String - "Random" or "Structured"
+     * @param random - RandomSource - source of all random numbers of the run
+     */
+    void setUp(String setup, final RandomSource random) {
+        final boolean structured = setup.equals("Structured");
+        final boolean known = structured || setup.equals("Random");
+        RowFill.fill(N, M, new RowFill.Rows() {
+            @Override
+            public void fill(int lo, int hi) {
+                setUpRows(lo, hi, random, structured, known);
+            }
+        });
+        long forward = 0;
+        long backward = 0;
+        for (int e = 0; e < edges.length; e++) {
+            if (direction(e) == SimulationCore.FORWARD) {
+                forward++;
+            } else if (direction(e) == SimulationCore.BACKWARD) {
+                backward++;
+            }
+        }
+        mixedDirections = Math.min(forward, backward)
+                > (forward + backward) / 10;
+    }
+
+    private void setUpRows(int lo, int hi, RandomSource random,
+            boolean structured, boolean known) {
+        for (int i = lo; i < hi; i++) {
+            for (int j = 0; j < M; j++) {
+                int c = i * M + j;
+                setLeak(c, SimulationCore.leakRate(random, c));
+                if (!known) {
+                    continue;
+                }
+                if (j < M - 1) {
+                    edges[2 * c] = pack(structured ? SimulationCore.FORWARD
+                            : SimulationCore.randomDirection(random, c,
+                                    SimulationCore.EAST),
+                            structured
+                            ? SimulationCore.DEFAULT_VERTICAL_THICKNESS
+                            : SimulationCore.randomThickness(random, c,
+                                    SimulationCore.EAST), 0);
+                }
+                if (i < N - 1) {
+                    edges[2 * c + 1] = pack(structured
+                            ? SimulationCore.FORWARD
+                            : SimulationCore.randomDirection(random, c,
+                                    SimulationCore.SOUTH),
+                            structured
+                            ? SimulationCore.DEFAULT_HORIZONTAL_THICKNESS
+                            : SimulationCore.randomThickness(random, c,
+                                    SimulationCore.SOUTH), 0);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void step(SimulationCore core) {
+        RandomSource random = core.getRandom();
+        int generation = core.getGeneration();
+        boolean auto = core.isAuto();
+        StepCounts counts = core.counts;
+        prepareRow(0, random, generation, auto, core);
+        for (int i = 0; i < N; i++) {
+            if (i + 1 < N) {
+                prepareRow(i + 1, random, generation, auto, core);
+            }
+            updateRow(i, core.maxRoundsSinceLTP, counts);
+        }
+        swap();
+    }
+
+    /**
+     * Starts the new states of one row from the current states, adding the
+     * random auto stimulation if it is on.
+     */
+    private void prepareRow(int i, RandomSource random, int generation,
+            boolean auto, SimulationCore core) {
+        int c = i * M;
+        for (int j = 0; j < M; j++, c++) {
+            double s = state(c);
+            if (auto) {
+                double amount = SimulationCore.autoStimulation(random,
+                        generation, c, core.stimulationCutoff,
+                        core.maxStimulation);
+                if (amount > 0) {
+                    s += amount;
+                }
+            }
+            setNext(c, s);
+        }
+    }
+
+    /**
+     * Fires the neurons of row i through their outgoing synapses, then
+     * applies the leak and ages the synapses, see
+     * SimulationCore.updateNeuron(). Row i + 1 must be prepared.
+     */
+    private void updateRow(int i, int maxRounds, StepCounts counts) {
+        int c = i * M;
+        for (int j = 0; j < M; j++, c++) {
+            double s = state(c);
+            double leak = leak(c);
+            if (s < leak + THRESHOLD_ABOVE_LEAK && mixedDirections && i > 0) {
+                //a neuron that does not fire in a grid of random directions;
+                //the synapses past the east and south borders have none
+                if (applyLeak(c, leak)) {
+                    ageSide(2 * (c - M) + 1, SimulationCore.BACKWARD,
+                            maxRounds, counts);
+                    ageSide(2 * c, SimulationCore.FORWARD, maxRounds, counts);
+                    ageSide(2 * c + 1, SimulationCore.FORWARD, maxRounds,
+                            counts);
+                    ageSide(2 * (c - 1), SimulationCore.BACKWARD, maxRounds,
+                            counts);
+                }
+                continue;
+            }
+
+            //outgoing edges, -1 if none
+            int north = i > 0 && direction(2 * (c - M) + 1)
+                    == SimulationCore.BACKWARD ? 2 * (c - M) + 1 : -1;
+            int east = direction(2 * c) == SimulationCore.FORWARD
+                    ? 2 * c : -1;
+            int south = direction(2 * c + 1) == SimulationCore.FORWARD
+                    ? 2 * c + 1 : -1;
+            int west = j > 0 && direction(2 * (c - 1))
+                    == SimulationCore.BACKWARD ? 2 * (c - 1) : -1;
+
+            if (s >= leak + THRESHOLD_ABOVE_LEAK) {
+                counts.fired++;
+                send(c, s, north, c - M, counts);
+                send(c, s, east, c + 1, counts);
+                send(c, s, south, c + M, counts);
+                send(c, s, west, c - 1, counts);
+            }
+
+            if (!applyLeak(c, leak)) {
+                continue;
+            }
+            age(north, maxRounds, counts);
+            age(east, maxRounds, counts);
+            age(south, maxRounds, counts);
+            age(west, maxRounds, counts);
+        }
+    }
+
+    /**
+     * Applies the leak to the new state of a neuron, unless it is negative.
+     *
+     * @return whether the leak was applied, then the synapses age too
+     */
+    private boolean applyLeak(int c, double leak) {
+        double newState = next(c);
+        if (newState < 0) {
+            return false;
+        }
+        setNext(c, newState > leak ? newState - leak : 0);
+        return true;
+    }
+
+    /**
+     * Fires a neuron through one of its synapses and adds the signal to the
+     * new state of the neuron on the other end, see SimulationCore.fire().
+     *
+     * @param c - int - index of the presynaptic neuron
+     * @param s - double - its state
+     * @param e - int - edge index of the synapse, -1 if there is none
+     * @param target - int - index of the postsynaptic neuron
+     * @param counts - StepCounts - where to count the LTP and the signal
+     */
+    private void send(int c, double s, int e, int target,
+            StepCounts counts) {
+        if (e < 0) {
+            return;
+        }
+        int resistance = resistance(e);
+        double signal;
+        if ((s - (resistance / SimulationCore.DEDUCTION_RATIO))
+                > SimulationCore.MAX_SIGNAL) {
+            signal = SimulationCore.MAX_SIGNAL;
+            setNext(c, s - SimulationCore.MAX_SIGNAL);
+        } else if ((s - resistance / SimulationCore.DEDUCTION_RATIO) > 0) {
+            signal = s - (resistance / SimulationCore.DEDUCTION_RATIO);
+            setNext(c, s - (s - resistance / SimulationCore.DEDUCTION_RATIO));
+        } else {
+            return;
+        }
+        edges[e] = pack(direction(e), Math.max(resistance - 1, 0), 0); //LTP
+        counts.potentiated++;
+        counts.signal += signal;
+        setNext(target, next(target) + signal);
+    }
+
+    /**
+     * Counts one more round without LTP for a synapse and depresses it once
+     * it has gone unused for too long.
+     */
+    private void age(int e, int maxRounds, StepCounts counts) {
+        if (e < 0) {
+            return;
+        }
+        int rounds = rounds(e) + 1;
+        if (rounds > maxRounds) {
+            edges[e] = pack(direction(e), Math.min(resistance(e) + 1,
+                    SimulationCore.MAX_RESISTANCE), 0); //LTD
+            counts.depressed++;
+        } else {
+            edges[e] = (byte) ((edges[e] & ~ROUNDS_MASK)
+                    | rounds << ROUNDS_SHIFT);
+        }
+    }
+
+    /**
+     * Ages the synapse on one side of a neuron if it is outgoing, without
+     * branching on the direction, see SimulationCore.ageSide().
+     *
+     * @param e - int - edge index of the synapse on that side
+     * @param outgoing - int - the direction in which it is outgoing
+     */
+    private void ageSide(int e, int outgoing, int maxRounds,
+            StepCounts counts) {
+        int edge = edges[e] & 0xff;
+        int add = (((edge & DIRECTION_MASK) ^ outgoing) - 1) >>> 31;
+        if ((edge >>> ROUNDS_SHIFT) + add > maxRounds && add != 0) {
+            edges[e] = pack(edge & DIRECTION_MASK, Math.min(
+                    ((edge & RESISTANCE_MASK) >>> RESISTANCE_SHIFT) + 1,
+                    SimulationCore.MAX_RESISTANCE), 0); //LTD
+            counts.depressed++;
+        } else {
+            edges[e] = (byte) (edge + (add << ROUNDS_SHIFT));
+        }
+    }
+
+    private static byte pack(int direction, int resistance, int rounds) {
+        return (byte) (direction | resistance << RESISTANCE_SHIFT
+                | rounds << ROUNDS_SHIFT);
+    }
+
+    private int direction(int e) {
+        return edges[e] & DIRECTION_MASK;
+    }
+
+    private int resistance(int e) {
+        return (edges[e] & RESISTANCE_MASK) >>> RESISTANCE_SHIFT;
+    }
+
+    private int rounds(int e) {
+        return (edges[e] & ROUNDS_MASK) >>> ROUNDS_SHIFT;
+    }
+
+    @Override
+    public double getState(int i, int j) {
+        return state(i * M + j);
+    }
+
+    @Override
+    public void addState(int i, int j, double amount) {
+        setState(i * M + j, state(i * M + j) + amount);
+    }
+
+    @Override
+    public double getLeakRate(int i, int j) {
+        return leak(i * M + j);
+    }
+
+    @Override
+    public double getThreshold(int i, int j) {
+        return leak(i * M + j) + THRESHOLD_ABOVE_LEAK;
+    }
+
+    @Override
+    public int getResistance(int e) {
+        return resistance(e);
+    }
+
+    @Override
+    public byte getDirection(int e) {
+        return (byte) direction(e);
+    }
+
+    @Override
+    public short getRoundsSinceLTP(int e) {
+        return (short) rounds(e);
+    }
+
+    int getN() {
+        return N;
+    }
+
+    int getM() {
+        return M;
+    }
+
+    /**
+     * Keeps the states and leak rates as floats, which have about 7 decimal
+     * digits.
+     */
+    static final class FloatGrid extends CompactGrid {
+
+        private float[] state;
+        private float[] next;
+        private final float[] leak;
+
+        FloatGrid(int N, int M) {
+            super(N, M);
+            state = new float[N * M];
+            next = new float[N * M];
+            leak = new float[N * M];
+        }
+
+        @Override
+        double state(int c) {
+            return state[c];
+        }
+
+        @Override
+        void setState(int c, double s) {
+            state[c] = (float) s;
+        }
+
+        @Override
+        double next(int c) {
+            return next[c];
+        }
+
+        @Override
+        void setNext(int c, double s) {
+            next[c] = (float) s;
+        }
+
+        @Override
+        double leak(int c) {
+            return leak[c];
+        }
+
+        @Override
+        void setLeak(int c, double leak) {
+            this.leak[c] = (float) leak;
+        }
+
+        @Override
+        void swap() {
+            float[] swap = state;
+            state = next;
+            next = swap;
+        }
+
+        @Override
+        int getBytesPerCell() {
+            return 3 * 4 + 2;
+        }
+
+        @Override
+        String getPrecision() {
+            return "float";
+        }
+    }
+
+    /**
+     * Keeps the states and leak rates as unsigned 16-bit fixed-point numbers.
+     * A state has 8 fractional bits, so it is stored to within 1/512 and is
+     * cut off at STATE_LIMIT; states are never negative, so a negative one
+     * is stored as 0. A leak rate is in [1, 2) and has 15 fractional bits.
+     */
+    static final class FixedGrid extends CompactGrid {
+
+        static final double STATE_ONE = 1 << 8;
+        static final double LEAK_ONE = 1 << 15;
+        static final double STATE_LIMIT = Character.MAX_VALUE / STATE_ONE;
+        //powers of two, so multiplying by them is exact and beats dividing
+        private static final double STATE_STEP = 1 / STATE_ONE;
+        private static final double LEAK_STEP = 1 / LEAK_ONE;
+
+        private char[] state;
+        private char[] next;
+        private final char[] leak;
+
+        FixedGrid(int N, int M) {
+            super(N, M);
+            state = new char[N * M];
+            next = new char[N * M];
+            leak = new char[N * M];
+        }
+
+        /**
+         * Rounds a value to the nearest fixed-point number, half up.
+         */
+        private static char toFixed(double value, double one) {
+            double fixed = value * one + 0.5;
+            if (fixed < 1) {
+                return 0;
+            }
+            return fixed >= Character.MAX_VALUE
+                    ? Character.MAX_VALUE : (char) fixed;
+        }
+
+        @Override
+        double state(int c) {
+            return state[c] * STATE_STEP;
+        }
+
+        @Override
+        void setState(int c, double s) {
+            state[c] = toFixed(s, STATE_ONE);
+        }
+
+        @Override
+        double next(int c) {
+            return next[c] * STATE_STEP;
+        }
+
+        @Override
+        void setNext(int c, double s) {
+            next[c] = toFixed(s, STATE_ONE);
+        }
+
+        @Override
+        double leak(int c) {
+            return leak[c] * LEAK_STEP;
+        }
+
+        @Override
+        void setLeak(int c, double leak) {
+            this.leak[c] = toFixed(leak, LEAK_ONE);
+        }
+
+        @Override
+        void swap() {
+            char[] swap = state;
+            state = next;
+            next = swap;
+        }
+
+        @Override
+        int getBytesPerCell() {
+            return 3 * 2 + 2;
+        }
+
+        @Override
+        String getPrecision() {
+            return "fixed";
+        }
+    }
+
+}
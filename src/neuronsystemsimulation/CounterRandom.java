@@ -0,0 +1,43 @@
+package neuronsystemsimulation;
+
+/**
+ * The CounterRandom is a counter based RandomSource: each number is a hash of
+ * the seed, the generation, the neuron and the draw. It keeps no state, so it
+ * can be shared by any number of threads without contention.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class CounterRandom implements RandomSource {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+    private final long seed;
+
+    public CounterRandom(long seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public double uniform(long generation, int cell, int draw) {
+        long h = mix(seed + GOLDEN_GAMMA * (generation + 2));
+        h = mix(h + GOLDEN_GAMMA * ((((long) cell) << 8) | (draw & 0xff)));
+        return (h >>> 11) * DOUBLE_UNIT;
+    }
+
+    @Override
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * The finalizer of SplitMix64.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+}
@@ -0,0 +1,400 @@
+package neuronsystemsimulation;
+
+import java.io.IOException;
+
+/**
+ * Checks that the fast engines compute exactly what the ReferenceCore
+ * computes. For every grid shape, setup, auto or manual stimulation and seed
+ * it builds the reference and each engine from the same RandomSource, clicks
+ * the same neurons in all of them, and after every generation compares the
+ * bits of every state and the resistance and rounds since LTP of every
+ * synapse. The first cell where an engine diverges is printed, that engine
+ * is not checked further, and the program exits with status 1. Usage:
+ * <pre>
+ * java -cp NeuronSystemSimulation.jar neuronsystemsimulation.DifferentialCheck
+ *         [generations] [seeds] [shapes, e.g. 2x2,3x7,40x40]
+ * </pre>
+ * -Dengines picks the engines (default all of ENGINES); "float" and "fixed"
+ * may be added to see how soon a CompactGrid diverges. -Dthreads sets the
+ * threads of the parallel engine (default 3), -Dblock.width the cols in a
+ * strip of the blocked engine (default 4), -Dclicks the neurons clicked
+ * before every generation (default 3). -Dmax.rounds and -Dstimulation change
+ * the rounds before LTD and the chance of auto stimulation in every run; the
+ * lattice engine only has the defaults and is skipped then. -Dpoisson adds a
+ * PoissonStimulus with that probability to every run, which only the engines
+ * on the heap take.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class DifferentialCheck {
+
+    static final String[] ENGINES = {"sequential", "parallel", "sparse",
+        "blocked", "offheap", "lattice"};
+    private static final String[] SETUPS = {"Random", "Structured"};
+    private static final int DEFAULT_GENERATIONS = 200;
+    private static final int DEFAULT_SEEDS = 5;
+    private static final String DEFAULT_SHAPES = "2x2,3x7,7x3,16x16,33x20";
+    private static final int DEFAULT_THREADS = 3;
+    private static final int DEFAULT_BLOCK_WIDTH = 4;
+    private static final int DEFAULT_CLICKS = 3;
+    private static final double MAX_CLICK = 2 * SimulationCore.MAX_SIGNAL;
+    private static final int[] SIDES = {SimulationCore.EAST,
+        SimulationCore.SOUTH}; //every synapse once
+
+    /**
+     * A simulation engine as the check sees it.
+     */
+    interface Engine {
+
+        void update();
+
+        void stimulate(int i, int j, double amount);
+
+        double getState(int i, int j);
+
+        int getResistance(int i, int j, int side);
+
+        int getRoundsSinceLTP(int i, int j, int side);
+
+        /**
+         * Releases the threads or memory of the engine.
+         *
+         * @throws IOException if an off-heap grid cannot be released
+         */
+        void close() throws IOException;
+    }
+
+    private final int threads = Integer.getInteger("threads",
+            DEFAULT_THREADS);
+    private final int blockWidth = Integer.getInteger("block.width",
+            DEFAULT_BLOCK_WIDTH);
+    private final Integer maxRounds = Integer.getInteger("max.rounds");
+    private final String stimulation = System.getProperty("stimulation");
+    private final String poisson = System.getProperty("poisson");
+    private String difference; //of the last run that diverged
+
+    public static void main(String[] args) throws IOException {
+        int generations = args.length > 0
+                ? Integer.parseInt(args[0]) : DEFAULT_GENERATIONS;
+        int seeds = args.length > 1
+                ? Integer.parseInt(args[1]) : DEFAULT_SEEDS;
+        String[] shapes = (args.length > 2 ? args[2] : DEFAULT_SHAPES)
+                .split(",");
+        String[] engines = System.getProperty("engines",
+                String.join(",", ENGINES)).split(",");
+        int clicks = Integer.getInteger("clicks", DEFAULT_CLICKS);
+
+        DifferentialCheck check = new DifferentialCheck();
+        boolean failed = false;
+        for (String engine : engines) {
+            String skip = check.skip(engine);
+            if (skip != null) {
+                System.out.printf("%-12s skipped, %s%n", engine, skip);
+                continue;
+            }
+            long runs = 0;
+            long checked = 0;
+            String divergence = null;
+            for (int s = 0; s < shapes.length && divergence == null; s++) {
+                String[] size = shapes[s].split("x");
+                int N = Integer.parseInt(size[0]);
+                int M = Integer.parseInt(size[1]);
+                for (int k = 0; k < 4 * seeds && divergence == null; k++) {
+                    String setup = SETUPS[k % 2];
+                    boolean auto = (k / 2) % 2 == 0;
+                    long seed = k / 4 + 1;
+                    String run = engine + ", " + N + "x" + M + " " + setup
+                            + (auto ? " auto" : " manual") + ", seed "
+                            + seed;
+                    int generation = check.run(engine, N, M, setup, auto,
+                            seed, generations, clicks);
+                    runs++;
+                    if (generation < 0) {
+                        checked += generations;
+                    } else {
+                        checked += generation;
+                        divergence = run + ", generation " + generation
+                                + ": " + check.difference;
+                    }
+                }
+            }
+            failed |= divergence != null;
+            System.out.printf("%-12s %s%n", engine, divergence == null
+                    ? "same as the reference in " + runs + " runs, "
+                    + checked + " generations" : "DIVERGED in " + divergence);
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Tells why an engine cannot run with the options given.
+     *
+     * @return the reason, null if it can run
+     */
+    private String skip(String engine) {
+        if (engine.equals("lattice") && (maxRounds != null
+                || stimulation != null || poisson != null)) {
+            return "it only has the default rules";
+        }
+        if (poisson != null && !engine.equals("sequential")
+                && !engine.equals("parallel") && !engine.equals("sparse")
+                && !engine.equals("blocked")) {
+            return "it has no stimulus source";
+        }
+        return null;
+    }
+
+    private StimulusSource stimulus(int N, int M, long seed) {
+        return new PoissonStimulus(N * M, Double.parseDouble(poisson),
+                SimulationCore.MAX_RANDOM_STIMULATION,
+                new CounterRandom(seed + 1));
+    }
+
+    /**
+     * Runs an engine side by side with the reference.
+     *
+     * @return the first generation that differs, -1 if none does
+     */
+    private int run(String name, int N, int M, String setup, boolean auto,
+            long seed, int generations, int clicks) throws IOException {
+        ReferenceCore reference = new ReferenceCore(N, M, setup,
+                new CounterRandom(seed));
+        reference.setAuto(auto);
+        if (maxRounds != null) {
+            reference.setMaxRoundsSinceLTP(maxRounds);
+        }
+        if (stimulation != null) {
+            reference.setStimulation(Double.parseDouble(stimulation),
+                    SimulationCore.MAX_RANDOM_STIMULATION);
+        }
+        if (poisson != null) {
+            reference.setStimulus(stimulus(N, M, seed));
+        }
+        Engine engine = create(name, N, M, setup, auto, seed);
+        RandomSource clicker = new CounterRandom(~seed);
+        try {
+            for (int g = 0; g <= generations; g++) {
+                if (g > 0) {
+                    for (int k = 0; k < clicks; k++) {
+                        int i = (int) (clicker.uniform(g, k, 0) * N);
+                        int j = (int) (clicker.uniform(g, k, 1) * M);
+                        double amount = clicker.uniform(g, k, 2) * MAX_CLICK;
+                        reference.stimulate(i, j, amount);
+                        engine.stimulate(i, j, amount);
+                    }
+                    reference.update();
+                    engine.update();
+                }
+                difference = compare(reference, engine);
+                if (difference != null) {
+                    return g;
+                }
+            }
+            return -1;
+        } finally {
+            engine.close();
+        }
+    }
+
+    /**
+     * Builds an engine with the same grid as new ReferenceCore(N, M, setup,
+     * new CounterRandom(seed)).
+     *
+     * @param name - String - one of ENGINES, or "float" or "fixed"
+     * @return the engine
+     */
+    private Engine create(String name, int N, int M, String setup,
+            boolean auto, long seed) throws IOException {
+        RandomSource random = new CounterRandom(seed);
+        if (name.equals("lattice")) {
+            NetworkCore network = new NetworkCore(Topology.lattice(N, M,
+                    setup, random), random);
+            network.setAuto(auto);
+            return lattice(network, M);
+        }
+        SimulationCore core;
+        switch (name) {
+            case "sequential":
+            case "parallel":
+            case "sparse":
+            case "blocked":
+                core = new SimulationCore(N, M, setup, random);
+                break;
+            case "offheap":
+                core = SimulationCore.offHeap(N, M, setup, random, null);
+                break;
+            case "float":
+            case "fixed":
+                core = SimulationCore.compact(N, M, setup, random, name);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown engine " + name);
+        }
+        if (name.equals("parallel")) {
+            core.setThreads(threads);
+        } else if (name.equals("sparse")) {
+            core.setSparse(true);
+        } else if (name.equals("blocked")) {
+            core.setBlockWidth(blockWidth);
+        }
+        core.setAuto(auto);
+        if (maxRounds != null) {
+            core.setMaxRoundsSinceLTP(maxRounds);
+        }
+        if (stimulation != null) {
+            core.setStimulation(Double.parseDouble(stimulation),
+                    SimulationCore.MAX_RANDOM_STIMULATION);
+        }
+        if (poisson != null) {
+            core.setStimulus(stimulus(N, M, seed));
+        }
+        return grid(core);
+    }
+
+    private static Engine grid(final SimulationCore core) {
+        return new Engine() {
+            @Override
+            public void update() {
+                core.update();
+            }
+
+            @Override
+            public void stimulate(int i, int j, double amount) {
+                core.stimulate(i, j, amount);
+            }
+
+            @Override
+            public double getState(int i, int j) {
+                return core.getState(i, j);
+            }
+
+            @Override
+            public int getResistance(int i, int j, int side) {
+                return core.getResistance(i, j, side);
+            }
+
+            @Override
+            public int getRoundsSinceLTP(int i, int j, int side) {
+                return core.getRoundsSinceLTP(i, j, side);
+            }
+
+            @Override
+            public void close() throws IOException {
+                core.setThreads(1);
+                core.close();
+            }
+        };
+    }
+
+    /**
+     * Wraps a NetworkCore on Topology.lattice(); a synapse of the grid is the
+     * one between its two neurons in either direction.
+     */
+    private static Engine lattice(final NetworkCore network, final int M) {
+        return new Engine() {
+            @Override
+            public void update() {
+                network.update();
+            }
+
+            @Override
+            public void stimulate(int i, int j, double amount) {
+                network.stimulate(i * M + j, amount);
+            }
+
+            @Override
+            public double getState(int i, int j) {
+                return network.getState(i * M + j);
+            }
+
+            @Override
+            public int getResistance(int i, int j, int side) {
+                int k = synapse(i, j, side);
+                return k < 0 ? 0 : network.getResistance(k);
+            }
+
+            @Override
+            public int getRoundsSinceLTP(int i, int j, int side) {
+                int k = synapse(i, j, side);
+                return k < 0 ? 0 : network.roundsSinceLTP[k];
+            }
+
+            private int synapse(int i, int j, int side) {
+                int N = network.getSize() / M;
+                if (SimulationCore.edgeIndex(N, M, i, j, side) < 0) {
+                    return -1;
+                }
+                int a = i * M + j;
+                int b = side == SimulationCore.EAST ? a + 1 : a + M;
+                int k = find(a, b);
+                return k >= 0 ? k : find(b, a);
+            }
+
+            private int find(int from, int to) {
+                Topology topology = network.getTopology();
+                int first = topology.getStart(from);
+                for (int k = first; k < first + topology.getDegree(from);
+                        k++) {
+                    if (topology.getTarget(k) == to) {
+                        return k;
+                    }
+                }
+                return -1;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Compares an engine with the reference.
+     *
+     * @return the first difference, null if there is none
+     */
+    private static String compare(ReferenceCore reference, Engine engine) {
+        int N = reference.getN();
+        int M = reference.getM();
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < M; j++) {
+                double expected = reference.getState(i, j);
+                double actual = engine.getState(i, j);
+                if (Double.doubleToLongBits(expected)
+                        != Double.doubleToLongBits(actual)) {
+                    return "cell (" + i + ", " + j + ") state " + actual
+                            + ", reference " + expected;
+                }
+                for (int side : SIDES) {
+                    int expectedResistance = reference.getResistance(i, j,
+                            side);
+                    int actualResistance = engine.getResistance(i, j, side);
+                    if (actualResistance != expectedResistance) {
+                        return synapse(i, j, side) + "resistance "
+                                + actualResistance + ", reference "
+                                + expectedResistance;
+                    }
+                    int expectedRounds = reference.getRoundsSinceLTP(i, j,
+                            side);
+                    int actualRounds = engine.getRoundsSinceLTP(i, j, side);
+                    if (actualRounds != expectedRounds) {
+                        return synapse(i, j, side) + "rounds since LTP "
+                                + actualRounds + ", reference "
+                                + expectedRounds;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String synapse(int i, int j, int side) {
+        return "cell (" + i + ", " + j + ") "
+                + (side == SimulationCore.EAST ? "east" : "south")
+                + " synapse ";
+    }
+
+}
@@ -0,0 +1,277 @@
+package neuronsystemsimulation;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The DistributedSimulation splits a grid into bands of rows and has each
+ * band updated by a TileWorker process, so a grid can use the memory and
+ * cores of several machines. The workers exchange the signals crossing the
+ * band edges directly with each other, see Tile; the coordinator only tells
+ * them what to build and how many generations to run, and adds up their
+ * statistics. The result is the same as running the whole grid in a
+ * SimulationCore with the same seed. Usage:
+ * <pre>
+ * java -cp NeuronSystemSimulation.jar
+ *         neuronsystemsimulation.DistributedSimulation
+ *         [rows] [cols] [generations] [Random|Structured] [auto|manual] [seed]
+ * </pre>
+ * With -Dworkers=host:port,host:port,... it uses TileWorkers that are
+ * already running, one band each in that order; otherwise it starts
+ * -Dworkers.local of them on this machine (default 2).
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class DistributedSimulation implements Closeable {
+
+    private static final int DEFAULT_N = 1000;
+    private static final int DEFAULT_M = 1000;
+    private static final int DEFAULT_GENERATIONS = 100;
+    private static final int DEFAULT_LOCAL_WORKERS = 2;
+    private static final int CONFIGURE_BYTES = 1 << 10;
+
+    private final List<InetSocketAddress> addresses;
+    private final List<MessageChannel> workers = new ArrayList<>();
+    private final List<Process> processes = new ArrayList<>();
+    private final GenerationStats stats = new GenerationStats();
+    private int N;
+    private int M;
+    private long runNanos;
+
+    /**
+     * Connects to running workers.
+     *
+     * @param addresses - List - where the workers listen, one per band
+     * @throws IOException if a worker cannot be reached
+     */
+    public DistributedSimulation(List<InetSocketAddress> addresses)
+            throws IOException {
+        this.addresses = new ArrayList<>(addresses);
+        for (InetSocketAddress address : addresses) {
+            workers.add(new MessageChannel(SocketChannel.open(address)));
+        }
+    }
+
+    /**
+     * Starts workers on this machine, listening on the loopback address, and
+     * connects to them.
+     *
+     * @param count - int - number of workers
+     * @return the simulation, which stops the workers when it is closed
+     * @throws IOException if a worker cannot be started
+     */
+    public static DistributedSimulation local(int count) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin",
+                "java").toString();
+        List<Process> processes = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (int k = 0; k < count; k++) {
+            ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+                    System.getProperty("java.class.path"),
+                    TileWorker.class.getName(), "0",
+                    InetAddress.getLoopbackAddress().getHostAddress());
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            Process process = builder.start();
+            processes.add(process);
+            BufferedReader out = new BufferedReader(new InputStreamReader(
+                    process.getInputStream(), StandardCharsets.UTF_8));
+            String line = out.readLine();
+            if (line == null) {
+                for (Process p : processes) {
+                    p.destroy();
+                }
+                throw new IOException("A TileWorker did not start");
+            }
+            int port = Integer.parseInt(line.substring(
+                    line.lastIndexOf(' ') + 1));
+            addresses.add(new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), port));
+        }
+        DistributedSimulation simulation = new DistributedSimulation(
+                addresses);
+        simulation.processes.addAll(processes);
+        return simulation;
+    }
+
+    /**
+     * Has the workers build their bands of a new grid and connect to each
+     * other. Band k holds rows k * N / workers to (k + 1) * N / workers - 1.
+     *
+     * @param N - int - num rows, at least the number of workers
+     * @param M - int - num cols
+     * @param setup - String - "Random" or "Structured"
+     * @param seed - long - seed of the CounterRandom of the run
+     * @param auto - boolean - whether auto stimulation is on
+     * @throws IOException if a worker fails
+     */
+    public void build(int N, int M, String setup, long seed, boolean auto)
+            throws IOException {
+        int tiles = workers.size();
+        if (N < Math.max(2, tiles) || M < 2) {
+            throw new IllegalArgumentException("Need at least 2 cols and one"
+                    + " row per worker");
+        }
+        this.N = N;
+        this.M = M;
+        for (int k = 0; k < tiles; k++) {
+            ByteBuffer out = workers.get(k).begin(CONFIGURE_BYTES);
+            out.putInt(TileWorker.CONFIGURE);
+            out.putInt(N);
+            out.putInt(M);
+            out.putInt((int) ((long) k * N / tiles));
+            out.putInt((int) ((long) (k + 1) * N / tiles));
+            MessageChannel.putString(out, setup);
+            out.putLong(seed);
+            out.put((byte) (auto ? 1 : 0));
+            out.putDouble(1 - SimulationCore.STIMULATION_CUTOFF);
+            out.putDouble(SimulationCore.MAX_RANDOM_STIMULATION);
+            out.putInt(SimulationCore.MAX_ROUNDS_SINCE_LTP);
+            MessageChannel.putString(out, k > 0
+                    ? addresses.get(k - 1).getHostString() : "");
+            out.putInt(k > 0 ? addresses.get(k - 1).getPort() : 0);
+            out.put((byte) (k < tiles - 1 ? 1 : 0));
+            workers.get(k).send();
+        }
+        for (MessageChannel worker : workers) {
+            expect(worker.receive(), TileWorker.READY);
+        }
+    }
+
+    /**
+     * Runs generations on every worker and adds up their statistics.
+     *
+     * @param generations - int - number of generations
+     * @return the statistics of the whole grid after the last generation
+     * @throws IOException if a worker fails
+     */
+    public GenerationStats run(int generations) throws IOException {
+        for (MessageChannel worker : workers) {
+            worker.begin(8).putInt(TileWorker.RUN).putInt(generations);
+            worker.send();
+        }
+        runNanos = 0;
+        for (int k = 0; k < workers.size(); k++) {
+            ByteBuffer in = workers.get(k).receive();
+            expect(in, TileWorker.DONE);
+            int generation = in.getInt();
+            if (k == 0) {
+                stats.clear(N, M, generation);
+            }
+            runNanos = Math.max(runNanos, in.getLong());
+            stats.addBand(in);
+        }
+        return stats;
+    }
+
+    /**
+     * Gets how long the slowest worker took for the last run().
+     */
+    public long getRunNanos() {
+        return runNanos;
+    }
+
+    public int getWorkers() {
+        return workers.size();
+    }
+
+    private static void expect(ByteBuffer in, int type) throws IOException {
+        int actual = in.getInt();
+        if (actual != type) {
+            throw new IOException("Expected message " + type + " from a"
+                    + " worker, got " + actual);
+        }
+    }
+
+    /**
+     * Stops the workers and waits for the ones this started to exit.
+     */
+    @Override
+    public void close() throws IOException {
+        for (MessageChannel worker : workers) {
+            try {
+                worker.begin(4).putInt(TileWorker.STOP);
+                worker.send();
+            } catch (IOException e) {
+                //the worker is gone already
+            }
+            worker.close();
+        }
+        for (Process process : processes) {
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int N = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_N;
+        int M = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_M;
+        int generations = args.length > 2
+                ? Integer.parseInt(args[2]) : DEFAULT_GENERATIONS;
+        String setup = args.length > 3 ? args[3] : "Random";
+        boolean auto = args.length <= 4 || args[4].equals("auto");
+        long seed = args.length > 5
+                ? Long.parseLong(args[5]) : System.nanoTime();
+
+        long start = System.nanoTime();
+        String hosts = System.getProperty("workers");
+        try (DistributedSimulation simulation = hosts != null
+                ? new DistributedSimulation(parse(hosts))
+                : local(Integer.getInteger("workers.local",
+                        DEFAULT_LOCAL_WORKERS))) {
+            simulation.build(N, M, setup, seed, auto);
+            long built = System.nanoTime();
+            GenerationStats stats = simulation.run(generations);
+            long cellGenerations = (long) N * M * stats.getGeneration();
+
+            System.out.println("Grid: " + N + "x" + M + " " + setup
+                    + (auto ? " auto" : " manual") + " stimulation, seed "
+                    + seed);
+            System.out.println("Generations: " + stats.getGeneration()
+                    + " on " + simulation.getWorkers() + " worker(s)");
+            System.out.printf("Build time: %.1f ms%n", (built - start) / 1e6);
+            System.out.printf("Run time: %.1f ms (%.2f ns per"
+                    + " cell-generation)%n", simulation.getRunNanos() / 1e6,
+                    cellGenerations == 0 ? 0.0
+                            : (double) simulation.getRunNanos()
+                            / cellGenerations);
+            System.out.println("Active neurons: " + stats.getActive());
+            System.out.println("Neurons above threshold: "
+                    + stats.getAboveThreshold());
+            System.out.printf("Mean state: %.4f, max state: %.4f%n",
+                    stats.getMeanState(), stats.getMaxState());
+            for (int r = 0; r < SimulationCore.NUM_THICKNESSES; r++) {
+                System.out.println("Synapses with resistance " + r + ": "
+                        + stats.getResistanceCount(r));
+            }
+        }
+    }
+
+    /**
+     * Parses a list of workers such as "node1:7000,node2:7000".
+     */
+    private static List<InetSocketAddress> parse(String hosts) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String host : hosts.split(",")) {
+            int colon = host.lastIndexOf(':');
+            addresses.add(new InetSocketAddress(host.substring(0, colon),
+                    Integer.parseInt(host.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+}
@@ -0,0 +1,119 @@
+package neuronsystemsimulation;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The FileStimulus plays a stream of stimulations from a text file, e.g. one
+ * recorded from a sensor or written by another program. Every line is one
+ * stimulation, in order of generation:
+ * <pre>
+ * # generation row col amount
+ * 1 0 3 2.5
+ * 1 4 4 1.0
+ * 7 2 2 3.0
+ * </pre>
+ * Fields are separated by spaces or commas, and lines starting with # are
+ * skipped. The file is read as the generations come, so it can be longer
+ * than the memory; lines for generations that are already past when the
+ * source is attached are skipped.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class FileStimulus implements StimulusSource, Closeable {
+
+    private final Path file;
+    private final BufferedReader in;
+    private final int M;
+    private int lineNumber;
+    private boolean pending; //the line below has been read but not used
+    private int generation;
+    private int cell;
+    private double amount;
+
+    /**
+     * Opens a stimulus file.
+     *
+     * @param file - Path - the stimulations
+     * @param M - int - num cols of the grid
+     * @throws IOException if the file cannot be opened
+     */
+    public FileStimulus(Path file, int M) throws IOException {
+        this.file = file;
+        this.M = M;
+        in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds the stimulations of a generation.
+     *
+     * @throws UncheckedIOException if the file cannot be read or a line is
+     * not a stimulation
+     */
+    @Override
+    public void fill(int g, Stimuli out) {
+        try {
+            while (pending || next()) {
+                if (generation > g) {
+                    return;
+                }
+                pending = false;
+                if (generation == g) {
+                    out.add(cell, amount);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads the next stimulation.
+     *
+     * @return false at the end of the file
+     */
+    private boolean next() throws IOException {
+        String line;
+        do {
+            line = in.readLine();
+            if (line == null) {
+                return false;
+            }
+            lineNumber++;
+            line = line.trim();
+        } while (line.isEmpty() || line.startsWith("#"));
+        String[] fields = line.split("[,\\s]+");
+        try {
+            if (fields.length != 4) {
+                throw new NumberFormatException("4 fields expected");
+            }
+            int g = Integer.parseInt(fields[0]);
+            int i = Integer.parseInt(fields[1]);
+            int j = Integer.parseInt(fields[2]);
+            if (g < generation || j < 0 || j >= M) {
+                throw new NumberFormatException(g < generation
+                        ? "generations must not decrease" : "no such col");
+            }
+            generation = g;
+            cell = i * M + j;
+            amount = Double.parseDouble(fields[3]);
+        } catch (NumberFormatException e) {
+            throw new IOException(file + ": line " + lineNumber + ": "
+                    + e.getMessage());
+        }
+        pending = true;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
@@ -0,0 +1,72 @@
+package neuronsystemsimulation;
+
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import javax.swing.JComponent;
+
+/**
+ * The GenerationLabel shows "Generation: n". The digits are written into a
+ * char array and drawn from it, so showing a new generation does not build a
+ * String every time like a JLabel would.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class GenerationLabel extends JComponent {
+
+    private static final String PREFIX = "Generation: ";
+    private static final int MAX_DIGITS = 10; //enough for any int
+
+    private final char[] text = new char[PREFIX.length() + MAX_DIGITS];
+    private int length;
+    private int generation = -1;
+
+    GenerationLabel(int generation) {
+        PREFIX.getChars(0, PREFIX.length(), text, 0);
+        setGeneration(generation);
+    }
+
+    /**
+     * Shows a generation.
+     *
+     * @param generation - int - the generation, not negative
+     */
+    public void setGeneration(int generation) {
+        if (generation == this.generation) {
+            return;
+        }
+        this.generation = generation;
+        int digits = 1;
+        for (int g = generation / 10; g > 0; g /= 10) {
+            digits++;
+        }
+        length = PREFIX.length() + digits;
+        for (int k = length - 1, g = generation; k >= PREFIX.length();
+                k--, g /= 10) {
+            text[k] = (char) ('0' + g % 10);
+        }
+        repaint();
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        FontMetrics metrics = getFontMetrics(getFont());
+        //wide enough for a 7 digit generation, so the layout does not jump
+        return new Dimension(metrics.stringWidth(PREFIX + "0000000"),
+                metrics.getHeight());
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        FontMetrics metrics = g.getFontMetrics();
+        g.setColor(getForeground());
+        g.drawChars(text, 0, length, 0, metrics.getAscent());
+    }
+
+}
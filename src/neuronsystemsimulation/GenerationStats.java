@@ -0,0 +1,164 @@
+package neuronsystemsimulation;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The GenerationStats holds summary statistics of one generation of a
+ * SimulationCore: how many neurons are active and above threshold, the mean
+ * and max state, and how many synapses have each resistance. capture() reads
+ * the arrays of the core directly and reuses this object, so it can run every
+ * generation without allocating.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class GenerationStats {
+
+    private int N;
+    private int M;
+    private int generation;
+    private int active;
+    private int aboveThreshold;
+    private double total;
+    private double max;
+    private final long[] resistances = new long[SimulationCore.NUM_THICKNESSES];
+
+    /**
+     * Computes the statistics of the current generation of a core.
+     *
+     * @param core - SimulationCore - the simulation to summarize
+     */
+    public void capture(SimulationCore core) {
+        synchronized (core) {
+            core.settle();
+            clear(core.getN(), core.getM(), core.getGeneration());
+            GridStore grid = core.getGrid();
+            if (grid != null) {
+                capture(grid);
+                return;
+            }
+            double[] state = core.state;
+            double[] threshold = core.threshold;
+            byte[] resistance = core.resistance;
+            for (int i = 0; i < N; i++) {
+                int c = i * M;
+                for (int j = 0; j < M; j++, c++) {
+                    double s = state[c];
+                    if (s > 0) {
+                        active++;
+                    }
+                    if (s >= threshold[c]) {
+                        aboveThreshold++;
+                    }
+                    total += s;
+                    if (s > max) {
+                        max = s;
+                    }
+                    //count each synapse once, from its east and south sides
+                    if (j < M - 1) {
+                        resistances[resistance[2 * c]]++;
+                    }
+                    if (i < N - 1) {
+                        resistances[resistance[2 * c + 1]]++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds up the statistics of an off-heap or compact grid through its
+     * accessors.
+     */
+    private void capture(GridStore grid) {
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < M; j++) {
+                double s = grid.getState(i, j);
+                if (s > 0) {
+                    active++;
+                }
+                if (s >= grid.getThreshold(i, j)) {
+                    aboveThreshold++;
+                }
+                total += s;
+                if (s > max) {
+                    max = s;
+                }
+                int c = i * M + j;
+                if (j < M - 1) {
+                    resistances[grid.getResistance(2 * c)]++;
+                }
+                if (i < N - 1) {
+                    resistances[grid.getResistance(2 * c + 1)]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Resets the statistics, before a capture or before adding up the bands
+     * of a grid that is split into Tiles.
+     *
+     * @param N - int - num rows of the whole grid
+     * @param M - int - num cols
+     * @param generation - int - the generation of the bands
+     */
+    void clear(int N, int M, int generation) {
+        this.N = N;
+        this.M = M;
+        this.generation = generation;
+        active = 0;
+        aboveThreshold = 0;
+        total = 0;
+        max = 0;
+        for (int r = 0; r < resistances.length; r++) {
+            resistances[r] = 0;
+        }
+    }
+
+    /**
+     * Adds the statistics of one band, as written by Tile.putStats().
+     *
+     * @param in - ByteBuffer - the statistics of the band
+     */
+    void addBand(ByteBuffer in) {
+        active += in.getInt();
+        aboveThreshold += in.getInt();
+        total += in.getDouble();
+        max = Math.max(max, in.getDouble());
+        for (int r = 0; r < resistances.length; r++) {
+            resistances[r] += in.getLong();
+        }
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    public int getActive() {
+        return active;
+    }
+
+    public int getAboveThreshold() {
+        return aboveThreshold;
+    }
+
+    public double getMeanState() {
+        return total / ((double) N * M);
+    }
+
+    public double getMaxState() {
+        return max;
+    }
+
+    /**
+     * Gets how many synapses have a resistance.
+     *
+     * @param r - int - the resistance, 0 to MAX_RESISTANCE
+     * @return the number of synapses with that resistance
+     */
+    public long getResistanceCount(int r) {
+        return resistances[r];
+    }
+
+}
@@ -0,0 +1,36 @@
+package neuronsystemsimulation;
+
+/**
+ * A GridStore keeps the neurons and synapses of a SimulationCore somewhere
+ * other than its arrays: outside the heap in an OffHeapGrid, or with fewer
+ * bytes per cell in a CompactGrid. The core hands its update and its
+ * accessors to the store; edges are numbered as in SimulationCore.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+interface GridStore {
+
+    /**
+     * Updates every neuron for the current generation of a core, with the
+     * same rules and in the same order as SimulationCore.update().
+     *
+     * @param core - SimulationCore - the core the store belongs to
+     */
+    void step(SimulationCore core);
+
+    double getState(int i, int j);
+
+    void addState(int i, int j, double amount);
+
+    double getLeakRate(int i, int j);
+
+    double getThreshold(int i, int j);
+
+    int getResistance(int e);
+
+    byte getDirection(int e);
+
+    short getRoundsSinceLTP(int e);
+
+}
@@ -0,0 +1,352 @@
+package neuronsystemsimulation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import javax.management.JMException;
+
+/**
+ * Runs a SimulationCore without any Swing components and prints summary
+ * statistics. Usage:
+ * <pre>
+ * java -cp NeuronSystemSimulation.jar neuronsystemsimulation.HeadlessSimulation
+ *         [rows] [cols] [generations] [Random|Structured] [auto|manual]
+ *         [threads|sparse] [seed]
+ * </pre>
+ * With -Dcheckpoint.dir=(directory) the run is saved there every
+ * checkpoint.every generations (default 1000), keeping the newest
+ * checkpoint.keep incremental checkpoints (default 2). With
+ * -Dcheckpoint.restore=(directory) the run continues from the newest
+ * checkpoint in that directory instead of building a new grid; rows, cols,
+ * setup and seed are then taken from the checkpoint. With
+ * -Drecord=(file) the fired neurons, LTP and LTD of every generation are
+ * streamed to that file by an ActivityRecorder, with a keyframe every
+ * record.every generations (default 256). With -Drecord.block=true the run
+ * waits for the recorder instead of dropping generations.
+ * <p>
+ * With -Dtopology=(lattice|torus|moore|moore-torus|smallworld|scalefree) the
+ * rows x cols neurons are connected by that Topology and run on a
+ * NetworkCore. smallworld sends -Dtopology.degree synapses out of every
+ * neuron (default 8) and rewires them with probability -Dtopology.rewire
+ * (default 0.1); scalefree connects every new neuron to -Dtopology.degree
+ * earlier ones.
+ * <p>
+ * With -Dmetrics=true the run is watched by a SimulationMetrics registered
+ * as an MXBean named "headless"; with -Dmetrics.port=(port) the metrics are
+ * also served as text on http://localhost:(port)/metrics.
+ * <p>
+ * With -Doffheap=true the grid is kept outside the Java heap in direct
+ * buffers, for grids larger than the heap. With -Doffheap.file=(file) it is
+ * mapped to that file instead and saved there when the run is done; if the
+ * file already holds a grid the run continues from it, and rows, cols, setup
+ * and seed are taken from the file. An off-heap grid runs on one thread.
+ * <p>
+ * With -Dprecision=(float|fixed) the grid is kept in a CompactGrid, in
+ * floats or 16-bit fixed-point numbers instead of doubles, which also runs on
+ * one thread; -Dprecision=double is the default. PrecisionDrift shows how far
+ * such a run drifts from the one in doubles.
+ * <p>
+ * With -Dstimulus=poisson:(probability)[:(max)] every neuron also spikes at
+ * random through a PoissonStimulus (max defaults to 3), restricted to the
+ * nonzero cells of a pattern file with -Dstimulus.region=(file). With
+ * -Dstimulus=pattern:(file)[:(period)] a PatternStimulus flashes the pattern
+ * every period generations (default 1), and with -Dstimulus=file:(file) a
+ * FileStimulus plays the stimulations in the file. Use manual stimulation to
+ * turn the per-neuron coin flip of the auto stimulation off.
+ * <p>
+ * With -Dblock=(cols) a grid on one thread is updated in strips of that many
+ * cols instead of row by row, which keeps wide grids in the cache;
+ * -Dblock=true picks a width of 256 cols.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class HeadlessSimulation {
+
+    private static final int DEFAULT_N = 1000;
+    private static final int DEFAULT_M = 1000;
+    private static final int DEFAULT_GENERATIONS = 100;
+    private static final int DEFAULT_CHECKPOINT_EVERY = 1000;
+    private static final int DEFAULT_CHECKPOINT_KEEP = 2;
+    private static final int DEFAULT_DEGREE = 8;
+    private static final double DEFAULT_REWIRE = 0.1;
+
+    public static void main(String[] args) throws IOException {
+        int N = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_N;
+        int M = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_M;
+        int generations = args.length > 2
+                ? Integer.parseInt(args[2]) : DEFAULT_GENERATIONS;
+        String setup = args.length > 3 ? args[3] : "Random";
+        boolean auto = args.length <= 4 || args[4].equals("auto");
+        boolean sparse = args.length > 5 && args[5].equals("sparse");
+        int threads = args.length > 5 && !sparse
+                ? Integer.parseInt(args[5]) : 1;
+        long seed = args.length > 6
+                ? Long.parseLong(args[6]) : System.nanoTime();
+
+        if (System.getProperty("topology") != null) {
+            runNetwork(System.getProperty("topology"), N, M, generations,
+                    setup, auto, seed);
+            return;
+        }
+
+        String restore = System.getProperty("checkpoint.restore");
+        String checkpointDir = System.getProperty("checkpoint.dir");
+        String offHeapFile = System.getProperty("offheap.file");
+        String precision = System.getProperty("precision", "double");
+
+        long start = System.nanoTime();
+        SimulationCore core;
+        if (offHeapFile != null && Files.exists(Paths.get(offHeapFile))
+                && Files.size(Paths.get(offHeapFile)) > 0) {
+            core = SimulationCore.openOffHeap(Paths.get(offHeapFile));
+        } else if (offHeapFile != null || Boolean.getBoolean("offheap")) {
+            core = SimulationCore.offHeap(N, M, setup, new CounterRandom(seed),
+                    offHeapFile == null ? null : Paths.get(offHeapFile));
+            core.setAuto(auto);
+        } else if (!precision.equals("double")) {
+            core = SimulationCore.compact(N, M, setup, new CounterRandom(seed),
+                    precision);
+            core.setAuto(auto);
+        } else if (restore != null) {
+            core = Checkpointer.restoreLatest(Paths.get(restore));
+        } else {
+            core = new SimulationCore(N, M, setup, new CounterRandom(seed));
+            core.setAuto(auto);
+        }
+        StimulusSource stimulus = null;
+        if (System.getProperty("stimulus") != null) {
+            stimulus = stimulus(System.getProperty("stimulus"), core);
+            core.setStimulus(stimulus);
+        }
+        long built = System.nanoTime();
+        core.setThreads(threads);
+        core.setSparse(sparse);
+        String block = System.getProperty("block");
+        if (block != null && threads == 1 && !sparse) {
+            core.setBlockWidth(block.equals("true")
+                    ? BlockedStep.DEFAULT_WIDTH : Integer.parseInt(block));
+        }
+        Checkpointer checkpointer = null;
+        if (checkpointDir != null) {
+            checkpointer = new Checkpointer(core, Paths.get(checkpointDir),
+                    Integer.getInteger("checkpoint.every",
+                            DEFAULT_CHECKPOINT_EVERY),
+                    Integer.getInteger("checkpoint.keep",
+                            DEFAULT_CHECKPOINT_KEEP));
+            checkpointer.checkpoint();
+        }
+        ActivityRecorder recorder = null;
+        if (System.getProperty("record") != null) {
+            recorder = new ActivityRecorder(core,
+                    Paths.get(System.getProperty("record")),
+                    ActivityRecorder.DEFAULT_FRAMES,
+                    Integer.getInteger("record.every",
+                            ActivityRecorder.DEFAULT_KEYFRAME_EVERY),
+                    Boolean.getBoolean("record.block"));
+            core.setRecorder(recorder);
+        }
+        SimulationMetrics metrics = null;
+        MetricsServer metricsServer = null;
+        Integer metricsPort = Integer.getInteger("metrics.port");
+        if (Boolean.getBoolean("metrics") || metricsPort != null) {
+            metrics = new SimulationMetrics(core);
+            try {
+                metrics.register("headless");
+            } catch (JMException e) {
+                throw new IOException("Could not register the metrics", e);
+            }
+            if (metricsPort != null) {
+                metricsServer = new MetricsServer(metrics, metricsPort);
+                System.out.println("Metrics on http://localhost:"
+                        + metricsServer.getPort() + "/metrics");
+            }
+        }
+        for (int g = 0; g < generations; g++) {
+            core.update();
+            if (checkpointer != null) {
+                checkpointer.generationDone();
+            }
+        }
+        long done = System.nanoTime();
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+        if (metrics != null) {
+            System.out.printf("Step time p50 %.3f ms, p99 %.3f ms, max %.3f ms"
+                    + "%n", metrics.getStepMillisP50(),
+                    metrics.getStepMillisP99(), metrics.getStepMillisMax());
+        }
+        if (recorder != null) {
+            recorder.close();
+            System.out.println("Recorded to " + System.getProperty("record")
+                    + ", dropped generations: " + recorder.getDropped());
+        }
+
+        if (stimulus instanceof FileStimulus) {
+            ((FileStimulus) stimulus).close();
+        }
+
+        printSummary(core, built - start, done - built);
+        core.close();
+        if (offHeapFile != null) {
+            System.out.println("Saved to " + offHeapFile);
+        }
+    }
+
+    /**
+     * Creates the StimulusSource described by -Dstimulus. The spikes of a
+     * PoissonStimulus are drawn with the seed of the core plus one.
+     *
+     * @param spec - String - e.g. "poisson:0.05", "pattern:bar.txt:10" or
+     * "file:input.txt"
+     * @param core - SimulationCore - the core the source is for
+     * @return the source
+     * @throws IOException if a file cannot be read
+     */
+    private static StimulusSource stimulus(String spec, SimulationCore core)
+            throws IOException {
+        String[] parts = spec.split(":");
+        int M = core.getM();
+        switch (parts[0]) {
+            case "poisson":
+                double probability = Double.parseDouble(parts[1]);
+                double max = parts.length > 2 ? Double.parseDouble(parts[2])
+                        : SimulationCore.MAX_RANDOM_STIMULATION;
+                RandomSource random = new CounterRandom(
+                        core.getRandom().getSeed() + 1);
+                String region = System.getProperty("stimulus.region");
+                if (region != null) {
+                    return new PoissonStimulus(PatternStimulus.read(
+                            Paths.get(region), M, 1).getCells(), probability,
+                            max, random);
+                }
+                return new PoissonStimulus(core.getN() * M, probability, max,
+                        random);
+            case "pattern":
+                return PatternStimulus.read(Paths.get(parts[1]), M,
+                        parts.length > 2 ? Integer.parseInt(parts[2]) : 1);
+            case "file":
+                return new FileStimulus(Paths.get(parts[1]), M);
+            default:
+                throw new IllegalArgumentException("Unknown stimulus "
+                        + spec);
+        }
+    }
+
+    /**
+     * Builds a Topology, runs it on a NetworkCore and prints a summary.
+     */
+    private static void runNetwork(String shape, int N, int M,
+            int generations, String setup, boolean auto, long seed) {
+        RandomSource random = new CounterRandom(seed);
+        int degree = Integer.getInteger("topology.degree", DEFAULT_DEGREE);
+        long start = System.nanoTime();
+        Topology topology;
+        switch (shape) {
+            case "lattice":
+                topology = Topology.lattice(N, M, setup, random);
+                break;
+            case "torus":
+                topology = Topology.torus(N, M, setup, random);
+                break;
+            case "moore":
+                topology = Topology.moore(N, M, setup, random, false);
+                break;
+            case "moore-torus":
+                topology = Topology.moore(N, M, setup, random, true);
+                break;
+            case "smallworld":
+                topology = Topology.smallWorld(N * M, degree,
+                        Double.parseDouble(System.getProperty(
+                                "topology.rewire", "" + DEFAULT_REWIRE)),
+                        random);
+                break;
+            case "scalefree":
+                topology = Topology.scaleFree(N * M, degree, random);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown topology "
+                        + shape);
+        }
+        NetworkCore core = new NetworkCore(topology, random);
+        long built = System.nanoTime();
+        core.setAuto(auto);
+        for (int g = 0; g < generations; g++) {
+            core.update();
+        }
+        long done = System.nanoTime();
+
+        int active = 0;
+        double total = 0;
+        for (int c = 0; c < core.getSize(); c++) {
+            if (core.getState(c) > 0) {
+                active++;
+            }
+            total += core.getState(c);
+        }
+        long[] resistances = new long[SimulationCore.NUM_THICKNESSES];
+        for (int k = 0; k < topology.getSynapses(); k++) {
+            resistances[core.getResistance(k)]++;
+        }
+        long synapseGenerations = (long) topology.getSynapses()
+                * core.getGeneration();
+
+        System.out.println("Topology: " + topology.getName() + ", "
+                + topology.getSynapses() + " synapses, seed " + seed);
+        System.out.println("Generations: " + core.getGeneration()
+                + (auto ? " auto" : " manual") + " stimulation");
+        System.out.printf("Build time: %.1f ms%n", (built - start) / 1e6);
+        System.out.printf("Run time: %.1f ms (%.2f ns per synapse-generation)"
+                + "%n", (done - built) / 1e6, synapseGenerations == 0 ? 0.0
+                        : (double) (done - built) / synapseGenerations);
+        System.out.println("Active neurons: " + active);
+        System.out.printf("Mean state: %.4f%n", total / core.getSize());
+        for (int r = 0; r < resistances.length; r++) {
+            System.out.println("Synapses with resistance " + r + ": "
+                    + resistances[r]);
+        }
+    }
+
+    /**
+     * Prints the timings, neuron activity and synapse resistance histogram of
+     * a core.
+     *
+     * @param core - SimulationCore - the simulation to summarize
+     * @param buildNanos - long - time spent creating the core
+     * @param runNanos - long - time spent updating the core
+     */
+    static void printSummary(SimulationCore core, long buildNanos,
+            long runNanos) {
+        int N = core.getN();
+        int M = core.getM();
+        GenerationStats stats = new GenerationStats();
+        stats.capture(core);
+        long cellGenerations = (long) N * M * core.getGeneration();
+
+        System.out.println("Grid: " + N + "x" + M + " " + core.getSetup()
+                + (core.isAuto() ? " auto" : " manual") + " stimulation, seed "
+                + core.getRandom().getSeed());
+        System.out.println("Generations: " + core.getGeneration()
+                + (core.isSparse() ? " sparse"
+                        : " on " + core.getThreads() + " thread(s)")
+                + (core.getBlockWidth() > 0
+                        ? " in strips of " + core.getBlockWidth() + " cols"
+                        : ""));
+        System.out.printf("Build time: %.1f ms%n", buildNanos / 1e6);
+        System.out.printf("Run time: %.1f ms (%.2f ns per cell-generation)%n",
+                runNanos / 1e6,
+                cellGenerations == 0
+                        ? 0.0 : (double) runNanos / cellGenerations);
+        System.out.println("Active neurons: " + stats.getActive());
+        System.out.println("Neurons above threshold: "
+                + stats.getAboveThreshold());
+        System.out.printf("Mean state: %.4f, max state: %.4f%n",
+                stats.getMeanState(), stats.getMaxState());
+        for (int r = 0; r < SimulationCore.NUM_THICKNESSES; r++) {
+            System.out.println("Synapses with resistance " + r + ": "
+                    + stats.getResistanceCount(r));
+        }
+    }
+
+}
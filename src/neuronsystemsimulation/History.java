@@ -0,0 +1,723 @@
+package neuronsystemsimulation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The History keeps the neuron states and synapse resistances of every
+ * generation of a run, so a view can go back to any of them without running
+ * the simulation again. Usage as a program:
+ * <pre>
+ * java -cp NeuronSystemSimulation.jar neuronsystemsimulation.History
+ *         recording [generation ...]
+ * </pre>
+ * builds the history of a file written by an ActivityRecorder and seeks to
+ * the given generations, or to a few random ones, printing how long each
+ * seek took. -Dhistory.every, -Dhistory.cache and -Dhistory.max set the
+ * keyframe interval, the number of cached keyframes and the cap in bytes.
+ *
+ * Every keyframeEvery generations the whole grid is written as a keyframe;
+ * the generations in between are written as deltas from the one before:
+ * the states that changed, as the xor of their bits with the old bits, and
+ * the synapses whose resistance went down (LTP) or up (LTD) by one. A
+ * generation that does not follow the one before, or whose resistances moved
+ * by more than one, is written as a keyframe. So is one whose deltas since
+ * the last keyframe add up to a keyframe: with auto stimulation nearly every
+ * state changes every generation, and a seek should never decode more than
+ * about two keyframes' worth of bytes. Records are deflated and
+ * appended to a file, which is scratch space: the index of the records is
+ * kept in memory.
+ *
+ * A history keeps at most about maxBytes on disk, DEFAULT_MAX_BYTES unless
+ * told otherwise, so a GUI left running does not fill the disk. The records
+ * go to two files in turn, each starting with a keyframe. Once the one being
+ * written holds half of maxBytes, the next generation is a keyframe written
+ * to the other file, whose generations are dropped: getFirst() then moves up
+ * to the first generation that is left. A temporary file is deleted on
+ * close(), or when the JVM exits if the history was never closed.
+ *
+ * seek() starts from the nearest keyframe at or before the generation and
+ * applies at most keyframeEvery - 1 deltas, or continues from the last seek
+ * if that is on the way. The last cachedKeyframes keyframes that were used
+ * are kept decoded; the others are only on disk. So the memory a history
+ * needs does not grow with the length of the run, apart from 8 bytes of
+ * index per generation.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class History implements Closeable {
+
+    public static final int DEFAULT_KEYFRAME_EVERY = 64;
+    public static final int DEFAULT_CACHED_KEYFRAMES = 4;
+    public static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+    private static final byte KEYFRAME = 1;
+    private static final byte DELTA = 2;
+    private static final int RECORD_HEADER = 13; //see writeRecord()
+    private static final int DEFAULT_SEEKS = 10;
+
+    private final int N;
+    private final int M;
+    private final int keyframeEvery;
+    private final int keyframeBytes; //raw bytes of a keyframe
+    private long deltaBytes = 0; //raw bytes of the deltas since the last
+    private final long maxBytes; //of the two files together
+    private final boolean temporary; //delete the files on close()
+    private Path path; //the file being written
+    private FileChannel file;
+    private long end = 0; //length of the file
+    private Path olderPath; //the file written before it, null until then
+    private FileChannel older;
+    private long olderEnd = 0;
+    private int split = -1; //first generation in the file being written
+
+    private int first = -1; //first and last generation added
+    private int last = -1;
+    private long[] offsets = new long[1024]; //of generation first + k
+    private final TreeMap<Integer, Long> keyframes = new TreeMap<>();
+    private final Map<Integer, Frame> cache;
+    private final Frame latest; //the last generation added
+    private final Frame cursor; //the last generation sought
+    private final Frame incoming; //copied from a core, see add()
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private ByteBuffer raw = ByteBuffer.allocate(1 << 16); //a record
+    private byte[] compressed = new byte[1 << 16]; //header, deflated raw
+    private int[] changed = new int[16];
+    private int[] down = new int[16];
+    private int[] up = new int[16];
+
+    /**
+     * Creates an empty history in a temporary file that is deleted on
+     * close(), with the default keyframe interval, cache and cap.
+     *
+     * @param N - int - num rows
+     * @param M - int - num cols
+     * @throws IOException if the file cannot be created
+     */
+    public History(int N, int M) throws IOException {
+        this(N, M, null, DEFAULT_KEYFRAME_EVERY, DEFAULT_CACHED_KEYFRAMES,
+                DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates an empty history.
+     *
+     * @param N - int - num rows
+     * @param M - int - num cols
+     * @param file - Path - the file to write, replacing it if it exists, or
+     * null for a temporary file that is deleted on close(); once it holds
+     * half of maxBytes a second one is written next to it, with ".1" added
+     * to its name
+     * @param keyframeEvery - int - generations from one keyframe to the next
+     * @param cachedKeyframes - int - decoded keyframes kept in memory
+     * @param maxBytes - long - about the most bytes kept on disk, the oldest
+     * generations are dropped beyond that
+     * @throws IOException if the file cannot be created
+     */
+    public History(int N, int M, Path file, int keyframeEvery,
+            final int cachedKeyframes, long maxBytes) throws IOException {
+        if (keyframeEvery < 1 || cachedKeyframes < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("keyframeEvery,"
+                    + " cachedKeyframes and maxBytes must be at least 1");
+        }
+        this.N = N;
+        this.M = M;
+        this.keyframeEvery = keyframeEvery;
+        this.maxBytes = maxBytes;
+        keyframeBytes = 10 * N * M;
+        temporary = file == null;
+        path = temporary ? createTemporary() : file;
+        this.file = open(path);
+        cache = new LinkedHashMap<Integer, Frame>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Integer, Frame> eldest) {
+                return size() > cachedKeyframes;
+            }
+        };
+        latest = new Frame(N * M);
+        cursor = new Frame(N * M);
+        incoming = new Frame(N * M);
+    }
+
+    /**
+     * Creates a temporary file that is deleted when the JVM exits, in case
+     * the history is never closed: the GUI exits without closing its brain.
+     */
+    private static Path createTemporary() throws IOException {
+        Path temp = Files.createTempFile("history", ".nssh");
+        temp.toFile().deleteOnExit();
+        return temp;
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Builds the history of a recording, reading it once.
+     *
+     * @param recording - Path - a file written by an ActivityRecorder
+     * @param file - Path - the file of the history, or null for a temporary
+     * one
+     * @param keyframeEvery - int - generations from one keyframe to the next
+     * @param cachedKeyframes - int - decoded keyframes kept in memory
+     * @param maxBytes - long - about the most bytes kept on disk
+     * @return the history, with the generations numbered as by the core
+     * that was recorded
+     * @throws IOException if a file cannot be read or written
+     */
+    public static History of(Path recording, Path file, int keyframeEvery,
+            int cachedKeyframes, long maxBytes) throws IOException {
+        try (ActivityReader reader = new ActivityReader(recording)) {
+            History history = new History(reader.getN(), reader.getM(), file,
+                    keyframeEvery, cachedKeyframes, maxBytes);
+            while (reader.next()) {
+                //a keyframe holds the states at the start of its generation,
+                //a generation record those at the start of the next one, so
+                //a keyframe after a generation record repeats it
+                int generation = reader.isKeyframe()
+                        ? reader.getGeneration() - 1 : reader.getGeneration();
+                if (reader.hasStates() && generation > history.getLast()) {
+                    history.add(generation, reader.getStates(),
+                            reader.getResistances());
+                }
+            }
+            return history;
+        }
+    }
+
+    /**
+     * Adds the current generation of a core. The core must keep its grid in
+     * its arrays. Only the copy of its states and resistances is made while
+     * the core is locked; they are encoded and written after that, so a
+     * display() or a click does not wait for the disk.
+     *
+     * @param core - SimulationCore - the simulation, at a later generation
+     * than the last one added
+     * @throws IOException if the file cannot be written
+     */
+    public void add(SimulationCore core) throws IOException {
+        if (core.getGrid() != null) {
+            throw new IllegalArgumentException("Only a core on the heap can"
+                    + " be added to a history");
+        }
+        synchronized (incoming) {
+            synchronized (core) {
+                core.settle();
+                incoming.copy(core.getGeneration(), core.state,
+                        core.resistance);
+            }
+            add(incoming.generation, incoming.state, incoming.resistance);
+        }
+    }
+
+    /**
+     * Adds a generation.
+     *
+     * @param generation - int - later than the last one added
+     * @param state - double[] - the neuron states
+     * @param resistance - byte[] - the synapse resistances
+     * @throws IOException if the file cannot be written
+     */
+    synchronized void add(int generation, double[] state, byte[] resistance)
+            throws IOException {
+        if (last >= 0 && generation <= last) {
+            throw new IllegalArgumentException("Generation " + generation
+                    + " is not after " + last);
+        }
+        boolean full = end >= maxBytes / 2;
+        boolean keyframe = last < 0 || full || generation != last + 1
+                || generation - keyframes.lastKey() >= keyframeEvery
+                || deltaBytes >= keyframeBytes;
+        long offset = end;
+        if (!keyframe) {
+            keyframe = !writeDelta(generation, state, resistance);
+        }
+        if (keyframe) {
+            if (full) {
+                rotate(generation);
+                offset = end;
+            }
+            writeKeyframe(generation, state, resistance);
+            keyframes.put(generation, offset);
+            Frame frame = new Frame(N * M);
+            frame.copy(generation, state, resistance);
+            cache.put(generation, frame);
+            deltaBytes = 0;
+        }
+        if (first < 0) {
+            first = generation;
+            split = generation;
+        }
+        for (int g = last + 1; last >= 0 && g < generation; g++) {
+            setOffset(g, -1);
+        }
+        setOffset(generation, offset);
+        last = generation;
+        latest.copy(generation, state, resistance);
+    }
+
+    /**
+     * Goes on writing in the other file, starting at a generation. The
+     * generations that file held are dropped.
+     */
+    private void rotate(int generation) throws IOException {
+        if (older == null) {
+            olderPath = temporary ? createTemporary()
+                    : path.resolveSibling(path.getFileName() + ".1");
+            older = open(olderPath);
+        } else {
+            drop(split);
+            older.truncate(0);
+        }
+        FileChannel channel = older;
+        older = file;
+        file = channel;
+        Path swapped = olderPath;
+        olderPath = path;
+        path = swapped;
+        olderEnd = end;
+        end = 0;
+        split = generation;
+    }
+
+    /**
+     * Forgets the generations before one, which must be a keyframe.
+     */
+    private void drop(int generation) {
+        int k = generation - first;
+        System.arraycopy(offsets, k, offsets, 0, last - generation + 1);
+        first = generation;
+        keyframes.headMap(generation).clear();
+        Iterator<Integer> cached = cache.keySet().iterator();
+        while (cached.hasNext()) {
+            if (cached.next() < generation) {
+                cached.remove();
+            }
+        }
+    }
+
+    private void setOffset(int generation, long offset) {
+        int k = generation - first;
+        if (k == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+        }
+        offsets[k] = offset;
+    }
+
+    private void writeKeyframe(int generation, double[] state,
+            byte[] resistance) throws IOException {
+        clear(keyframeBytes);
+        raw.asDoubleBuffer().put(state);
+        raw.position(8 * N * M);
+        raw.put(resistance);
+        writeRecord(KEYFRAME, generation);
+    }
+
+    /**
+     * Writes the changes from the latest generation.
+     *
+     * @return false if a resistance moved by more than one, then nothing is
+     * written and a keyframe is needed
+     */
+    private boolean writeDelta(int generation, double[] state,
+            byte[] resistance) throws IOException {
+        int downs = 0;
+        int ups = 0;
+        for (int e = 0; e < 2 * N * M; e++) {
+            int change = resistance[e] - latest.resistance[e];
+            if (change == -1) {
+                down = add(down, downs++, e);
+            } else if (change == 1) {
+                up = add(up, ups++, e);
+            } else if (change != 0) {
+                return false;
+            }
+        }
+        int count = 0;
+        for (int c = 0; c < N * M; c++) {
+            if (Double.doubleToRawLongBits(state[c])
+                    != Double.doubleToRawLongBits(latest.state[c])) {
+                changed = add(changed, count++, c);
+            }
+        }
+        clear(5 * (3 + count + downs + ups) + 8 * count);
+        putIndices(changed, count);
+        for (int k = 0; k < count; k++) {
+            int c = changed[k];
+            raw.putLong(Double.doubleToRawLongBits(state[c])
+                    ^ Double.doubleToRawLongBits(latest.state[c]));
+        }
+        putIndices(down, downs);
+        putIndices(up, ups);
+        deltaBytes += raw.position();
+        writeRecord(DELTA, generation);
+        return true;
+    }
+
+    private static int[] add(int[] array, int index, int value) {
+        if (index == array.length) {
+            array = Arrays.copyOf(array, 2 * array.length);
+        }
+        array[index] = value;
+        return array;
+    }
+
+    /**
+     * Empties the raw buffer, growing it to hold at least some bytes.
+     */
+    private void clear(int bytes) {
+        if (raw.capacity() < bytes) {
+            raw = ByteBuffer.allocate(Math.max(bytes, 2 * raw.capacity()));
+        }
+        raw.clear();
+    }
+
+    private void putIndices(int[] indices, int count) {
+        putVarint(raw, count);
+        int previous = 0;
+        for (int k = 0; k < count; k++) {
+            putVarint(raw, indices[k] - previous);
+            previous = indices[k];
+        }
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Deflates the raw buffer and appends it to the file as one record:
+     * <pre>
+     * int    length of the deflated bytes
+     * byte   KEYFRAME or DELTA
+     * int    generation
+     * int    length of the raw bytes
+     * then the deflated bytes
+     * </pre>
+     */
+    private void writeRecord(byte type, int generation) throws IOException {
+        deflater.reset();
+        deflater.setInput(raw.array(), 0, raw.position());
+        deflater.finish();
+        int length = RECORD_HEADER;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, 2 * length);
+            }
+            length += deflater.deflate(compressed, length,
+                    compressed.length - length);
+        }
+        ByteBuffer record = ByteBuffer.wrap(compressed, 0, length);
+        record.putInt(length - RECORD_HEADER);
+        record.put(type);
+        record.putInt(generation);
+        record.putInt(raw.position());
+        record.position(0);
+        while (record.hasRemaining()) {
+            end += file.write(record, end);
+        }
+    }
+
+    /**
+     * Reads and inflates one record.
+     *
+     * @param offset - long - where the record starts
+     * @param type - byte - the type it must have
+     * @param generation - int - the generation it must have
+     * @return the raw bytes, valid until the next call
+     */
+    private ByteBuffer readRecord(long offset, byte type, int generation)
+            throws IOException {
+        FileChannel channel = generation >= split ? file : older;
+        ByteBuffer header = ByteBuffer.wrap(compressed, 0, RECORD_HEADER);
+        readFully(channel, header, offset);
+        int length = header.getInt(0);
+        int rawLength = header.getInt(9);
+        if (header.get(4) != type || header.getInt(5) != generation
+                || length < 0 || rawLength < 0) {
+            throw new IOException("History record of generation "
+                    + generation + " is damaged");
+        }
+        if (compressed.length < length) {
+            compressed = new byte[length];
+        }
+        readFully(channel, ByteBuffer.wrap(compressed, 0, length),
+                offset + RECORD_HEADER);
+        clear(rawLength);
+        inflater.reset();
+        inflater.setInput(compressed, 0, length);
+        try {
+            int read = 0;
+            while (read < rawLength && !inflater.finished()) {
+                read += inflater.inflate(raw.array(), read, rawLength - read);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("History record of generation "
+                    + generation + " is damaged", e);
+        }
+        raw.limit(rawLength);
+        return raw;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("History file is truncated");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Copies a generation into a snapshot.
+     *
+     * @param generation - int - a generation that was added
+     * @param snapshot - BrainSnapshot - snapshot of the same size to fill;
+     * its modifications are set to -1, so it does not match any core
+     * @throws IOException if the file cannot be read
+     */
+    public synchronized void seek(int generation, BrainSnapshot snapshot)
+            throws IOException {
+        if (!contains(generation)) {
+            throw new IllegalArgumentException("Generation " + generation
+                    + " is not in the history");
+        }
+        int keyframe = keyframes.floorKey(generation);
+        if (cursor.generation < keyframe || cursor.generation > generation) {
+            Frame frame = cache.get(keyframe);
+            if (frame == null) {
+                frame = readKeyframe(keyframe);
+                cache.put(keyframe, frame);
+            }
+            cursor.copy(keyframe, frame.state, frame.resistance);
+        }
+        while (cursor.generation < generation) {
+            applyDelta(cursor.generation + 1);
+        }
+        snapshot.copy(generation, -1, cursor.state, cursor.resistance);
+    }
+
+    private Frame readKeyframe(int generation) throws IOException {
+        ByteBuffer in = readRecord(keyframes.get(generation), KEYFRAME,
+                generation);
+        Frame frame = new Frame(N * M);
+        frame.generation = generation;
+        in.asDoubleBuffer().get(frame.state);
+        in.position(8 * N * M);
+        in.get(frame.resistance);
+        return frame;
+    }
+
+    /**
+     * Moves the cursor to the next generation.
+     */
+    private void applyDelta(int generation) throws IOException {
+        ByteBuffer in = readRecord(offsets[generation - first], DELTA,
+                generation);
+        int count = getVarint(in);
+        changed = getIndices(in, changed, count);
+        double[] state = cursor.state;
+        for (int k = 0; k < count; k++) {
+            int c = changed[k];
+            state[c] = Double.longBitsToDouble(in.getLong()
+                    ^ Double.doubleToRawLongBits(state[c]));
+        }
+        int e = 0;
+        for (int k = getVarint(in); k > 0; k--) {
+            e += getVarint(in);
+            cursor.resistance[e]--;
+        }
+        e = 0;
+        for (int k = getVarint(in); k > 0; k--) {
+            e += getVarint(in);
+            cursor.resistance[e]++;
+        }
+        cursor.generation = generation;
+    }
+
+    private static int[] getIndices(ByteBuffer in, int[] indices, int count)
+            throws IOException {
+        if (count > indices.length) {
+            indices = new int[Math.max(count, 2 * indices.length)];
+        }
+        int previous = 0;
+        for (int k = 0; k < count; k++) {
+            previous += getVarint(in);
+            indices[k] = previous;
+        }
+        return indices;
+    }
+
+    /**
+     * Checks whether a generation was added.
+     */
+    public synchronized boolean contains(int generation) {
+        return first >= 0 && generation >= first && generation <= last
+                && offsets[generation - first] >= 0;
+    }
+
+    /**
+     * Gets the first generation that was added.
+     *
+     * @return the generation, -1 if the history is empty
+     */
+    public synchronized int getFirst() {
+        return first;
+    }
+
+    /**
+     * Gets the last generation that was added.
+     *
+     * @return the generation, -1 if the history is empty
+     */
+    public synchronized int getLast() {
+        return last;
+    }
+
+    public synchronized long getFileSize() {
+        return end + olderEnd;
+    }
+
+    public int getN() {
+        return N;
+    }
+
+    public int getM() {
+        return M;
+    }
+
+    /**
+     * Closes the files, and deletes them if they are temporary.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+        if (older != null) {
+            older.close();
+        }
+        deflater.end();
+        inflater.end();
+        if (temporary) {
+            Files.deleteIfExists(path);
+            if (olderPath != null) {
+                Files.deleteIfExists(olderPath);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: History recording [generation ...]");
+            return;
+        }
+        long start = System.nanoTime();
+        try (History history = of(Paths.get(args[0]), null,
+                Integer.getInteger("history.every", DEFAULT_KEYFRAME_EVERY),
+                Integer.getInteger("history.cache", DEFAULT_CACHED_KEYFRAMES),
+                Long.getLong("history.max", DEFAULT_MAX_BYTES))) {
+            System.out.printf("Generations %d to %d in %.1f ms, %d bytes%n",
+                    history.getFirst(), history.getLast(),
+                    (System.nanoTime() - start) / 1e6,
+                    history.getFileSize());
+            int[] generations = new int[args.length > 1
+                    ? args.length - 1 : DEFAULT_SEEKS];
+            Random random = new Random();
+            for (int k = 0; k < generations.length; k++) {
+                generations[k] = args.length > 1
+                        ? Integer.parseInt(args[k + 1])
+                        : history.getFirst() + random.nextInt(
+                                history.getLast() - history.getFirst() + 1);
+            }
+            BrainSnapshot snapshot = new BrainSnapshot(history.getN(),
+                    history.getM());
+            for (int generation : generations) {
+                if (!history.contains(generation)) {
+                    System.out.println("Generation " + generation
+                            + " is not in the history");
+                    continue;
+                }
+                start = System.nanoTime();
+                history.seek(generation, snapshot);
+                long nanos = System.nanoTime() - start;
+                int active = 0;
+                double total = 0;
+                for (int i = 0; i < history.getN(); i++) {
+                    for (int j = 0; j < history.getM(); j++) {
+                        double s = snapshot.getState(i, j);
+                        if (s > 0) {
+                            active++;
+                        }
+                        total += s;
+                    }
+                }
+                System.out.printf("Generation %d: active neurons %d, mean"
+                        + " state %.4f (seek %.2f ms)%n", generation, active,
+                        total / (history.getN() * history.getM()),
+                        nanos / 1e6);
+            }
+        }
+    }
+
+    /**
+     * The states and resistances of one generation.
+     */
+    private static class Frame {
+
+        int generation = -1;
+        final double[] state;
+        final byte[] resistance;
+
+        Frame(int cells) {
+            state = new double[cells];
+            resistance = new byte[2 * cells];
+        }
+
+        void copy(int generation, double[] state, byte[] resistance) {
+            this.generation = generation;
+            System.arraycopy(state, 0, this.state, 0, this.state.length);
+            System.arraycopy(resistance, 0, this.resistance, 0,
+                    this.resistance.length);
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+package neuronsystemsimulation;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The LatencyHistogram counts durations in nanoseconds in buckets whose width
+ * grows with the value, like an HdrHistogram: values below 128 get a bucket
+ * each, and above that every power of two is split into 64 buckets, so any
+ * value is known to within about 1.5%. Recording is one atomic increment and
+ * never allocates; percentiles are computed when they are read.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; //128
+    private static final int HALF = SUB_BUCKETS / 2; //buckets per power of 2
+    private static final int BUCKETS = SUB_BUCKETS
+            + (64 - SUB_BUCKET_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Counts one duration.
+     *
+     * @param nanos - long - the duration, negative values count as 0
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(index(Math.max(0, nanos)));
+    }
+
+    /**
+     * Gets a percentile of the recorded durations.
+     *
+     * @param percentile - double - from 0 to 100
+     * @return the highest value of the bucket the percentile falls in, 0 if
+     * nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int k = 0; k < BUCKETS; k++) {
+            seen += counts.get(k);
+            if (seen >= rank) {
+                return highest(k);
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Gets the highest value of the highest bucket that has been recorded.
+     */
+    public long getMax() {
+        for (int k = BUCKETS - 1; k >= 0; k--) {
+            if (counts.get(k) > 0) {
+                return highest(k);
+            }
+        }
+        return 0;
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int k = 0; k < BUCKETS; k++) {
+            total += counts.get(k);
+        }
+        return total;
+    }
+
+    public void reset() {
+        for (int k = 0; k < BUCKETS; k++) {
+            counts.set(k, 0);
+        }
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        //keep the top SUB_BUCKET_BITS - 1 bits below the leading one
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + (shift - 1) * HALF
+                + (int) (value >>> shift) - HALF;
+    }
+
+    private static long highest(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long mantissa = HALF + (index - SUB_BUCKETS) % HALF;
+        long lowest = mantissa << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+}
@@ -0,0 +1,114 @@
+package neuronsystemsimulation;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The MessageChannel sends and receives whole messages over a blocking NIO
+ * SocketChannel. A message is an int length followed by that many bytes; it
+ * is written from and read into one direct buffer per direction that is
+ * reused and only grows, so a steady exchange of messages does not allocate.
+ * Nagle's algorithm is off, since every message is already one batch.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+class MessageChannel implements Closeable {
+
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    private final SocketChannel channel;
+    private ByteBuffer out = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+    private ByteBuffer in = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+
+    /**
+     * Wraps a connected channel.
+     *
+     * @param channel - SocketChannel - the connection
+     * @throws IOException if the socket options cannot be set
+     */
+    MessageChannel(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(true);
+        channel.socket().setTcpNoDelay(true);
+    }
+
+    /**
+     * Starts a new message.
+     *
+     * @param capacity - int - the most bytes the message will hold
+     * @return the buffer to put the message into
+     */
+    ByteBuffer begin(int capacity) {
+        if (out.capacity() < capacity + 4) {
+            out = ByteBuffer.allocateDirect(capacity + 4);
+        }
+        out.clear();
+        out.position(4);
+        return out;
+    }
+
+    /**
+     * Sends the message started by begin().
+     *
+     * @throws IOException if the connection fails
+     */
+    void send() throws IOException {
+        out.putInt(0, out.position() - 4);
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+    }
+
+    /**
+     * Waits for the next message.
+     *
+     * @return a buffer holding the message, valid until the next call
+     * @throws IOException if the connection fails or is closed
+     */
+    ByteBuffer receive() throws IOException {
+        in.clear();
+        in.limit(4);
+        readFully();
+        int length = in.getInt(0);
+        if (in.capacity() < length) {
+            in = ByteBuffer.allocateDirect(length);
+        }
+        in.clear();
+        in.limit(length);
+        readFully();
+        in.flip();
+        return in;
+    }
+
+    private void readFully() throws IOException {
+        while (in.hasRemaining()) {
+            if (channel.read(in) < 0) {
+                throw new EOFException("Connection closed");
+            }
+        }
+    }
+
+    static void putString(ByteBuffer buffer, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
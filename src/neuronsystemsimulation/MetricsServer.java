@@ -0,0 +1,119 @@
+package neuronsystemsimulation;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * The MetricsServer serves a SimulationMetrics as plain text on
+ * http://localhost:(port)/metrics, in the Prometheus text format, so a
+ * dashboard can scrape a long run without attaching a profiler. It only
+ * listens on the loopback address.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class MetricsServer {
+
+    private final SimulationMetrics metrics;
+    private final HttpServer server;
+
+    /**
+     * Starts serving the metrics.
+     *
+     * @param metrics - SimulationMetrics - the metrics to serve
+     * @param port - int - the port, 0 for any free one
+     */
+    public MetricsServer(SimulationMetrics metrics, int port)
+            throws IOException {
+        this.metrics = metrics;
+        server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void close() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        byte[] body = text().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type",
+                "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Writes every metric as a "name value" line.
+     */
+    String text() {
+        StringBuilder text = new StringBuilder();
+        line(text, "nss_generation", "gauge", metrics.getGeneration());
+        line(text, "nss_generations_per_second", "gauge",
+                metrics.getGenerationsPerSecond());
+        line(text, "nss_steps_total", "counter", metrics.getSteps());
+        text.append("# TYPE nss_step_seconds summary\n");
+        quantile(text, "0.5", metrics.getStepMillisP50());
+        quantile(text, "0.9", metrics.getStepMillisP90());
+        quantile(text, "0.99", metrics.getStepMillisP99());
+        quantile(text, "0.999", metrics.getStepMillisP999());
+        quantile(text, "1", metrics.getStepMillisMax());
+        line(text, "nss_neurons_above_threshold", "gauge",
+                metrics.getNeuronsAboveThreshold());
+        line(text, "nss_fired_total", "counter", metrics.getTotalFired());
+        line(text, "nss_signal", "gauge", metrics.getSignal());
+        line(text, "nss_signal_total", "counter", metrics.getTotalSignal());
+        line(text, "nss_ltp", "gauge", metrics.getPotentiations());
+        line(text, "nss_ltp_total", "counter",
+                metrics.getTotalPotentiations());
+        line(text, "nss_ltd", "gauge", metrics.getDepressions());
+        line(text, "nss_ltd_total", "counter", metrics.getTotalDepressions());
+        long[] histogram = metrics.getResistanceHistogram();
+        text.append("# TYPE nss_synapses gauge\n");
+        for (int r = 0; r < histogram.length; r++) {
+            text.append("nss_synapses{resistance=\"").append(r)
+                    .append("\"} ").append(histogram[r]).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void line(StringBuilder text, String name, String type,
+            double value) {
+        text.append("# TYPE ").append(name).append(' ').append(type)
+                .append('\n').append(name).append(' ')
+                .append(format(value)).append('\n');
+    }
+
+    private static void quantile(StringBuilder text, String quantile,
+            double millis) {
+        text.append("nss_step_seconds{quantile=\"").append(quantile)
+                .append("\"} ").append(format(millis / 1e3)).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.ROOT, "%.6g", value);
+    }
+
+}
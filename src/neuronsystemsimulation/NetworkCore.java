@@ -0,0 +1,196 @@
+package neuronsystemsimulation;
+
+/**
+ * The NetworkCore runs the simulation on any Topology instead of the fixed
+ * grid of a SimulationCore. Neurons and synapses follow the same rules, but a
+ * neuron fires through the synapses its Topology lists for it, so it can have
+ * any number of them. All state is kept in primitive arrays indexed by neuron
+ * and by synapse.
+ *
+ * Like SimulationCore.update(), a generation starts every new state from the
+ * old state plus the auto stimulation and then updates the neurons in index
+ * order, so on Topology.lattice() it gives exactly the same result as a
+ * SimulationCore built with the same setup and RandomSource.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class NetworkCore {
+
+    private final Topology topology;
+    private final int size;
+    private final int[] start;
+    private final int[] target;
+
+    double[] state;
+    double[] newState;
+    double[] leak;
+    double[] threshold;
+    byte[] resistance;
+    short[] roundsSinceLTP;
+
+    private int generation = 0;
+    private boolean auto;
+    private final RandomSource random;
+
+    /**
+     * Creates the neurons of a topology with random leak rates.
+     *
+     * @param topology - Topology - the synapses
+     * @param random - RandomSource - source of all random numbers of the run
+     */
+    public NetworkCore(Topology topology, RandomSource random) {
+        this.topology = topology;
+        this.random = random;
+        size = topology.getSize();
+        start = topology.start;
+        target = topology.target;
+
+        state = new double[size];
+        newState = new double[size];
+        leak = new double[size];
+        threshold = new double[size];
+        for (int c = 0; c < size; c++) {
+            leak[c] = SimulationCore.leakRate(random, c);
+            threshold[c] = leak[c] + 0.5;
+        }
+        resistance = topology.resistance.clone();
+        roundsSinceLTP = new short[resistance.length];
+    }
+
+    /**
+     * Updates the state of each neuron.
+     */
+    public synchronized void update() {
+        generation++;
+        System.arraycopy(state, 0, newState, 0, size);
+        if (auto) {
+            for (int c = 0; c < size; c++) {
+                double amount = SimulationCore.autoStimulation(random,
+                        generation, c, SimulationCore.STIMULATION_CUTOFF,
+                        SimulationCore.MAX_RANDOM_STIMULATION);
+                if (amount > 0) {
+                    newState[c] += amount;
+                }
+            }
+        }
+        for (int c = 0; c < size; c++) {
+            updateNeuron(c);
+        }
+        double[] swap = state;
+        state = newState;
+        newState = swap;
+    }
+
+    /**
+     * Fires a neuron through all its synapses if it is excited enough, then
+     * applies the leak and ages the synapses.
+     *
+     * @param c - int - index of the neuron
+     */
+    private void updateNeuron(int c) {
+        int first = start[c];
+        int last = start[c + 1];
+        double s = state[c];
+        if (s >= threshold[c]) {
+            for (int k = first; k < last; k++) {
+                double signal = fire(c, s, k);
+                if (signal > 0) {
+                    newState[target[k]] += signal;
+                }
+            }
+        }
+        if (newState[c] >= 0) {
+            if (newState[c] > leak[c]) {
+                newState[c] -= leak[c];
+            } else {
+                newState[c] = 0;
+            }
+            for (int k = first; k < last; k++) {
+                roundsSinceLTP[k]++;
+                if (roundsSinceLTP[k] > SimulationCore.MAX_ROUNDS_SINCE_LTP) {
+                    if (resistance[k] < SimulationCore.MAX_RESISTANCE) {
+                        resistance[k]++;
+                    }
+                    roundsSinceLTP[k] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fires a neuron through one of its synapses, see SimulationCore.fire().
+     *
+     * @param c - int - index of the presynaptic neuron
+     * @param s - double - state of the presynaptic neuron
+     * @param k - int - index of the synapse
+     * @return the signal for the postsynaptic neuron, 0 if none is sent
+     */
+    private double fire(int c, double s, int k) {
+        double signal = s - (resistance[k] / SimulationCore.DEDUCTION_RATIO);
+        if (signal > SimulationCore.MAX_SIGNAL) {
+            signal = SimulationCore.MAX_SIGNAL;
+        } else if (signal <= 0) {
+            return 0;
+        }
+        newState[c] = s - signal;
+        if (resistance[k] > 0) {
+            resistance[k]--;
+        }
+        roundsSinceLTP[k] = 0;
+        return signal;
+    }
+
+    /**
+     * Excites a neuron.
+     *
+     * @param c - int - index of the neuron
+     * @param amount - double - added to its state
+     */
+    public synchronized void stimulate(int c, double amount) {
+        state[c] += amount;
+    }
+
+    public Topology getTopology() {
+        return topology;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public double getState(int c) {
+        return state[c];
+    }
+
+    public double getThreshold(int c) {
+        return threshold[c];
+    }
+
+    /**
+     * Gets the resistance of a synapse.
+     *
+     * @param k - int - index of the synapse in the topology
+     * @return the resistance, 0 to MAX_RESISTANCE
+     */
+    public int getResistance(int k) {
+        return resistance[k];
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    public void setAuto(boolean a) {
+        auto = a;
+    }
+
+    public boolean isAuto() {
+        return auto;
+    }
+
+    public RandomSource getRandom() {
+        return random;
+    }
+
+}
@@ -3,74 +3,86 @@ package neuronsystemsimulation;
 import java.awt.Color;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
-import java.util.ArrayList;
 import javax.swing.BorderFactory;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
-import javax.swing.border.MatteBorder;
+import javax.swing.border.Border;
 
 /**
- * The Neuron is a JPanel that is interactive with the mouse. It holds the
- * information that pertains to a neuron, i.e. its neighbors, excitement
- * threshold, and leak rate (the rate at which the neuron loses its excitement).
+ * The Neuron is a JPanel that is interactive with the mouse. It displays the
+ * neuron at row i, col j of a SimulationCore, i.e. its excitement, threshold,
+ * leak rate and the resistance of its synapses.
  *
  * @author Geeling Chau
  * @date May 2016
  */
 public class Neuron extends JPanel implements MouseListener {
 
+    private final SimulationLoop loop;
     private final int i;
     private final int j;
-    private static final int NORTH = 0;
-    private static final int EAST = 1;
-    private static final int SOUTH = 2;
-    private static final int WEST = 3;
-    private static final int NUM_SYNAPSES = 4;
-    private static final int MAX_ROUNDS_SINCE_LTP = 10;
-    private static final double MAX_SIGNAL = 5;
-    private final double LEAK_RATE; //0<=x<0.5
-
-    private int northBorder = 0;
-    private int eastBorder = 0;
-    private int southBorder = 0;
-    private int westBorder = 0;
+
+    private int border = -1; //index into BORDERS
+    private long hundredths = -1; //state shown in the label, in hundredths
 
     private JLabel stateLabel;
     private JLabel thresholdLabel;
     private JLabel leakLabel;
-    private Synapse[] connections = new Synapse[NUM_SYNAPSES];
 
-    private final double THRESHOLD;
-    private final double MAX_STIMULI = 5;
-    private final int DEDUCTION_RATIO = 3;
-    private final int MAX_COLOR = 250;
-    private double state = 0; // as a decimal 
-    private double newState = 0;
-    private int color;
+    private static final double MAX_STIMULI = 5;
+    private static final int MAX_COLOR = 250;
+    private static final double CLICK_STIMULATION = 4;
+    private int color = -1;
+
+    //shared by all neurons so display() does not allocate them
+    private static final int CACHED_HUNDREDTHS = 1000; //labels up to 10.00
+    private static final String[] LABELS = new String[CACHED_HUNDREDTHS + 1];
+    private static final Color[] GRAYS = new Color[MAX_COLOR + 1];
+    private static final Border[] BORDERS = new Border[
+            SimulationCore.NUM_THICKNESSES * SimulationCore.NUM_THICKNESSES
+            * SimulationCore.NUM_THICKNESSES * SimulationCore.NUM_THICKNESSES];
+
+    static {
+        for (int h = 0; h <= CACHED_HUNDREDTHS; h++) {
+            LABELS[h] = String.format("%.2f", h / 100.0);
+        }
+        for (int c = 0; c <= MAX_COLOR; c++) {
+            GRAYS[c] = new Color(c, c, c);
+        }
+        int n = SimulationCore.NUM_THICKNESSES;
+        for (int b = 0; b < BORDERS.length; b++) {
+            BORDERS[b] = BorderFactory.createMatteBorder(
+                    b / (n * n * n), //north
+                    b % n, //west
+                    b / (n * n) % n, //south
+                    b / n % n, //east
+                    Color.RED);
+        }
+    }
 
     /**
-     * Creates a neuron with a random leak rate at row i, col j. 
-     * 
+     * Creates the view of the neuron at row i, col j.
+     *
+     * @param core - SimulationCore - the simulation holding the neuron
+     * @param loop - SimulationLoop - the loop to send clicks to
      * @param i - int - row the neuron is in
      * @param j - int - col the neuron is in
      */
-    Neuron(int i, int j) {
+    Neuron(SimulationCore core, SimulationLoop loop, int i, int j) {
         super();
+        this.loop = loop;
         this.i = i;
         this.j = j;
-        LEAK_RATE = Math.random() + 1;
-        THRESHOLD = LEAK_RATE + 0.5;
-        stateLabel = new JLabel(String.format("%.2f", state));
+        stateLabel = new JLabel();
         stateLabel.setForeground(Color.GRAY);
         this.add(stateLabel);
 
-        leakLabel = new JLabel("leak rate:" + String.format(
-                "%.2f", LEAK_RATE));
+        leakLabel = new JLabel("leak rate:" + label(core.getLeakRate(i, j)));
         leakLabel.setForeground(Color.GRAY);
         this.add(leakLabel);
 
-        thresholdLabel = new JLabel("threshold:" + String.format(
-                "%.2f", THRESHOLD));
+        thresholdLabel = new JLabel("threshold:"
+                + label(core.getThreshold(i, j)));
         thresholdLabel.setForeground(Color.GRAY);
         this.add(thresholdLabel);
 
@@ -79,128 +91,50 @@ public class Neuron extends JPanel implements MouseListener {
     }
 
     /**
-     * Updates the display of the neuron and its synapse borders. 
+     * Updates the display of the neuron and its synapse borders from a
+     * snapshot. Only the parts that changed since the last call are set.
+     *
+     * @param snapshot - BrainSnapshot - the generation to show
      */
-    public void display() {
-        for (int i = 0; i < NUM_SYNAPSES; i++) {
-            if (connections[i] != null) {
-                switch (i) {
-                    case NORTH:
-                        northBorder
-                                = connections[NORTH].getResistance();
-                        break;
-                    case EAST:
-                        eastBorder
-                                = connections[EAST].getResistance();
-                        break;
-                    case SOUTH:
-                        southBorder
-                                = connections[SOUTH].getResistance();
-                        break;
-                    case WEST:
-                        westBorder
-                                = connections[WEST].getResistance();
-                        break;
-                    default:
-                        System.out.println(
-                                "i not found. Neuron display()");
-                        break;
-                }
-            }
+    public void display(BrainSnapshot snapshot) {
+        int n = SimulationCore.NUM_THICKNESSES;
+        int newBorder = ((snapshot.getResistance(i, j, SimulationCore.NORTH)
+                * n + snapshot.getResistance(i, j, SimulationCore.SOUTH)) * n
+                + snapshot.getResistance(i, j, SimulationCore.EAST)) * n
+                + snapshot.getResistance(i, j, SimulationCore.WEST);
+        if (newBorder != border) {
+            border = newBorder;
+            this.setBorder(BORDERS[border]);
         }
-        stateLabel.setText(String.format("%.2f", state));
-        if (state > MAX_STIMULI) {
-            color = MAX_COLOR;
-        } else {
-            color = (int) ((state * MAX_COLOR) / MAX_STIMULI);
 
+        double state = snapshot.getState(i, j);
+        long newHundredths = Math.round(state * 100);
+        if (newHundredths != hundredths) {
+            hundredths = newHundredths;
+            stateLabel.setText(label(state));
         }
 
-        this.setBorder(BorderFactory.createMatteBorder(
-                northBorder,
-                westBorder,
-                southBorder,
-                eastBorder, Color.RED));
-        this.setBackground(new Color(color, color, color));
-
+        int newColor;
+        if (state > MAX_STIMULI) {
+            newColor = MAX_COLOR;
+        } else {
+            newColor = (int) ((state * MAX_COLOR) / MAX_STIMULI);
+        }
+        if (newColor != color) {
+            color = newColor;
+            this.setBackground(GRAYS[color]);
+        }
     }
 
     /**
-     * Loops and updates all the synapses depending on neighbor excitement.
+     * Formats a value with two decimals, from the cache if it is small.
      */
-    public void update() {
-        if (state >= THRESHOLD) {
-            for (int i = 0; i < NUM_SYNAPSES; i++) {
-                if (connections[i] != null
-                        && connections[i].getPre().equals(this)) {
-                    if ((state - 
-                            (connections[i].getResistance() / DEDUCTION_RATIO)) 
-                            > MAX_SIGNAL) {
-                        newState = state - MAX_SIGNAL;
-                        connections[i].getPost().incrementNewState(MAX_SIGNAL);
-                        connections[i].LTP();
-                    } else if ((state - connections[i].getResistance() / 
-                            DEDUCTION_RATIO) > 0) {
-                        newState = state - (state - 
-                                connections[i].getResistance() / 
-                                DEDUCTION_RATIO);
-                        connections[i].getPost().incrementNewState(state - 
-                                (connections[i].getResistance() / 
-                                        DEDUCTION_RATIO));
-                        connections[i].LTP();
-                    }
-                }
-            }
+    private static String label(double value) {
+        long h = Math.round(value * 100);
+        if (h >= 0 && h <= CACHED_HUNDREDTHS) {
+            return LABELS[(int) h];
         }
-        if (newState >= 0) {
-            if (newState > LEAK_RATE) {
-                newState -= LEAK_RATE;
-            } else {
-                newState = 0;
-            }
-            for (int i = 0; i < NUM_SYNAPSES; i++) {
-                if (connections[i] != null && 
-                        connections[i].getPre().equals(this)) {
-                    connections[i].incrementRoundsSinceLTP();
-                    if (connections[i].getRoundsSinceLTP() > 
-                            MAX_ROUNDS_SINCE_LTP) {
-                        connections[i].LTD();
-                    }
-                }
-            }
-        }
-    }
-
-    public void updateNewState() {
-        newState = state;
-    }
-
-    public void updateState() {
-        state = newState;
-    }
-
-    public void incrementNewState(double s) {
-        newState += s;
-    }
-
-    public void setNorthSynapse(Synapse s) {
-        connections[NORTH] = s;
-
-    }
-
-    public void setEastSynapse(Synapse s) {
-        connections[EAST] = s;
-
-    }
-
-    public void setSouthSynapse(Synapse s) {
-        connections[SOUTH] = s;
-
-    }
-
-    public void setWestSynapse(Synapse s) {
-        connections[WEST] = s;
-
+        return String.format("%.2f", value);
     }
 
     public int getI() {
@@ -216,8 +150,7 @@ public class Neuron extends JPanel implements MouseListener {
      */
     @Override
     public void mouseClicked(MouseEvent me) {
-        state += 4;
-        display();
+        loop.stimulate(i, j, CLICK_STIMULATION);
     }
 
     @Override
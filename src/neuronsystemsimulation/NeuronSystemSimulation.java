@@ -6,8 +6,7 @@ import java.awt.FlowLayout;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.Timer;
-import java.util.TimerTask;
+import javax.management.JMException;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -15,7 +14,11 @@ import javax.swing.JPanel;
 import javax.swing.JTextField;
 
 /**
- * Main class. Creates the GUI and brain. 
+ * Main class. Creates the GUI and brain. The brain runs on its own
+ * SimulationLoop at the rate typed into the rate field; the screen samples
+ * it REFRESH_RATE times per second on the event dispatch thread. Back and
+ * the generation field stop the brain and show a past generation from its
+ * History; Step and Run go back to the live brain.
  * 
  * @author Geeling Chau
  * @date May 2016
@@ -25,21 +28,25 @@ public class NeuronSystemSimulation extends JFrame implements ActionListener {
     public static final int WIDTH = 900;
     public static final int HEIGHT = 600;
     public static final int FIELD_SIZE = 3;
+    public static final int REFRESH_RATE = 60; //screen updates per second
 
     private JTextField textN;
     private JTextField textM;
 
+    private JTextField textRate;
+    private JTextField textSeek;
     private JButton runStopToggle;
     private JButton autoManualToggle;
-    private JLabel generation;
+    private GenerationLabel generation;
 
     private int generationCount = 0;
     private boolean running = false;
     private boolean auto = false;
-    Timer timer;
-    Timer timer2;
+    private double rate = SimulationLoop.DEFAULT_RATE;
+    javax.swing.Timer displayTimer;
 
     private Brain brain;
+    private SimulationMetrics metrics;
 
     public NeuronSystemSimulation() {
         super("Neuron System Simulation");
@@ -50,6 +57,7 @@ public class NeuronSystemSimulation extends JFrame implements ActionListener {
 
         brain = new Brain();
         add(brain, BorderLayout.CENTER);
+        watch();
 
         //BorderLayout.NORTH Control: Cell setup interface
         JPanel northPanel = new JPanel();
@@ -66,7 +74,7 @@ public class NeuronSystemSimulation extends JFrame implements ActionListener {
         structuredSetUpButton.addActionListener(this);
         northPanel.add(structuredSetUpButton);
 
-        generation = new JLabel("Generation: " + brain.getGeneration());
+        generation = new GenerationLabel(brain.getGeneration());
         northPanel.add(generation);
 
         add(northPanel, BorderLayout.NORTH);
@@ -84,6 +92,10 @@ public class NeuronSystemSimulation extends JFrame implements ActionListener {
         stepButton.addActionListener(this);
         buttonPanel.add(stepButton);
 
+        JButton backButton = new JButton("Back");
+        backButton.addActionListener(this);
+        buttonPanel.add(backButton);
+
         runStopToggle = new JButton("Run/Stop");
         runStopToggle.addActionListener(this);
         buttonPanel.add(runStopToggle);
@@ -92,6 +104,22 @@ public class NeuronSystemSimulation extends JFrame implements ActionListener {
         autoManualToggle.addActionListener(this);
         buttonPanel.add(autoManualToggle);
 
+        JLabel rateLabel = new JLabel("Generations/s (0 = max): ");
+        buttonPanel.add(rateLabel);
+
+        textRate = new JTextField(String.valueOf((int) rate), FIELD_SIZE);
+        textRate.setActionCommand("Rate");
+        textRate.addActionListener(this);
+        buttonPanel.add(textRate);
+
+        JLabel seekLabel = new JLabel("Generation: ");
+        buttonPanel.add(seekLabel);
+
+        textSeek = new JTextField(FIELD_SIZE);
+        textSeek.setActionCommand("Seek");
+        textSeek.addActionListener(this);
+        buttonPanel.add(textSeek);
+
         controlPanel.add(buttonPanel);
 
         //Reset section of Control Panel
@@ -118,6 +146,16 @@ public class NeuronSystemSimulation extends JFrame implements ActionListener {
 
         add(controlPanel, BorderLayout.SOUTH);
 
+        // Samples the brain at the screen refresh rate on the event thread
+        displayTimer = new javax.swing.Timer(1000 / REFRESH_RATE,
+                new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                display();
+            }
+        });
+        displayTimer.start();
+
     }
 
     public static void main(String[] args) {
@@ -131,29 +169,38 @@ public class NeuronSystemSimulation extends JFrame implements ActionListener {
 
         switch (buttonString) {
             case "Step":
-                step();
                 if (running) {
                     running = false;
-                    timer.cancel();
+                    brain.getLoop().stop();
                     System.out.println("Stopped");
                     runStopToggle.setText("Run");
                 }
+                brain.showLive();
+                brain.getLoop().step();
+                break;
+            case "Back":
+                stop();
+                show(brain.getDisplayedGeneration() - 1);
+                break;
+            case "Seek":
+                stop();
+                try {
+                    show(Integer.parseInt(textSeek.getText().trim()));
+                } catch (NumberFormatException ex) {
+                    textSeek.setText("");
+                }
                 break;
             case "Run":
             case "Stop":
             case "Run/Stop":
                 running = !running;
                 if (running) {
-                    timer = new Timer();
-                    timer.schedule(new TimerTask() {
-                        public void run() {
-                            step();
-                        }
-                    }, 0, 200);
+                    brain.showLive();
+                    brain.getLoop().start();
                     System.out.println("Running");
                     runStopToggle.setText("Stop");
                 } else {
-                    timer.cancel();
+                    brain.getLoop().stop();
                     System.out.println("Stopped");
                     runStopToggle.setText("Run");
                 }
@@ -161,45 +208,62 @@ public class NeuronSystemSimulation extends JFrame implements ActionListener {
             case "Random":
                 if (running) {
                     running = false;
-                    timer.cancel();
                     System.out.println("Stopped");
                     runStopToggle.setText("Run");
                 }
+                brain.shutdown();
                 remove(brain);
                 brain = new Brain(Integer.parseInt(textN.getText()), 
                         Integer.parseInt(textM.getText()), "Random");
                 add(brain, BorderLayout.CENTER);
                 validate();
+                watch();
                 brain.setAuto(auto);
+                brain.getLoop().setRate(rate);
                 break;
             case "Structured":
                 if (running) {
                     running = false;
-                    timer.cancel();
                     System.out.println("Stopped");
                     runStopToggle.setText("Run");
                 }
+                brain.shutdown();
                 remove(brain);
                 brain = new Brain(Integer.parseInt(textN.getText()), 
                         Integer.parseInt(textM.getText()), "Structured");
                 add(brain, BorderLayout.CENTER);
                 validate();
+                watch();
                 brain.setAuto(auto);
+                brain.getLoop().setRate(rate);
                 break;
             case "Reset":
                 if (running) {
                     running = false;
-                    timer.cancel();
                     System.out.println("Stopped");
                     runStopToggle.setText("Run");
                 }
+                brain.shutdown();
                 remove(brain);
                 brain = new Brain(Integer.parseInt(textN.getText()), 
                         Integer.parseInt(textM.getText()), brain.getSetup());
                 add(brain, BorderLayout.CENTER);
                 validate();
+                watch();
                 brain.setAuto(auto);
+                brain.getLoop().setRate(rate);
 
+                break;
+            case "Rate":
+                try {
+                    double newRate = Double.parseDouble(textRate.getText());
+                    brain.getLoop().setRate(newRate);
+                    rate = newRate;
+                    System.out.println(rate > 0 ? "Rate " + rate
+                            + " generations/s" : "Rate as fast as possible");
+                } catch (IllegalArgumentException ex) {
+                    textRate.setText(String.valueOf(rate));
+                }
                 break;
             case "Auto Stimulation":
             case "Manual Stimulation":
@@ -217,10 +281,58 @@ public class NeuronSystemSimulation extends JFrame implements ActionListener {
         }
     }
 
-    private void step() {
-        brain.update();
+    /**
+     * Stops the brain, if it is running.
+     */
+    private void stop() {
+        if (running) {
+            running = false;
+            brain.getLoop().stop();
+            System.out.println("Stopped");
+            runStopToggle.setText("Run");
+        }
+    }
+
+    /**
+     * Shows a generation from the history of the brain, moved into the
+     * generations the history holds.
+     *
+     * @param g - int - the generation to show
+     */
+    private void show(int g) {
+        History history = brain.getHistory();
+        if (history == null || history.getLast() < 0) {
+            return;
+        }
+        g = Math.max(history.getFirst(), Math.min(history.getLast(), g));
+        if (brain.showGeneration(g)) {
+            generation.setGeneration(g);
+        }
+    }
+
+    /**
+     * Shows the metrics of the current brain through JMX, replacing the
+     * ones of the brain before it.
+     */
+    private void watch() {
+        try {
+            if (metrics != null) {
+                metrics.close();
+            }
+            metrics = new SimulationMetrics(brain.getCore());
+            metrics.register("gui");
+        } catch (JMException e) {
+            System.out.println("Could not register the metrics: " + e);
+        }
+    }
+
+    /**
+     * Shows the latest generation of the brain. Runs on the event dispatch
+     * thread.
+     */
+    private void display() {
         brain.display();
-        generation.setText("Generation: " + brain.getGeneration());
+        generation.setGeneration(brain.getDisplayedGeneration());
     }
 
 }
@@ -0,0 +1,596 @@
+package neuronsystemsimulation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The OffHeapGrid keeps the neurons and synapses of a SimulationCore outside
+ * the Java heap, in direct ByteBuffers or in a memory-mapped file, so grids of
+ * hundreds of millions of neurons run without a heap of the same size and
+ * without the garbage collector ever scanning them.
+ *
+ * Every neuron has a record of RECORD bytes, in row-major order:
+ * <pre>
+ * double state, double state    the current and the new state, which slot
+ *                               is current swaps every generation
+ * double leak, double threshold
+ * byte direction, byte resistance, short roundsSinceLTP   east synapse
+ * byte direction, byte resistance, short roundsSinceLTP   south synapse
+ * </pre>
+ * so updating a neuron reads one record and those of its neighbours, instead
+ * of seven arrays. A ByteBuffer holds at most 2 GB, so the records are split
+ * into chunks of whole rows of at most MAX_CHUNK bytes each.
+ *
+ * A file-backed grid starts with a header of HEADER bytes, written by
+ * flush():
+ * <pre>
+ * int    magic "NSSG"
+ * short  version
+ * short  flags (FLAG_AUTO, FLAG_SWAPPED, FLAG_LITTLE_ENDIAN)
+ * int    N, M
+ * int    generation
+ * long   seed of the RandomSource
+ * double auto stimulation cutoff, double max stimulation
+ * int    max rounds since LTP
+ * short  length of the setup name, then the name in UTF-8
+ * </pre>
+ * The records are in the byte order of the machine that created the file.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+class OffHeapGrid implements GridStore {
+
+    static final int MAGIC = 0x4e535347; // "NSSG"
+    static final short VERSION = 1;
+    static final short FLAG_AUTO = 1; //auto stimulation was on
+    static final short FLAG_SWAPPED = 2; //the current state is the second
+    static final short FLAG_LITTLE_ENDIAN = 4;
+    static final int HEADER = 4096;
+
+    private static final int MAX_CHUNK = 1 << 30; //bytes mapped at a time
+    private static final int STATE = 0; //two slots of 8 bytes
+    private static final int LEAK = 16;
+    private static final int THRESHOLD = 24;
+    private static final int EAST = 32;
+    private static final int SOUTH = 36;
+    private static final int DIRECTION = 0; //offsets within a synapse
+    private static final int RESISTANCE = 1;
+    private static final int ROUNDS = 2;
+    static final int RECORD = 40;
+
+    private final int N;
+    private final int M;
+    private final int rowsPerChunk;
+    private final int rowBytes;
+    private final FileChannel channel; //null for direct buffers
+    private final MappedByteBuffer header;
+    private ByteBuffer[] chunks;
+    private int current = STATE; //offset of the current state
+    private int next = STATE + 8;
+
+    //read from the header by open()
+    private int generation;
+    private long seed;
+    private String setup;
+    private boolean auto;
+    private double stimulationCutoff;
+    private double maxStimulation;
+    private int maxRoundsSinceLTP;
+
+    /**
+     * Allocates an N x M grid with every value 0, in direct buffers or in a
+     * new file.
+     *
+     * @param N - int - num rows
+     * @param M - int - num cols
+     * @param file - Path - the file to map, replacing it if it exists, or
+     * null to use direct buffers
+     * @throws IOException if the file cannot be mapped
+     */
+    OffHeapGrid(int N, int M, Path file) throws IOException {
+        this(N, M, file == null ? null : FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    private OffHeapGrid(int N, int M, FileChannel channel)
+            throws IOException {
+        if (N < 2 || M < 2 || 2L * N * M > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The grid must be at least 2x2"
+                    + " and have fewer than 2^30 neurons");
+        }
+        this.N = N;
+        this.M = M;
+        this.channel = channel;
+        rowBytes = M * RECORD;
+        rowsPerChunk = Math.max(1, MAX_CHUNK / rowBytes);
+        chunks = new ByteBuffer[(N + rowsPerChunk - 1) / rowsPerChunk];
+        if (channel == null) {
+            header = null;
+        } else {
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+        }
+        for (int k = 0; k < chunks.length; k++) {
+            int rows = Math.min(rowsPerChunk, N - k * rowsPerChunk);
+            ByteBuffer chunk;
+            if (channel == null) {
+                chunk = ByteBuffer.allocateDirect(rows * rowBytes);
+            } else {
+                chunk = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER + (long) k * rowsPerChunk * rowBytes,
+                        (long) rows * rowBytes);
+            }
+            chunks[k] = chunk.order(ByteOrder.nativeOrder());
+        }
+    }
+
+    /**
+     * Maps a grid that was written by flush().
+     *
+     * @param file - Path - the file of the grid
+     * @return the grid, with the generation, seed and settings of the header
+     * @throws IOException if the file is not a grid or cannot be mapped
+     */
+    static OffHeapGrid open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            ByteBuffer in = ByteBuffer.allocate(HEADER);
+            while (in.hasRemaining()) {
+                if (channel.read(in) < 0) {
+                    break;
+                }
+            }
+            in.flip();
+            if (in.remaining() < HEADER || in.getInt() != MAGIC) {
+                throw new IOException("Not an off-heap grid");
+            }
+            short version = in.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported grid version " + version);
+            }
+            short flags = in.getShort();
+            if (((flags & FLAG_LITTLE_ENDIAN) != 0) != (ByteOrder
+                    .nativeOrder() == ByteOrder.LITTLE_ENDIAN)) {
+                throw new IOException("The grid was written with another"
+                        + " byte order");
+            }
+            OffHeapGrid grid = new OffHeapGrid(in.getInt(), in.getInt(),
+                    channel);
+            grid.auto = (flags & FLAG_AUTO) != 0;
+            if ((flags & FLAG_SWAPPED) != 0) {
+                grid.swap();
+            }
+            grid.generation = in.getInt();
+            grid.seed = in.getLong();
+            grid.stimulationCutoff = in.getDouble();
+            grid.maxStimulation = in.getDouble();
+            grid.maxRoundsSinceLTP = in.getInt();
+            byte[] setup = new byte[in.getShort()];
+            in.get(setup);
+            grid.setup = new String(setup, StandardCharsets.UTF_8);
+            return grid;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Draws the leak rates and synapses of a new grid, exactly like the
+     * constructor of a SimulationCore on the heap, in parallel for large
+     * grids. The rows only use absolute puts, so they share the buffers.
+     *
+     * @param setup - String - "Random" or "Structured"
+     * @param random - RandomSource - source of all random numbers of the run
+     */
+    void setUp(String setup, final RandomSource random) {
+        final boolean structured = setup.equals("Structured");
+        final boolean known = structured || setup.equals("Random");
+        RowFill.fill(N, M, new RowFill.Rows() {
+            @Override
+            public void fill(int lo, int hi) {
+                setUpRows(lo, hi, random, structured, known);
+            }
+        });
+    }
+
+    private void setUpRows(int lo, int hi, RandomSource random,
+            boolean structured, boolean known) {
+        for (int i = lo; i < hi; i++) {
+            ByteBuffer row = chunk(i);
+            int base = base(i);
+            for (int j = 0; j < M; j++) {
+                int c = i * M + j;
+                int o = base + j * RECORD;
+                double leak = SimulationCore.leakRate(random, c);
+                row.putDouble(o + LEAK, leak);
+                row.putDouble(o + THRESHOLD, leak + 0.5);
+                if (!known) {
+                    continue;
+                }
+                if (j < M - 1) {
+                    row.put(o + EAST + DIRECTION, structured
+                            ? SimulationCore.FORWARD
+                            : SimulationCore.randomDirection(random, c,
+                                    SimulationCore.EAST));
+                    row.put(o + EAST + RESISTANCE, (byte) (structured
+                            ? SimulationCore.DEFAULT_VERTICAL_THICKNESS
+                            : SimulationCore.randomThickness(random, c,
+                                    SimulationCore.EAST)));
+                }
+                if (i < N - 1) {
+                    row.put(o + SOUTH + DIRECTION, structured
+                            ? SimulationCore.FORWARD
+                            : SimulationCore.randomDirection(random, c,
+                                    SimulationCore.SOUTH));
+                    row.put(o + SOUTH + RESISTANCE, (byte) (structured
+                            ? SimulationCore.DEFAULT_HORIZONTAL_THICKNESS
+                            : SimulationCore.randomThickness(random, c,
+                                    SimulationCore.SOUTH)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates every neuron of the grid for the current generation of a core,
+     * with the same rules and in the same order as SimulationCore.update(),
+     * so the result is the same as on the heap.
+     *
+     * @param core - SimulationCore - the core the grid belongs to
+     */
+    @Override
+    public void step(SimulationCore core) {
+        RandomSource random = core.getRandom();
+        int generation = core.getGeneration();
+        boolean auto = core.isAuto();
+        StepCounts counts = core.counts;
+        prepareRow(0, random, generation, auto, core);
+        for (int i = 0; i < N; i++) {
+            if (i + 1 < N) {
+                prepareRow(i + 1, random, generation, auto, core);
+            }
+            updateRow(i, core.maxRoundsSinceLTP, counts);
+        }
+        swap();
+    }
+
+    /**
+     * Starts the new states of one row from the current states, adding the
+     * random auto stimulation if it is on.
+     */
+    private void prepareRow(int i, RandomSource random, int generation,
+            boolean auto, SimulationCore core) {
+        ByteBuffer row = chunk(i);
+        int o = base(i);
+        int c = i * M;
+        for (int j = 0; j < M; j++, c++, o += RECORD) {
+            double s = row.getDouble(o + current);
+            if (auto) {
+                double amount = SimulationCore.autoStimulation(random,
+                        generation, c, core.stimulationCutoff,
+                        core.maxStimulation);
+                if (amount > 0) {
+                    s += amount;
+                }
+            }
+            row.putDouble(o + next, s);
+        }
+    }
+
+    /**
+     * Fires the neurons of row i through their outgoing synapses, then
+     * applies the leak and ages the synapses, see
+     * SimulationCore.updateNeuron(). Row i + 1 must be prepared.
+     */
+    private void updateRow(int i, int maxRounds, StepCounts counts) {
+        ByteBuffer row = chunk(i);
+        ByteBuffer north = i > 0 ? chunk(i - 1) : null;
+        ByteBuffer south = i + 1 < N ? chunk(i + 1) : null;
+        int o = base(i);
+        int n = i > 0 ? base(i - 1) : 0;
+        int s = i + 1 < N ? base(i + 1) : 0;
+        for (int j = 0; j < M; j++, o += RECORD, n += RECORD, s += RECORD) {
+            boolean toNorth = i > 0 && north.get(n + SOUTH + DIRECTION)
+                    == SimulationCore.BACKWARD;
+            boolean toEast = row.get(o + EAST + DIRECTION)
+                    == SimulationCore.FORWARD;
+            boolean toSouth = row.get(o + SOUTH + DIRECTION)
+                    == SimulationCore.FORWARD;
+            boolean toWest = j > 0 && row.get(o - RECORD + EAST + DIRECTION)
+                    == SimulationCore.BACKWARD;
+
+            double state = row.getDouble(o + current);
+            if (state >= row.getDouble(o + THRESHOLD)) {
+                counts.fired++;
+                if (toNorth) {
+                    double signal = fire(row, o, state, north, n + SOUTH,
+                            counts);
+                    if (signal > 0) {
+                        north.putDouble(n + next,
+                                north.getDouble(n + next) + signal);
+                    }
+                }
+                if (toEast) {
+                    double signal = fire(row, o, state, row, o + EAST,
+                            counts);
+                    if (signal > 0) {
+                        row.putDouble(o + RECORD + next,
+                                row.getDouble(o + RECORD + next) + signal);
+                    }
+                }
+                if (toSouth) {
+                    double signal = fire(row, o, state, row, o + SOUTH,
+                            counts);
+                    if (signal > 0) {
+                        south.putDouble(s + next,
+                                south.getDouble(s + next) + signal);
+                    }
+                }
+                if (toWest) {
+                    double signal = fire(row, o, state, row,
+                            o - RECORD + EAST, counts);
+                    if (signal > 0) {
+                        row.putDouble(o - RECORD + next,
+                                row.getDouble(o - RECORD + next) + signal);
+                    }
+                }
+            }
+
+            double newState = row.getDouble(o + next);
+            if (newState < 0) {
+                continue;
+            }
+            double leak = row.getDouble(o + LEAK);
+            row.putDouble(o + next, newState > leak ? newState - leak : 0);
+            if (toNorth) {
+                age(north, n + SOUTH, maxRounds, counts);
+            }
+            if (toEast) {
+                age(row, o + EAST, maxRounds, counts);
+            }
+            if (toSouth) {
+                age(row, o + SOUTH, maxRounds, counts);
+            }
+            if (toWest) {
+                age(row, o - RECORD + EAST, maxRounds, counts);
+            }
+        }
+    }
+
+    /**
+     * Fires a neuron through one of its synapses, see SimulationCore.fire().
+     *
+     * @param row - ByteBuffer - chunk of the presynaptic neuron
+     * @param o - int - offset of its record
+     * @param s - double - its state
+     * @param edges - ByteBuffer - chunk of the synapse
+     * @param e - int - offset of the synapse
+     * @param counts - StepCounts - where to count the LTP and the signal
+     * @return the signal for the postsynaptic neuron, 0 if none is sent
+     */
+    private double fire(ByteBuffer row, int o, double s, ByteBuffer edges,
+            int e, StepCounts counts) {
+        int resistance = edges.get(e + RESISTANCE);
+        if ((s - (resistance / SimulationCore.DEDUCTION_RATIO))
+                > SimulationCore.MAX_SIGNAL) {
+            row.putDouble(o + next, s - SimulationCore.MAX_SIGNAL);
+            LTP(edges, e);
+            counts.potentiated++;
+            counts.signal += SimulationCore.MAX_SIGNAL;
+            return SimulationCore.MAX_SIGNAL;
+        } else if ((s - resistance / SimulationCore.DEDUCTION_RATIO) > 0) {
+            double signal = s - (resistance / SimulationCore.DEDUCTION_RATIO);
+            row.putDouble(o + next,
+                    s - (s - resistance / SimulationCore.DEDUCTION_RATIO));
+            LTP(edges, e);
+            counts.potentiated++;
+            counts.signal += signal;
+            return signal;
+        }
+        return 0;
+    }
+
+    private static void age(ByteBuffer edges, int e, int maxRounds,
+            StepCounts counts) {
+        short rounds = (short) (edges.getShort(e + ROUNDS) + 1);
+        edges.putShort(e + ROUNDS, rounds);
+        if (rounds > maxRounds) {
+            LTD(edges, e);
+            counts.depressed++;
+        }
+    }
+
+    private static void LTP(ByteBuffer edges, int e) {
+        byte resistance = edges.get(e + RESISTANCE);
+        if (resistance > 0) {
+            edges.put(e + RESISTANCE, (byte) (resistance - 1));
+        }
+        edges.putShort(e + ROUNDS, (short) 0);
+    }
+
+    private static void LTD(ByteBuffer edges, int e) {
+        byte resistance = edges.get(e + RESISTANCE);
+        if (resistance < SimulationCore.MAX_RESISTANCE) {
+            edges.put(e + RESISTANCE, (byte) (resistance + 1));
+        }
+        edges.putShort(e + ROUNDS, (short) 0);
+    }
+
+    private void swap() {
+        int swap = current;
+        current = next;
+        next = swap;
+    }
+
+    /**
+     * Gets the chunk holding a row.
+     */
+    private ByteBuffer chunk(int i) {
+        return chunks[i / rowsPerChunk];
+    }
+
+    /**
+     * Gets the offset of the first record of a row in its chunk.
+     */
+    private int base(int i) {
+        return (i % rowsPerChunk) * rowBytes;
+    }
+
+    private int offset(int i, int j) {
+        return base(i) + j * RECORD;
+    }
+
+    /**
+     * Gets the offset of a synapse within the chunk of row e / 2M.
+     *
+     * @param e - int - edge index of the synapse, see SimulationCore
+     */
+    private int edgeOffset(int e) {
+        int c = e >>> 1;
+        return offset(c / M, c % M) + ((e & 1) == 0 ? EAST : SOUTH);
+    }
+
+    private ByteBuffer edgeChunk(int e) {
+        return chunk((e >>> 1) / M);
+    }
+
+    @Override
+    public double getState(int i, int j) {
+        return chunk(i).getDouble(offset(i, j) + current);
+    }
+
+    @Override
+    public void addState(int i, int j, double amount) {
+        int o = offset(i, j) + current;
+        chunk(i).putDouble(o, chunk(i).getDouble(o) + amount);
+    }
+
+    @Override
+    public double getLeakRate(int i, int j) {
+        return chunk(i).getDouble(offset(i, j) + LEAK);
+    }
+
+    @Override
+    public double getThreshold(int i, int j) {
+        return chunk(i).getDouble(offset(i, j) + THRESHOLD);
+    }
+
+    @Override
+    public int getResistance(int e) {
+        return edgeChunk(e).get(edgeOffset(e) + RESISTANCE);
+    }
+
+    @Override
+    public byte getDirection(int e) {
+        return edgeChunk(e).get(edgeOffset(e) + DIRECTION);
+    }
+
+    @Override
+    public short getRoundsSinceLTP(int e) {
+        return edgeChunk(e).getShort(edgeOffset(e) + ROUNDS);
+    }
+
+    /**
+     * Writes the header and forces the mapped records to the file, so the
+     * file can be opened again. Does nothing for direct buffers.
+     *
+     * @param core - SimulationCore - the core the grid belongs to
+     * @throws IOException if the file cannot be written
+     */
+    void flush(SimulationCore core) throws IOException {
+        if (channel == null) {
+            return;
+        }
+        byte[] name = String.valueOf(core.getSetup())
+                .getBytes(StandardCharsets.UTF_8);
+        header.clear();
+        header.putInt(MAGIC);
+        header.putShort(VERSION);
+        header.putShort((short) ((core.isAuto() ? FLAG_AUTO : 0)
+                | (current != STATE ? FLAG_SWAPPED : 0)
+                | (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN
+                        ? FLAG_LITTLE_ENDIAN : 0)));
+        header.putInt(N);
+        header.putInt(M);
+        header.putInt(core.getGeneration());
+        header.putLong(core.getRandom().getSeed());
+        header.putDouble(core.stimulationCutoff);
+        header.putDouble(core.maxStimulation);
+        header.putInt(core.maxRoundsSinceLTP);
+        header.putShort((short) name.length);
+        header.put(name);
+        for (ByteBuffer chunk : chunks) {
+            ((MappedByteBuffer) chunk).force();
+        }
+        header.force();
+    }
+
+    /**
+     * Flushes a file-backed grid and closes its file. The memory is given
+     * back when the buffers are garbage collected.
+     *
+     * @param core - SimulationCore - the core the grid belongs to
+     * @throws IOException if the file cannot be written
+     */
+    void close(SimulationCore core) throws IOException {
+        if (chunks == null) {
+            return;
+        }
+        flush(core);
+        chunks = null;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    int getN() {
+        return N;
+    }
+
+    int getM() {
+        return M;
+    }
+
+    boolean isMapped() {
+        return channel != null;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    long getSeed() {
+        return seed;
+    }
+
+    String getSetup() {
+        return setup;
+    }
+
+    boolean isAuto() {
+        return auto;
+    }
+
+    double getStimulationCutoff() {
+        return stimulationCutoff;
+    }
+
+    double getMaxStimulation() {
+        return maxStimulation;
+    }
+
+    int getMaxRoundsSinceLTP() {
+        return maxRoundsSinceLTP;
+    }
+
+}
@@ -0,0 +1,272 @@
+package neuronsystemsimulation;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The ParallelStep updates a SimulationCore on several threads by splitting
+ * the grid into bands of rows.
+ *
+ * The only writes that cross a band edge are the signals the first and last
+ * rows of a band send north and south. A signal only depends on the old state
+ * of its neuron and the resistance of its synapse, so the signals going
+ * south into each band are computed before any band starts, and the signals
+ * going north are collected per band and added after all bands are done.
+ * This keeps the order in which every neuron accumulates its inputs, so no
+ * locks are needed and the result is the same as the sequential update. The
+ * auto stimulation comes from the RandomSource of the core, which gives the
+ * same numbers to every band no matter which thread asks.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+class ParallelStep {
+
+    private static final int BANDS_PER_THREAD = 4;
+    private static final long WARM_UP_MILLIS = 1000;
+
+    private final SimulationCore core;
+    private final int threads;
+    private final ForkJoinPool pool;
+    private final int[] bandStart; //first row of each band, then N
+    private final double[][] haloSouth; //signal into the first row of a band
+    private final double[][] haloNorth; //signal out of the first row of a band
+    private final Band[] bands;
+    private final Phase[] collect; //first phase task of each band
+    private final Phase[] update; //second phase task of each band
+    private final Start start = new Start();
+    private final AtomicInteger remaining = new AtomicInteger();
+    private volatile Thread caller;
+    private volatile boolean done;
+    private volatile RuntimeException failure;
+    private boolean started; //whether the tasks have run before
+
+    /**
+     * Splits the grid of a core into bands.
+     *
+     * @param core - SimulationCore - the simulation to update
+     * @param threads - int - number of worker threads
+     */
+    ParallelStep(SimulationCore core, int threads) {
+        this.core = core;
+        this.threads = threads;
+        pool = new ForkJoinPool(threads);
+
+        int N = core.getN();
+        int M = core.getM();
+        int numBands = Math.min(N, threads * BANDS_PER_THREAD);
+        bandStart = new int[numBands + 1];
+        for (int b = 0; b <= numBands; b++) {
+            bandStart[b] = (int) ((long) b * N / numBands);
+        }
+        haloSouth = new double[numBands][M];
+        haloNorth = new double[numBands][M];
+        bands = new Band[numBands];
+        collect = new Phase[numBands];
+        update = new Phase[numBands];
+        for (int b = 0; b < numBands; b++) {
+            bands[b] = new Band(b);
+            collect[b] = new Phase(bands[b], false);
+            update[b] = new Phase(bands[b], true);
+        }
+        warmUp();
+    }
+
+    /**
+     * Starts every worker of the pool. The pool creates its workers, their
+     * queues and the queue of the calling thread the first time they are
+     * needed, so without this the first generations allocate, and a worker
+     * that is only needed now and then is created in the middle of a run.
+     * Each worker takes one task that waits until all of them are taken.
+     */
+    private void warmUp() {
+        final CountDownLatch taken = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    taken.countDown();
+                    try {
+                        taken.await(WARM_UP_MILLIS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        try {
+            taken.await(WARM_UP_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pool.awaitQuiescence(WARM_UP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Computes one generation into the new state buffer of the core.
+     *
+     * No task ever joins another, since a join that has to wait allocates a
+     * wait node. Instead the last band to finish the first phase forks the
+     * second, and the last band to finish that wakes up the caller, which
+     * waits with park instead of pool.invoke().
+     */
+    void step() {
+        //a task wakes the caller up just before the pool marks it as done,
+        //so let the pool finish that before the tasks are reused
+        awaitDone(start);
+        for (int b = 0; b < bands.length; b++) {
+            awaitDone(collect[b]);
+            awaitDone(update[b]);
+            collect[b].reinitialize();
+            update[b].reinitialize();
+        }
+        start.reinitialize();
+        started = true;
+        caller = Thread.currentThread();
+        done = false;
+        remaining.set(bands.length);
+        pool.execute(start);
+        while (!done) {
+            LockSupport.park(this);
+        }
+        if (failure != null) {
+            RuntimeException e = failure;
+            failure = null;
+            throw e;
+        }
+        for (Band band : bands) {
+            core.counts.add(band.counts);
+        }
+
+        int M = core.getM();
+        double[] newState = core.newState;
+        for (int b = 1; b < bands.length; b++) {
+            int c = (bandStart[b] - 1) * M;
+            for (int j = 0; j < M; j++, c++) {
+                if (haloNorth[b][j] > 0) {
+                    newState[c] += haloNorth[b][j];
+                }
+            }
+        }
+    }
+
+    private void awaitDone(ForkJoinTask<?> task) {
+        while (started && !task.isDone()) {
+            Thread.yield();
+        }
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Forks the first phase of every band.
+     */
+    private class Start extends RecursiveAction {
+
+        @Override
+        protected void compute() {
+            for (Phase phase : collect) {
+                phase.fork();
+            }
+        }
+    }
+
+    /**
+     * One phase of one band. The last band to finish a phase starts the next
+     * phase, or ends the generation.
+     */
+    private class Phase extends RecursiveAction {
+
+        private final Band band;
+        private final boolean updating;
+
+        Phase(Band band, boolean updating) {
+            this.band = band;
+            this.updating = updating;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (updating && failure == null) {
+                    band.update();
+                } else if (!updating) {
+                    band.collectHaloSouth();
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            if (remaining.decrementAndGet() > 0) {
+                return;
+            }
+            if (!updating) {
+                remaining.set(bands.length);
+                for (Phase phase : update) {
+                    phase.fork();
+                }
+            } else {
+                done = true;
+                LockSupport.unpark(caller);
+            }
+        }
+    }
+
+    /**
+     * One band of rows. It first collects the signals its northern neighbour
+     * band sends into it, then updates its rows.
+     */
+    private class Band {
+
+        private final int b;
+        private final StepCounts counts = new StepCounts();
+
+        Band(int b) {
+            this.b = b;
+        }
+
+        void collectHaloSouth() {
+            if (b == 0) {
+                return;
+            }
+            int M = core.getM();
+            int c = (bandStart[b] - 1) * M;
+            for (int j = 0; j < M; j++, c++) {
+                haloSouth[b][j] = core.direction[2 * c + 1]
+                        == SimulationCore.FORWARD
+                        ? core.outgoingSignal(c, 2 * c + 1) : 0;
+            }
+        }
+
+        void update() {
+            int lo = bandStart[b];
+            int M = core.getM();
+            core.prepareRow(lo);
+            if (b > 0) {
+                double[] newState = core.newState;
+                int c = lo * M;
+                for (int j = 0; j < M; j++, c++) {
+                    if (haloSouth[b][j] > 0) {
+                        newState[c] += haloSouth[b][j];
+                    }
+                }
+            }
+            Arrays.fill(haloNorth[b], 0);
+            counts.record(core.counts.events != null, 0);
+            counts.clear();
+            core.updateRows(lo, bandStart[b + 1], haloNorth[b], counts);
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+package neuronsystemsimulation;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The PatternStimulus adds the same spatial pattern to the grid every period
+ * generations, in generations 1, 1 + period, 1 + 2 * period and so on, like
+ * a picture flashed on a retina. Only the neurons with a nonzero amount are
+ * kept, so a pattern costs as much as the neurons it covers. Its cells can
+ * also be handed to a PoissonStimulus to make them spike at random instead.
+ *
+ * A pattern file has one line per row of the grid with one amount per col,
+ * separated by spaces or commas. Missing rows and cols are 0, and lines
+ * starting with # are skipped:
+ * <pre>
+ * # a bar across rows 1 and 2
+ * 0 0 0 0
+ * 3 3 3 3
+ * 3 3 3 3
+ * </pre>
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class PatternStimulus implements StimulusSource {
+
+    private final int[] cells;
+    private final double[] amounts;
+    private final int period;
+
+    /**
+     * Creates a pattern from a matrix of amounts.
+     *
+     * @param amounts - double[][] - amount for row i, col j; rows may be
+     * shorter than the grid
+     * @param M - int - num cols of the grid
+     * @param period - int - generations between two flashes, at least 1
+     */
+    public PatternStimulus(double[][] amounts, int M, int period) {
+        if (period < 1) {
+            throw new IllegalArgumentException("period must be >= 1");
+        }
+        int count = 0;
+        for (double[] row : amounts) {
+            if (row.length > M) {
+                throw new IllegalArgumentException("The pattern is wider than"
+                        + " the grid");
+            }
+            for (double amount : row) {
+                if (amount != 0) {
+                    count++;
+                }
+            }
+        }
+        cells = new int[count];
+        this.amounts = new double[count];
+        int k = 0;
+        for (int i = 0; i < amounts.length; i++) {
+            for (int j = 0; j < amounts[i].length; j++) {
+                if (amounts[i][j] != 0) {
+                    cells[k] = i * M + j;
+                    this.amounts[k] = amounts[i][j];
+                    k++;
+                }
+            }
+        }
+        this.period = period;
+    }
+
+    /**
+     * Reads a pattern file.
+     *
+     * @param file - Path - the pattern
+     * @param M - int - num cols of the grid
+     * @param period - int - generations between two flashes, at least 1
+     * @return the pattern
+     * @throws IOException if the file cannot be read or holds something that
+     * is not a number
+     */
+    public static PatternStimulus read(Path file, int M, int period)
+            throws IOException {
+        List<double[]> rows = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(file,
+                StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.isEmpty() ? new String[0]
+                        : line.split("[,\\s]+");
+                double[] row = new double[fields.length];
+                for (int j = 0; j < fields.length; j++) {
+                    try {
+                        row[j] = Double.parseDouble(fields[j]);
+                    } catch (NumberFormatException e) {
+                        throw new IOException(file + ": row " + rows.size()
+                                + " col " + j + " is not a number: "
+                                + fields[j]);
+                    }
+                }
+                rows.add(row);
+            }
+        }
+        return new PatternStimulus(rows.toArray(new double[rows.size()][]),
+                M, period);
+    }
+
+    @Override
+    public void fill(int generation, Stimuli out) {
+        if ((generation - 1) % period != 0) {
+            return;
+        }
+        for (int k = 0; k < cells.length; k++) {
+            out.add(cells[k], amounts[k]);
+        }
+    }
+
+    /**
+     * Gets the neurons the pattern stimulates.
+     *
+     * @return their cells in increasing order
+     */
+    public int[] getCells() {
+        return cells.clone();
+    }
+
+    public int getPeriod() {
+        return period;
+    }
+
+}
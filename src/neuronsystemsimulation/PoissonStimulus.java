@@ -0,0 +1,110 @@
+package neuronsystemsimulation;
+
+/**
+ * The PoissonStimulus gives every neuron of a grid, or of a region of it, an
+ * independent spike train: in each generation a neuron spikes with the same
+ * probability, and a spike adds a random amount up to a maximum to its state.
+ * That is the auto stimulation of a SimulationCore with its probability, and
+ * the Bernoulli form of a Poisson train with a rate of -ln(1 - probability)
+ * spikes per generation.
+ *
+ * Instead of flipping a coin for every neuron, the source draws the gap to
+ * the next neuron that spikes. The gaps between successes of independent
+ * trials follow a geometric distribution, so a gap is
+ * floor(ln(1 - u) / ln(1 - probability)) for a uniform u, and a generation
+ * costs two draws per spike instead of one or two per neuron. The draws come
+ * from the RandomSource of the source with the generation and the number of
+ * the spike, so a seed replays the same spikes, but not the same ones as the
+ * auto stimulation of a core with that seed.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class PoissonStimulus implements StimulusSource {
+
+    private static final int GAP_DRAW = 0;
+    private static final int AMOUNT_DRAW = 1;
+
+    private final int[] region; //null for all the cells
+    private final int cells;
+    private final double probability;
+    private final double logMiss; //ln(1 - probability)
+    private final double max;
+    private final RandomSource random;
+
+    /**
+     * Stimulates all the neurons of a grid.
+     *
+     * @param cells - int - N * M of the grid
+     * @param probability - double - chance that a neuron spikes in a
+     * generation
+     * @param max - double - the largest stimulation of a spike
+     * @param random - RandomSource - source of the spikes
+     */
+    public PoissonStimulus(int cells, double probability, double max,
+            RandomSource random) {
+        this(null, cells, probability, max, random);
+    }
+
+    /**
+     * Stimulates the neurons of a region.
+     *
+     * @param region - int[] - the cells of the region in increasing order,
+     * e.g. PatternStimulus.getCells()
+     * @param probability - double - chance that a neuron spikes in a
+     * generation
+     * @param max - double - the largest stimulation of a spike
+     * @param random - RandomSource - source of the spikes
+     */
+    public PoissonStimulus(int[] region, double probability, double max,
+            RandomSource random) {
+        this(region.clone(), region.length, probability, max, random);
+        for (int k = 1; k < region.length; k++) {
+            if (region[k] <= region[k - 1]) {
+                throw new IllegalArgumentException("The cells of a region"
+                        + " must be increasing");
+            }
+        }
+    }
+
+    private PoissonStimulus(int[] region, int cells, double probability,
+            double max, RandomSource random) {
+        if (probability < 0 || probability > 1 || max < 0) {
+            throw new IllegalArgumentException("probability must be in [0, 1]"
+                    + " and max >= 0");
+        }
+        this.region = region;
+        this.cells = cells;
+        this.probability = probability;
+        this.max = max;
+        this.random = random;
+        logMiss = Math.log1p(-probability);
+    }
+
+    @Override
+    public void fill(int generation, Stimuli out) {
+        if (probability == 0) {
+            return;
+        }
+        long c = -1;
+        for (int k = 0; ; k++) {
+            double u = random.uniform(generation, k, GAP_DRAW);
+            //1 - u is in (0, 1], so the gap is finite and not negative
+            c += 1 + (long) (Math.log1p(-u) / logMiss);
+            if (c >= cells) {
+                return;
+            }
+            int cell = region != null ? region[(int) c] : (int) c;
+            out.add(cell, random.uniform(generation, k, AMOUNT_DRAW) * max);
+        }
+    }
+
+    public double getProbability() {
+        return probability;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+}
@@ -0,0 +1,161 @@
+package neuronsystemsimulation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the same grid in double precision and in the compact precisions of
+ * SimulationCore.compact(), and prints how far the compact runs drift from
+ * the double one. Usage:
+ * <pre>
+ * java -cp NeuronSystemSimulation.jar neuronsystemsimulation.PrecisionDrift
+ *         [rows] [cols] [generations] [Random|Structured] [auto|manual]
+ *         [seed]
+ * </pre>
+ * Every -Ddrift.every generations (default 10) it prints, for each of the
+ * -Dprecision precisions (default "float,fixed"), the largest and the root
+ * mean square difference of the neuron states, the number of neurons that
+ * fire in one run but not in the other, and the number of synapses whose
+ * resistance differs. Once a neuron fires differently the runs take
+ * different paths, so the last two show when the rounding starts to change
+ * the behaviour and not just the values.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class PrecisionDrift {
+
+    private static final int DEFAULT_N = 200;
+    private static final int DEFAULT_M = 200;
+    private static final int DEFAULT_GENERATIONS = 100;
+    private static final int DEFAULT_EVERY = 10;
+    private static final int DOUBLE_BYTES_PER_CELL = 4 * 8 + 2 * 4;
+
+    /**
+     * The difference between a compact core and the reference at one
+     * generation.
+     */
+    static class Drift {
+
+        double maxError;
+        double rmsError;
+        long firingDifferences;
+        long resistanceDifferences;
+
+        /**
+         * Compares two cores of the same size.
+         *
+         * @param reference - SimulationCore - the core in double precision
+         * @param other - SimulationCore - the core to compare with it
+         */
+        Drift(SimulationCore reference, SimulationCore other) {
+            int N = reference.getN();
+            int M = reference.getM();
+            double squares = 0;
+            for (int i = 0; i < N; i++) {
+                for (int j = 0; j < M; j++) {
+                    double a = reference.getState(i, j);
+                    double b = other.getState(i, j);
+                    double error = Math.abs(a - b);
+                    maxError = Math.max(maxError, error);
+                    squares += error * error;
+                    if ((a >= reference.getThreshold(i, j))
+                            != (b >= other.getThreshold(i, j))) {
+                        firingDifferences++;
+                    }
+                    if (reference.getResistance(i, j, SimulationCore.EAST)
+                            != other.getResistance(i, j,
+                                    SimulationCore.EAST)) {
+                        resistanceDifferences++;
+                    }
+                    if (reference.getResistance(i, j, SimulationCore.SOUTH)
+                            != other.getResistance(i, j,
+                                    SimulationCore.SOUTH)) {
+                        resistanceDifferences++;
+                    }
+                }
+            }
+            rmsError = Math.sqrt(squares / ((long) N * M));
+        }
+    }
+
+    public static void main(String[] args) {
+        int N = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_N;
+        int M = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_M;
+        int generations = args.length > 2
+                ? Integer.parseInt(args[2]) : DEFAULT_GENERATIONS;
+        String setup = args.length > 3 ? args[3] : "Random";
+        boolean auto = args.length <= 4 || args[4].equals("auto");
+        long seed = args.length > 5
+                ? Long.parseLong(args[5]) : System.nanoTime();
+        int every = Math.max(1, Integer.getInteger("drift.every",
+                DEFAULT_EVERY));
+        String[] precisions = System.getProperty("precision", "float,fixed")
+                .split(",");
+
+        SimulationCore reference = new SimulationCore(N, M, setup,
+                new CounterRandom(seed));
+        reference.setAuto(auto);
+        List<SimulationCore> cores = new ArrayList<>();
+        for (String precision : precisions) {
+            SimulationCore core = SimulationCore.compact(N, M, setup,
+                    new CounterRandom(seed), precision);
+            core.setAuto(auto);
+            cores.add(core);
+        }
+        long[] nanos = new long[cores.size() + 1];
+
+        System.out.println("Grid: " + N + "x" + M + " " + setup
+                + (auto ? " auto" : " manual") + " stimulation, seed "
+                + seed);
+        System.out.println("Bytes per cell: double " + DOUBLE_BYTES_PER_CELL
+                + describe(cores));
+        System.out.printf("%10s %9s %12s %12s %10s %10s%n", "generation",
+                "precision", "max error", "rms error", "firing", "resistance");
+        report(0, precisions, reference, cores);
+        for (int g = 1; g <= generations; g++) {
+            long start = System.nanoTime();
+            reference.update();
+            nanos[0] += System.nanoTime() - start;
+            for (int k = 0; k < cores.size(); k++) {
+                start = System.nanoTime();
+                cores.get(k).update();
+                nanos[k + 1] += System.nanoTime() - start;
+            }
+            if (g % every == 0 || g == generations) {
+                report(g, precisions, reference, cores);
+            }
+        }
+
+        long cellGenerations = Math.max(1, (long) N * M * generations);
+        System.out.printf("Update time: double %.2f ns per cell-generation"
+                + "%n", (double) nanos[0] / cellGenerations);
+        for (int k = 0; k < cores.size(); k++) {
+            System.out.printf("Update time: %s %.2f ns per cell-generation"
+                    + "%n", precisions[k],
+                    (double) nanos[k + 1] / cellGenerations);
+        }
+    }
+
+    private static String describe(List<SimulationCore> cores) {
+        StringBuilder out = new StringBuilder();
+        for (SimulationCore core : cores) {
+            CompactGrid grid = (CompactGrid) core.getGrid();
+            out.append(", ").append(grid.getPrecision()).append(' ')
+                    .append(grid.getBytesPerCell());
+        }
+        return out.toString();
+    }
+
+    private static void report(int generation, String[] precisions,
+            SimulationCore reference, List<SimulationCore> cores) {
+        for (int k = 0; k < cores.size(); k++) {
+            Drift drift = new Drift(reference, cores.get(k));
+            System.out.printf("%10d %9s %12.6g %12.6g %10d %10d%n",
+                    generation, precisions[k], drift.maxError,
+                    drift.rmsError, drift.firingDifferences,
+                    drift.resistanceDifferences);
+        }
+    }
+
+}
@@ -0,0 +1,29 @@
+package neuronsystemsimulation;
+
+/**
+ * A RandomSource gives the random numbers a SimulationCore needs. Every draw
+ * is identified by the generation, the neuron and the number of the draw for
+ * that neuron, so the same seed replays a run exactly no matter in which
+ * order or on how many threads the neurons are updated.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public interface RandomSource {
+
+    /** Generation used for the draws made while building the grid. */
+    long SETUP = -1;
+
+    /**
+     * Draws a uniform random number.
+     *
+     * @param generation - long - the generation, or SETUP
+     * @param cell - int - index of the neuron the draw is for
+     * @param draw - int - which draw for that neuron, from 0 to 255
+     * @return a number in [0, 1)
+     */
+    double uniform(long generation, int cell, int draw);
+
+    long getSeed();
+
+}
@@ -0,0 +1,342 @@
+package neuronsystemsimulation;
+
+/**
+ * The ReferenceCore is the rules of the simulation written down the way the
+ * first version of the program ran them, one object per neuron and per
+ * synapse, and kept that way on purpose. It is slow and is not used to run
+ * brains; it is the oracle DifferentialCheck compares the fast engines with,
+ * so it must only change when the rules are meant to change.
+ *
+ * A generation has three passes over the grid, row by row: every new state
+ * starts from the old state, plus the auto stimulation; every neuron fires
+ * from its old state into the new states of its neighbours and then leaks;
+ * every state becomes the new state. The stimulations of a StimulusSource
+ * are added in the first pass, after the auto stimulation. Quirks of the
+ * first version that the fast engines must keep:
+ * <ul>
+ * <li>the resistance is cut by resistance / DEDUCTION_RATIO in integer
+ * division, so only a resistance of 3 takes anything off the signal;</li>
+ * <li>a neuron that fires sets its new state to what is left after the
+ * signal, dropping what its neighbours sent it earlier in the pass;</li>
+ * <li>the leak is applied, and the synapses age, whenever the new state is
+ * not negative, whether or not the neuron fired;</li>
+ * <li>a synapse does LTD in the round its rounds since LTP go past the
+ * maximum, and starts counting again from 0.</li>
+ * </ul>
+ * Leak rates, synapses and stimulation are drawn from the RandomSource with
+ * the same numbers as SimulationCore, so both start from the same grid.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+class ReferenceCore {
+
+    //resistances of the Structured setup
+    private static final int VERTICAL =
+            SimulationCore.DEFAULT_VERTICAL_THICKNESS;
+    private static final int HORIZONTAL =
+            SimulationCore.DEFAULT_HORIZONTAL_THICKNESS;
+
+    /**
+     * A synapse from its presynaptic to its postsynaptic neuron.
+     */
+    static class Synapse {
+
+        final Cell pre;
+        final Cell post;
+        int resistance;
+        int roundsSinceLTP;
+
+        Synapse(Cell pre, Cell post, int resistance) {
+            this.pre = pre;
+            this.post = post;
+            this.resistance = resistance;
+        }
+
+        /**
+         * LTP() (long term potentiation) makes the synapse less resistant.
+         */
+        void LTP() {
+            if (resistance > 0) {
+                resistance--;
+            }
+            roundsSinceLTP = 0;
+        }
+
+        /**
+         * LTD() (long term depression) makes the synapse more resistant.
+         */
+        void LTD() {
+            if (resistance < SimulationCore.MAX_RESISTANCE) {
+                resistance++;
+            }
+            roundsSinceLTP = 0;
+        }
+    }
+
+    /**
+     * A neuron and the synapses on its four sides.
+     */
+    static class Cell {
+
+        double state;
+        double newState;
+        final double leakRate;
+        final double threshold;
+        final Synapse[] connections =
+                new Synapse[SimulationCore.NUM_SYNAPSES];
+
+        Cell(double leakRate) {
+            this.leakRate = leakRate;
+            threshold = leakRate + 0.5;
+        }
+
+        /**
+         * Fires through the outgoing synapses if the neuron is excited
+         * enough, then leaks and ages the outgoing synapses.
+         *
+         * @param maxRoundsSinceLTP - int - rounds without LTP before LTD
+         */
+        void update(int maxRoundsSinceLTP) {
+            if (state >= threshold) {
+                for (Synapse synapse : connections) {
+                    if (synapse == null || synapse.pre != this) {
+                        continue;
+                    }
+                    int cut = synapse.resistance
+                            / SimulationCore.DEDUCTION_RATIO;
+                    if (state - cut > SimulationCore.MAX_SIGNAL) {
+                        newState = state - SimulationCore.MAX_SIGNAL;
+                        synapse.post.newState += SimulationCore.MAX_SIGNAL;
+                        synapse.LTP();
+                    } else if (state - cut > 0) {
+                        newState = state - (state - cut);
+                        synapse.post.newState += state - cut;
+                        synapse.LTP();
+                    }
+                }
+            }
+            if (newState >= 0) {
+                if (newState > leakRate) {
+                    newState -= leakRate;
+                } else {
+                    newState = 0;
+                }
+                for (Synapse synapse : connections) {
+                    if (synapse == null || synapse.pre != this) {
+                        continue;
+                    }
+                    synapse.roundsSinceLTP++;
+                    if (synapse.roundsSinceLTP > maxRoundsSinceLTP) {
+                        synapse.LTD();
+                    }
+                }
+            }
+        }
+    }
+
+    private final int N;
+    private final int M;
+    private final Cell[][] cells;
+    private final RandomSource random;
+    private int generation = 0;
+    private boolean auto;
+    private double stimulationCutoff = SimulationCore.STIMULATION_CUTOFF;
+    private double maxStimulation = SimulationCore.MAX_RANDOM_STIMULATION;
+    private int maxRoundsSinceLTP = SimulationCore.MAX_ROUNDS_SINCE_LTP;
+    private StimulusSource stimulus;
+    private final Stimuli stimuli = new Stimuli();
+
+    /**
+     * Creates the grid new SimulationCore(N, M, setupCommand, random) would
+     * create.
+     *
+     * @param N - int - num rows, at least 2
+     * @param M - int - num cols, at least 2
+     * @param setupCommand - String - "Random" or "Structured"
+     * @param random - RandomSource - source of all random numbers of the run
+     */
+    ReferenceCore(int N, int M, String setupCommand, RandomSource random) {
+        if (N < 2 || M < 2) {
+            throw new IllegalArgumentException("The grid must be at least"
+                    + " 2x2");
+        }
+        this.N = N;
+        this.M = M;
+        this.random = random;
+        boolean structured = setupCommand.equals("Structured");
+        if (!structured && !setupCommand.equals("Random")) {
+            throw new IllegalArgumentException("Unknown setup "
+                    + setupCommand);
+        }
+        cells = new Cell[N][M];
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < M; j++) {
+                cells[i][j] = new Cell(SimulationCore.leakRate(random,
+                        i * M + j));
+            }
+        }
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < M; j++) {
+                int c = i * M + j;
+                if (j < M - 1) {
+                    connect(cells[i][j], cells[i][j + 1], SimulationCore.EAST,
+                            structured ? SimulationCore.FORWARD
+                                    : SimulationCore.randomDirection(random,
+                                            c, SimulationCore.EAST),
+                            structured ? VERTICAL
+                                    : SimulationCore.randomThickness(random,
+                                            c, SimulationCore.EAST));
+                }
+                if (i < N - 1) {
+                    connect(cells[i][j], cells[i + 1][j], SimulationCore.SOUTH,
+                            structured ? SimulationCore.FORWARD
+                                    : SimulationCore.randomDirection(random,
+                                            c, SimulationCore.SOUTH),
+                            structured ? HORIZONTAL
+                                    : SimulationCore.randomThickness(random,
+                                            c, SimulationCore.SOUTH));
+                }
+            }
+        }
+    }
+
+    /**
+     * Connects a neuron with its east or south neighbour.
+     *
+     * @param a - Cell - the west or north neuron
+     * @param b - Cell - the east or south neuron
+     * @param side - int - EAST or SOUTH, the side of a that b is on
+     * @param direction - byte - FORWARD if a is presynaptic, else BACKWARD
+     * @param resistance - int - the resistance of the synapse
+     */
+    private static void connect(Cell a, Cell b, int side, byte direction,
+            int resistance) {
+        Synapse synapse = direction == SimulationCore.FORWARD
+                ? new Synapse(a, b, resistance)
+                : new Synapse(b, a, resistance);
+        a.connections[side] = synapse;
+        b.connections[(side + 2) % SimulationCore.NUM_SYNAPSES] = synapse;
+    }
+
+    /**
+     * Updates the state of each neuron.
+     */
+    void update() {
+        generation++;
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < M; j++) {
+                cells[i][j].newState = cells[i][j].state;
+            }
+        }
+        if (auto) {
+            for (int i = 0; i < N; i++) {
+                for (int j = 0; j < M; j++) {
+                    double amount = SimulationCore.autoStimulation(random,
+                            generation, i * M + j, stimulationCutoff,
+                            maxStimulation);
+                    if (amount > 0) {
+                        cells[i][j].newState += amount;
+                    }
+                }
+            }
+        }
+        if (stimulus != null) {
+            stimuli.clear(N * M);
+            stimulus.fill(generation, stimuli);
+            stimuli.sort();
+            for (int k = 0; k < stimuli.size(); k++) {
+                int c = stimuli.getCell(k);
+                cells[c / M][c % M].newState += stimuli.getAmount(k);
+            }
+        }
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < M; j++) {
+                cells[i][j].update(maxRoundsSinceLTP);
+            }
+        }
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < M; j++) {
+                cells[i][j].state = cells[i][j].newState;
+            }
+        }
+    }
+
+    /**
+     * Excites the neuron at row i, col j.
+     *
+     * @param i - int - row the neuron is in
+     * @param j - int - col the neuron is in
+     * @param amount - double - stimulation added to the state
+     */
+    void stimulate(int i, int j, double amount) {
+        cells[i][j].state += amount;
+    }
+
+    double getState(int i, int j) {
+        return cells[i][j].state;
+    }
+
+    /**
+     * Gets the resistance of the synapse on one side of a neuron.
+     *
+     * @param i - int - row the neuron is in
+     * @param j - int - col the neuron is in
+     * @param side - int - NORTH, EAST, SOUTH or WEST
+     * @return the resistance, or 0 if there is no synapse on that side
+     */
+    int getResistance(int i, int j, int side) {
+        Synapse synapse = cells[i][j].connections[side];
+        return synapse != null ? synapse.resistance : 0;
+    }
+
+    /**
+     * Gets the rounds since LTP of the synapse on one side of a neuron.
+     *
+     * @param i - int - row the neuron is in
+     * @param j - int - col the neuron is in
+     * @param side - int - NORTH, EAST, SOUTH or WEST
+     * @return the rounds, or 0 if there is no synapse on that side
+     */
+    int getRoundsSinceLTP(int i, int j, int side) {
+        Synapse synapse = cells[i][j].connections[side];
+        return synapse != null ? synapse.roundsSinceLTP : 0;
+    }
+
+    int getN() {
+        return N;
+    }
+
+    int getM() {
+        return M;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    void setAuto(boolean a) {
+        auto = a;
+    }
+
+    /**
+     * Sets how often and how strongly neurons are auto stimulated, see
+     * SimulationCore.setStimulation().
+     *
+     * @param probability - double - chance that a neuron is stimulated
+     * @param max - double - the largest stimulation
+     */
+    void setStimulation(double probability, double max) {
+        stimulationCutoff = 1 - probability;
+        maxStimulation = max;
+    }
+
+    void setMaxRoundsSinceLTP(int rounds) {
+        maxRoundsSinceLTP = rounds;
+    }
+
+    void setStimulus(StimulusSource source) {
+        stimulus = source;
+    }
+
+}
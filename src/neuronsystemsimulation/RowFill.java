@@ -0,0 +1,74 @@
+package neuronsystemsimulation;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The RowFill runs a job over the rows of a grid on the fork/join pool it is
+ * called from, or on the common pool, splitting the rows in halves until a
+ * block is about CELLS_PER_BLOCK cells so idle threads can steal the rest.
+ * It is for jobs like drawing a new grid, where every row only writes its own
+ * cells; a CounterRandom gives every cell its own numbers, so the result does
+ * not depend on which thread fills which row. Grids of one block run on the
+ * calling thread without touching a pool.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+class RowFill extends RecursiveAction {
+
+    static final int CELLS_PER_BLOCK = 1 << 16;
+
+    /**
+     * A job that fills a block of rows.
+     */
+    interface Rows {
+
+        /**
+         * Fills rows lo to hi - 1.
+         *
+         * @param lo - int - first row
+         * @param hi - int - row after the last row
+         */
+        void fill(int lo, int hi);
+    }
+
+    private final Rows rows;
+    private final int lo;
+    private final int hi;
+    private final int minRows;
+
+    private RowFill(Rows rows, int lo, int hi, int minRows) {
+        this.rows = rows;
+        this.lo = lo;
+        this.hi = hi;
+        this.minRows = minRows;
+    }
+
+    /**
+     * Fills all the rows of a grid and returns when they are done.
+     *
+     * @param N - int - num rows
+     * @param M - int - num cols
+     * @param rows - Rows - the job
+     */
+    static void fill(int N, int M, Rows rows) {
+        int minRows = Math.max(1, CELLS_PER_BLOCK / Math.max(1, M));
+        if (N <= minRows) {
+            rows.fill(0, N);
+        } else {
+            new RowFill(rows, 0, N, minRows).invoke();
+        }
+    }
+
+    @Override
+    protected void compute() {
+        if (hi - lo <= minRows) {
+            rows.fill(lo, hi);
+        } else {
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new RowFill(rows, lo, mid, minRows),
+                    new RowFill(rows, mid, hi, minRows));
+        }
+    }
+
+}
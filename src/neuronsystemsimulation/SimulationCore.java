@@ -0,0 +1,1213 @@
+package neuronsystemsimulation;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * The SimulationCore holds the neuron states, leak rates, thresholds and
+ * synapses of a brain without any Swing types, so it can be stepped on a
+ * machine without a display. Brain and Neuron are only views over it.
+ *
+ * The grid is stored as flat primitive arrays. Neuron (i, j) is cell
+ * c = i * M + j. Every cell owns two edge slots: 2c is the synapse to its
+ * east neighbour and 2c + 1 the synapse to its south neighbour, so the
+ * synapses on its west and north sides are 2(c - 1) and 2(c - M) + 1. The
+ * direction of an edge tells which end is presynaptic; slots past the east
+ * and south borders have no direction.
+ *
+ * A core created by offHeap() or openOffHeap() keeps its grid in an
+ * OffHeapGrid instead of the arrays, for grids too large for the heap. It
+ * has the same accessors and gives the same results, but runs on a single
+ * thread without the sparse update, a recorder or checkpoints; a file-backed
+ * grid is saved by flush() instead.
+ *
+ * A core created by compact() keeps its grid in a CompactGrid, in floats or
+ * 16-bit fixed-point numbers instead of doubles. It runs with the same
+ * limits, cannot count more than CompactGrid.MAX_ROUNDS rounds since LTP,
+ * and drifts away from the same run in doubles as the rounding adds up.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class SimulationCore {
+
+    static final int NORTH = 0;
+    static final int EAST = 1;
+    static final int SOUTH = 2;
+    static final int WEST = 3;
+    static final int NUM_SYNAPSES = 4;
+
+    static final byte NO_SYNAPSE = 0;
+    static final byte FORWARD = 1; //west or north neuron is presynaptic
+    static final byte BACKWARD = 2; //east or south neuron is presynaptic
+
+    static final int NUM_THICKNESSES = 4; // 0, 1, 2, 3
+    static final int MAX_RESISTANCE = 3;
+    static final int DEFAULT_HORIZONTAL_THICKNESS = 2;
+    static final int DEFAULT_VERTICAL_THICKNESS = 1;
+    static final int MAX_RANDOM_STIMULATION = 3;
+    static final int MAX_ROUNDS_SINCE_LTP = 10;
+    static final double STIMULATION_CUTOFF = 0.8; //auto stimulate above it
+    static final double MAX_SIGNAL = 5;
+    static final int DEDUCTION_RATIO = 3;
+
+    //numbers of the random draws made for each neuron
+    private static final int LEAK_DRAW = 0;
+    private static final int EAST_DIRECTION_DRAW = 1;
+    private static final int EAST_THICKNESS_DRAW = 2;
+    private static final int SOUTH_DIRECTION_DRAW = 3;
+    private static final int SOUTH_THICKNESS_DRAW = 4;
+    private static final int STIMULUS_DRAW = 0;
+    private static final int STIMULUS_AMOUNT_DRAW = 1;
+
+    private int N; //num rows
+    private int M; //num cols
+
+    double[] state; // as a decimal
+    double[] newState;
+    double[] leak; //0<=x<0.5
+    double[] threshold;
+    byte[] resistance; //0, 1, 2, 3 //informs border thickness
+    byte[] direction;
+    short[] roundsSinceLTP;
+
+    private int generation = 0;
+    private boolean mixedDirections; //see directionsChanged()
+    private volatile long modifications = 0;
+    private boolean auto;
+    double stimulationCutoff = STIMULATION_CUTOFF;
+    double maxStimulation = MAX_RANDOM_STIMULATION;
+    int maxRoundsSinceLTP = MAX_ROUNDS_SINCE_LTP;
+    private ParallelStep parallelStep;
+    private SparseStep sparseStep;
+    private BlockedStep blockedStep;
+    private GridStore grid; //null when the arrays are used
+    private Tile tile; //set when the core is one tile of a larger grid
+    int firstCell; //index of cell 0 in the whole grid, see Tile
+    private ActivityRecorder recorder;
+    private SimulationMetrics metrics;
+    private StimulusSource stimulus;
+    final Stimuli stimuli = new Stimuli(); //of the current generation
+    final StepCounts counts = new StepCounts(); //of the current generation
+
+    private String setup;
+    private final RandomSource random;
+
+    /**
+     * Creates the neurons with random leak rates and connects them with
+     * synapses, using a random seed.
+     *
+     * @param N - int - num rows
+     * @param M - int - num cols
+     * @param setupCommand - String - "Random" or "Structured"
+     */
+    public SimulationCore(int N, int M, String setupCommand) {
+        this(N, M, setupCommand, new CounterRandom(System.nanoTime()));
+    }
+
+    /**
+     * Creates the neurons with random leak rates and connects them with
+     * synapses.
+     *
+     * @param N - int - num rows
+     * @param M - int - num cols
+     * @param setupCommand - String - "Random" or "Structured"
+     * @param random - RandomSource - source of all random numbers of the run
+     */
+    public SimulationCore(int N, int M, String setupCommand,
+            RandomSource random) {
+        this.random = random;
+        if (N >= 2 && M >= 2) { //min board size 2x2
+            this.N = N;
+            this.M = M;
+        } else {
+            this.N = 2; //minimize board size
+            this.M = 2;
+            System.out.println("Brain size too small! ");
+        }
+
+        initializeArrays();
+        setUp(setupCommand, this.N - 1);
+
+        if (setupCommand.equals("Random")
+                || setupCommand.equals("Structured")) {
+            setup = setupCommand;
+        } else {
+            System.out.println("Unrecognized setup command");
+        }
+        directionsChanged();
+    }
+
+    /**
+     * Creates an N x M core without drawing anything, to be filled in from a
+     * checkpoint.
+     *
+     * @param N - int - num rows
+     * @param M - int - num cols
+     * @param setup - String - the setup the grid was created with
+     * @param random - RandomSource - source of all random numbers of the run
+     * @param generation - int - the generation the grid is at
+     */
+    SimulationCore(int N, int M, String setup, RandomSource random,
+            int generation) {
+        this.N = N;
+        this.M = M;
+        this.setup = setup;
+        this.random = random;
+        this.generation = generation;
+        initializeArrays();
+    }
+
+    /**
+     * Creates a core on an OffHeapGrid or a CompactGrid.
+     *
+     * @param grid - GridStore - the neurons and synapses
+     * @param setup - String - the setup the grid was created with
+     * @param random - RandomSource - source of all random numbers of the run
+     * @param generation - int - the generation the grid is at
+     */
+    private SimulationCore(GridStore grid, int N, int M, String setup,
+            RandomSource random, int generation) {
+        this.grid = grid;
+        this.N = N;
+        this.M = M;
+        this.setup = setup;
+        this.random = random;
+        this.generation = generation;
+    }
+
+    /**
+     * Creates the neurons and synapses of a new brain outside the Java heap,
+     * with the same leak rates and synapses as new SimulationCore(N, M,
+     * setupCommand, random).
+     *
+     * @param N - int - num rows, at least 2
+     * @param M - int - num cols, at least 2
+     * @param setupCommand - String - "Random" or "Structured"
+     * @param random - RandomSource - source of all random numbers of the run
+     * @param file - Path - file to map the grid to, replacing it if it
+     * exists, or null to keep it in direct buffers
+     * @return the core
+     * @throws IOException if the file cannot be mapped
+     */
+    public static SimulationCore offHeap(int N, int M, String setupCommand,
+            RandomSource random, Path file) throws IOException {
+        OffHeapGrid grid = new OffHeapGrid(N, M, file);
+        grid.setUp(setupCommand, random);
+        SimulationCore core = new SimulationCore(grid, N, M,
+                knownSetup(setupCommand), random, 0);
+        grid.flush(core);
+        return core;
+    }
+
+    /**
+     * Creates the neurons and synapses of a new brain in a CompactGrid, with
+     * the leak rates and synapses of new SimulationCore(N, M, setupCommand,
+     * random) rounded to the precision.
+     *
+     * @param N - int - num rows, at least 2
+     * @param M - int - num cols, at least 2
+     * @param setupCommand - String - "Random" or "Structured"
+     * @param random - RandomSource - source of all random numbers of the run
+     * @param precision - String - "float" for 14 bytes per cell, "fixed" for
+     * 8; the arrays take 40
+     * @return the core
+     */
+    public static SimulationCore compact(int N, int M, String setupCommand,
+            RandomSource random, String precision) {
+        CompactGrid grid = CompactGrid.create(N, M, precision);
+        grid.setUp(setupCommand, random);
+        return new SimulationCore(grid, N, M, knownSetup(setupCommand),
+                random, 0);
+    }
+
+    /**
+     * Gets the name of a setup, or null if it is not one.
+     */
+    private static String knownSetup(String setupCommand) {
+        if (setupCommand.equals("Random")
+                || setupCommand.equals("Structured")) {
+            return setupCommand;
+        }
+        System.out.println("Unrecognized setup command");
+        return null;
+    }
+
+    /**
+     * Continues a brain from a file written by offHeap() and flush(). The
+     * core uses a CounterRandom with the seed of the file.
+     *
+     * @param file - Path - the file of the grid
+     * @return the core, at the generation of the last flush()
+     * @throws IOException if the file is not a grid or cannot be mapped
+     */
+    public static SimulationCore openOffHeap(Path file) throws IOException {
+        OffHeapGrid grid = OffHeapGrid.open(file);
+        SimulationCore core = new SimulationCore(grid, grid.getN(),
+                grid.getM(), grid.getSetup(), new CounterRandom(grid.getSeed()),
+                grid.getGeneration());
+        core.auto = grid.isAuto();
+        core.stimulationCutoff = grid.getStimulationCutoff();
+        core.maxStimulation = grid.getMaxStimulation();
+        core.maxRoundsSinceLTP = grid.getMaxRoundsSinceLTP();
+        return core;
+    }
+
+    /**
+     * Initializes the neuron arrays and the synapse arrays.
+     */
+    private void initializeArrays() {
+        int cells = N * M;
+        state = new double[cells];
+        newState = new double[cells];
+        leak = new double[cells];
+        threshold = new double[cells];
+        resistance = new byte[2 * cells];
+        direction = new byte[2 * cells];
+        roundsSinceLTP = new short[2 * cells];
+    }
+
+    /**
+     * Draws the leak rates and synapses of every row in one pass per row,
+     * in parallel for large grids. Each cell is drawn with its index in the
+     * whole grid, firstCell + c, so a Tile draws the same numbers for its
+     * rows as a core of the whole grid.
+     *
+     * @param setupCommand - String - "Random" or "Structured"; anything else
+     * only draws the leak rates
+     * @param southBorder - int - the row whose south synapses lead out of the
+     * grid, usually N - 1; rows before it get south synapses
+     */
+    void setUp(String setupCommand, final int southBorder) {
+        final boolean structured = setupCommand.equals("Structured");
+        final boolean known = structured || setupCommand.equals("Random");
+        RowFill.fill(N, M, new RowFill.Rows() {
+            @Override
+            public void fill(int lo, int hi) {
+                setUpRows(lo, hi, structured, known, southBorder);
+            }
+        });
+    }
+
+    private void setUpRows(int lo, int hi, boolean structured,
+            boolean known, int southBorder) {
+        for (int i = lo; i < hi; i++) {
+            for (int j = 0; j < M; j++) {
+                int c = i * M + j;
+                int cell = firstCell + c;
+                leak[c] = leakRate(random, cell);
+                threshold[c] = leak[c] + 0.5;
+                if (!known) {
+                    continue;
+                }
+                if (j < M - 1) {
+                    direction[2 * c] = structured ? FORWARD
+                            : randomDirection(random, cell, EAST);
+                    resistance[2 * c] = (byte) (structured
+                            ? DEFAULT_VERTICAL_THICKNESS
+                            : randomThickness(random, cell, EAST));
+                }
+                if (i < southBorder) {
+                    direction[2 * c + 1] = structured ? FORWARD
+                            : randomDirection(random, cell, SOUTH);
+                    resistance[2 * c + 1] = (byte) (structured
+                            ? DEFAULT_HORIZONTAL_THICKNESS
+                            : randomThickness(random, cell, SOUTH));
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws the direction of the east or south synapse of a neuron in the
+     * Random setup. One in three east and one in four south synapses point
+     * away from the neuron.
+     *
+     * @param random - RandomSource - source of all random numbers of the run
+     * @param c - int - index of the neuron
+     * @param side - int - EAST or SOUTH
+     * @return FORWARD or BACKWARD
+     */
+    static byte randomDirection(RandomSource random, int c, int side) {
+        if (side == EAST) {
+            return (int) (random.uniform(RandomSource.SETUP, c,
+                    EAST_DIRECTION_DRAW) * 3) == 0 ? FORWARD : BACKWARD;
+        }
+        return (int) (random.uniform(RandomSource.SETUP, c,
+                SOUTH_DIRECTION_DRAW) * 4) == 0 ? FORWARD : BACKWARD;
+    }
+
+    /**
+     * Draws the resistance of the east or south synapse of a neuron in the
+     * Random setup.
+     *
+     * @param random - RandomSource - source of all random numbers of the run
+     * @param c - int - index of the neuron
+     * @param side - int - EAST or SOUTH
+     * @return the resistance, 0 to MAX_RESISTANCE
+     */
+    static int randomThickness(RandomSource random, int c, int side) {
+        return (int) (random.uniform(RandomSource.SETUP, c, side == EAST
+                ? EAST_THICKNESS_DRAW : SOUTH_THICKNESS_DRAW)
+                * NUM_THICKNESSES);
+    }
+
+    /**
+     * Updates the state of each neuron in a single pass over the grid.
+     *
+     * A neuron's new state starts as its old state plus any auto
+     * stimulation, before its north neighbour (one row up) fires into it.
+     * So the new states of row i + 1 are prepared just before row i is
+     * updated, which keeps the order in which signals accumulate the same
+     * as updating the whole grid row by row. Afterwards the two state
+     * buffers are swapped instead of copied.
+     */
+    public synchronized void update() {
+        long start = metrics != null ? System.nanoTime() : 0;
+        generation++;
+        modifications++;
+        if (stimulus != null) {
+            stimuli.clear(N * M);
+            stimulus.fill(generation, stimuli);
+            stimuli.sort();
+        }
+        if (grid != null) {
+            grid.step(this);
+        } else if (sparseStep != null) {
+            sparseStep.step();
+        } else {
+            if (tile != null) {
+                tile.step();
+            } else if (parallelStep != null) {
+                parallelStep.step();
+            } else if (blockedStep != null) {
+                blockedStep.step();
+            } else {
+                prepareRow(0);
+                updateRows(0, N, null, counts);
+            }
+            double[] swap = state;
+            state = newState;
+            newState = swap;
+            if (recorder != null && recorder.isRecordingStates()) {
+                listChanged(counts.events);
+            }
+        }
+        if (recorder != null) {
+            recorder.generationDone();
+        }
+        if (metrics != null) {
+            metrics.generationDone(counts, System.nanoTime() - start);
+        }
+        counts.clear();
+    }
+
+    /**
+     * Lists the neurons whose state differs from the one before the
+     * generation, after the state buffers were swapped.
+     *
+     * @param events - StepEvents - where to list them
+     */
+    private void listChanged(StepEvents events) {
+        for (int c = 0; c < N * M; c++) {
+            if (Double.doubleToRawLongBits(state[c])
+                    != Double.doubleToRawLongBits(newState[c])) {
+                events.changed(c);
+            }
+        }
+    }
+
+    /**
+     * Updates the neurons of rows lo to hi - 1. Row lo must already be
+     * prepared. Signals leaving the band are not written into the
+     * neighbouring band: the ones going north are stored in haloNorth and
+     * the ones going south must have been added by the caller already.
+     *
+     * @param lo - int - first row of the band
+     * @param hi - int - row after the last row of the band
+     * @param haloNorth - double[] - signal sent into each col of row lo - 1
+     * @param counts - StepCounts - counts of the thread updating the band
+     */
+    void updateRows(int lo, int hi, double[] haloNorth, StepCounts counts) {
+        for (int i = lo; i < hi; i++) {
+            if (i + 1 < hi) {
+                prepareRow(i + 1);
+            }
+            boolean northInBand = i > lo;
+            boolean southInBand = i + 1 < hi;
+            int c = i * M;
+            for (int j = 0; j < M; j++, c++) {
+                updateNeuron(c, i, j, northInBand, southInBand, haloNorth,
+                        counts);
+            }
+        }
+    }
+
+    /**
+     * Starts the new states of one row from the current states, adding the
+     * random auto stimulation if it is on and then the stimulations of the
+     * StimulusSource in that row.
+     *
+     * @param i - int - the row to prepare
+     */
+    void prepareRow(int i) {
+        prepareRow(i, 0, M);
+    }
+
+    /**
+     * Prepares cols left to right - 1 of a row, see prepareRow(int).
+     *
+     * @param i - int - the row to prepare
+     * @param left - int - first col
+     * @param right - int - col after the last col
+     */
+    void prepareRow(int i, int left, int right) {
+        int start = i * M + left;
+        int end = i * M + right;
+        System.arraycopy(state, start, newState, start, right - left);
+        if (auto) {
+            for (int c = start; c < end; c++) {
+                double amount = autoStimulation(c);
+                if (amount > 0) {
+                    newState[c] += amount;
+                }
+            }
+        }
+        if (stimulus != null) {
+            for (int k = stimuli.from(start); k < stimuli.size()
+                    && stimuli.getCell(k) < end; k++) {
+                newState[stimuli.getCell(k)] += stimuli.getAmount(k);
+            }
+        }
+    }
+
+    /**
+     * Draws the auto stimulation of a neuron for the current generation.
+     *
+     * @param c - int - index of the neuron
+     * @return the stimulation, 0 if the neuron is not stimulated
+     */
+    double autoStimulation(int c) {
+        return autoStimulation(random, generation, firstCell + c,
+                stimulationCutoff, maxStimulation);
+    }
+
+    /**
+     * Draws the auto stimulation of a neuron for a generation.
+     *
+     * @param random - RandomSource - source of all random numbers of the run
+     * @param generation - int - the generation
+     * @param c - int - index of the neuron
+     * @param cutoff - double - the neuron is stimulated if a draw is above it
+     * @param max - double - the largest stimulation
+     * @return the stimulation, 0 if the neuron is not stimulated
+     */
+    static double autoStimulation(RandomSource random, int generation, int c,
+            double cutoff, double max) {
+        if (random.uniform(generation, c, STIMULUS_DRAW) > cutoff) {
+            return random.uniform(generation, c, STIMULUS_AMOUNT_DRAW) * max;
+        }
+        return 0;
+    }
+
+    /**
+     * Draws the leak rate of a neuron.
+     *
+     * @param random - RandomSource - source of all random numbers of the run
+     * @param c - int - index of the neuron
+     * @return the leak rate
+     */
+    static double leakRate(RandomSource random, int c) {
+        return random.uniform(RandomSource.SETUP, c, LEAK_DRAW) + 1;
+    }
+
+    /**
+     * Updates the neurons of cols left to right - 1 of row i of the whole
+     * grid. Row i + 1 must be prepared in those cols.
+     *
+     * @param i - int - the row
+     * @param left - int - first col
+     * @param right - int - col after the last col
+     * @param counts - StepCounts - where to count the firing, LTP and LTD
+     */
+    void updateCols(int i, int left, int right, StepCounts counts) {
+        boolean north = i > 0;
+        boolean south = i + 1 < N;
+        int c = i * M + left;
+        for (int j = left; j < right; j++, c++) {
+            updateNeuron(c, i, j, north, south, null, counts);
+        }
+    }
+
+    /**
+     * Loops and updates all the outgoing synapses of cell c depending on its
+     * excitement, then applies the leak.
+     *
+     * @param c - int - index of the neuron
+     * @param i - int - row the neuron is in
+     * @param j - int - col the neuron is in
+     * @param northInBand - boolean - whether row i - 1 is in the same band
+     * @param southInBand - boolean - whether row i + 1 is in the same band
+     * @param haloNorth - double[] - signal sent north out of the band
+     * @param counts - StepCounts - where to count the firing, LTP and LTD
+     */
+    private void updateNeuron(int c, int i, int j, boolean northInBand,
+            boolean southInBand, double[] haloNorth, StepCounts counts) {
+        double s = state[c];
+        if (s < threshold[c] && mixedDirections && northInBand
+                && southInBand) {
+            //a neuron that does not fire in a grid of random directions
+            if (applyLeak(c)) {
+                ageSide(2 * (c - M) + 1, direction[2 * (c - M) + 1], BACKWARD,
+                        counts);
+                ageSide(2 * c, direction[2 * c], FORWARD, counts);
+                ageSide(2 * c + 1, direction[2 * c + 1], FORWARD, counts);
+                ageSide(2 * (c - 1), direction[2 * (c - 1)], BACKWARD,
+                        counts);
+            }
+            return;
+        }
+
+        //outgoing edges in NORTH, EAST, SOUTH, WEST order, -1 if none
+        int north = i > 0 && direction[2 * (c - M) + 1] == BACKWARD
+                ? 2 * (c - M) + 1 : -1;
+        int east = direction[2 * c] == FORWARD ? 2 * c : -1;
+        int south = direction[2 * c + 1] == FORWARD ? 2 * c + 1 : -1;
+        int west = j > 0 && direction[2 * (c - 1)] == BACKWARD
+                ? 2 * (c - 1) : -1;
+
+        if (s >= threshold[c]) {
+            counts.fired++;
+            if (counts.events != null) {
+                counts.events.fired(c);
+            }
+            double signal = fire(c, s, north, counts);
+            if (signal > 0) {
+                if (northInBand) {
+                    newState[c - M] += signal;
+                } else {
+                    haloNorth[j] = signal;
+                }
+            }
+            signal = fire(c, s, east, counts);
+            if (signal > 0) {
+                newState[c + 1] += signal;
+            }
+            signal = fire(c, s, south, counts);
+            if (signal > 0 && southInBand) {
+                newState[c + M] += signal;
+            }
+            signal = fire(c, s, west, counts);
+            if (signal > 0) {
+                newState[c - 1] += signal;
+            }
+        }
+        if (applyLeak(c)) {
+            age(north, counts);
+            age(east, counts);
+            age(south, counts);
+            age(west, counts);
+        }
+    }
+
+    /**
+     * Looks at how the synapses point after they were set up or read from a
+     * checkpoint. If many point each way, as in the Random setup, the
+     * neurons that do not fire age their synapses with ageSide(), which does
+     * not branch on the direction. If nearly all point one way a branch on
+     * the direction is predicted well, and is cheaper.
+     */
+    void directionsChanged() {
+        if (grid != null) {
+            return;
+        }
+        long forward = 0;
+        long backward = 0;
+        for (byte d : direction) {
+            if (d == FORWARD) {
+                forward++;
+            } else if (d == BACKWARD) {
+                backward++;
+            }
+        }
+        mixedDirections = Math.min(forward, backward)
+                > (forward + backward) / 10;
+    }
+
+    /**
+     * Applies the leak to the new state of a neuron, unless it is negative.
+     *
+     * @param c - int - index of the neuron
+     * @return whether the leak was applied, then the synapses of the neuron
+     * age too
+     */
+    boolean applyLeak(int c) {
+        if (newState[c] < 0) {
+            return false;
+        }
+        if (newState[c] > leak[c]) {
+            newState[c] -= leak[c];
+        } else {
+            newState[c] = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Fires a neuron through one of its synapses.
+     *
+     * @param c - int - index of the presynaptic neuron
+     * @param s - double - state of the presynaptic neuron
+     * @param e - int - edge index of the synapse, -1 if there is none
+     * @param counts - StepCounts - where to count and list the LTP and the
+     * signal
+     * @return the signal for the postsynaptic neuron, 0 if none is sent
+     */
+    double fire(int c, double s, int e, StepCounts counts) {
+        if (e < 0) {
+            return 0;
+        }
+        if ((s - (resistance[e] / DEDUCTION_RATIO)) > MAX_SIGNAL) {
+            newState[c] = s - MAX_SIGNAL;
+            LTP(e);
+            counts.potentiated++;
+            counts.signal += MAX_SIGNAL;
+            if (counts.events != null) {
+                counts.events.potentiated(e);
+            }
+            return MAX_SIGNAL;
+        } else if ((s - resistance[e] / DEDUCTION_RATIO) > 0) {
+            double signal = s - (resistance[e] / DEDUCTION_RATIO);
+            newState[c] = s - (s - resistance[e] / DEDUCTION_RATIO);
+            LTP(e);
+            counts.potentiated++;
+            counts.signal += signal;
+            if (counts.events != null) {
+                counts.events.potentiated(e);
+            }
+            return signal;
+        }
+        return 0;
+    }
+
+    /**
+     * Computes the signal a neuron will send through one of its synapses
+     * this generation without changing the synapse.
+     *
+     * @param c - int - index of the presynaptic neuron
+     * @param e - int - edge index of the outgoing synapse
+     * @return the signal for the postsynaptic neuron, 0 if none is sent
+     */
+    double outgoingSignal(int c, int e) {
+        double s = state[c];
+        if (s < threshold[c]) {
+            return 0;
+        }
+        if ((s - (resistance[e] / DEDUCTION_RATIO)) > MAX_SIGNAL) {
+            return MAX_SIGNAL;
+        } else if ((s - resistance[e] / DEDUCTION_RATIO) > 0) {
+            return s - (resistance[e] / DEDUCTION_RATIO);
+        }
+        return 0;
+    }
+
+    /**
+     * Counts one more round without LTP for a synapse and depresses it once
+     * it has gone unused for too long.
+     *
+     * @param e - int - edge index of the synapse, -1 if there is none
+     * @param counts - StepCounts - where to count and list the LTD
+     */
+    void age(int e, StepCounts counts) {
+        if (e < 0) {
+            return;
+        }
+        roundsSinceLTP[e]++;
+        if (roundsSinceLTP[e] > maxRoundsSinceLTP) {
+            LTD(e);
+            counts.depressed++;
+            if (counts.events != null) {
+                counts.events.depressed(e);
+            }
+        }
+    }
+
+    /**
+     * Ages the synapse on one side of a neuron if it is outgoing, without
+     * branching on the direction. The directions of a random grid are as
+     * likely one way as the other, so a branch on them is mispredicted half
+     * the time; instead the rounds of the synapse are always written, adding
+     * 1 or 0. So the neuron must not be in the first row, and no other
+     * thread may update the synapse at the same time: the rows north and
+     * south of the neuron are in its band.
+     *
+     * @param e - int - edge index of the synapse on that side
+     * @param dir - byte - the direction of the synapse
+     * @param outgoing - byte - the direction in which it is outgoing
+     * @param counts - StepCounts - where to count and list the LTD
+     */
+    private void ageSide(int e, byte dir, byte outgoing, StepCounts counts) {
+        int add = ((dir ^ outgoing) - 1) >>> 31; //1 if dir == outgoing
+        int rounds = roundsSinceLTP[e] + add;
+        if (rounds > maxRoundsSinceLTP && add != 0) {
+            LTD(e);
+            counts.depressed++;
+            if (counts.events != null) {
+                counts.events.depressed(e);
+            }
+        } else {
+            roundsSinceLTP[e] = (short) rounds;
+        }
+    }
+
+    /**
+     * LTP() (long term potentiation) makes the synapse less resistant.
+     */
+    private void LTP(int e) {
+        if (resistance[e] > 0) {
+            resistance[e]--;
+        }
+        roundsSinceLTP[e] = 0;
+    }
+
+    /**
+     * LTD() (long term depression) makes the synapse more resistant.
+     */
+    private void LTD(int e) {
+        if (resistance[e] < MAX_RESISTANCE) {
+            resistance[e]++;
+        }
+        roundsSinceLTP[e] = 0;
+    }
+
+    /**
+     * Gets the edge index of the synapse on one side of a neuron.
+     *
+     * @param i - int - row the neuron is in
+     * @param j - int - col the neuron is in
+     * @param side - int - NORTH, EAST, SOUTH or WEST
+     * @return the edge index, or -1 if the neuron is on that border
+     */
+    int edgeIndex(int i, int j, int side) {
+        return edgeIndex(N, M, i, j, side);
+    }
+
+    /**
+     * Gets the edge index of the synapse on one side of a neuron in an N x M
+     * grid.
+     *
+     * @param N - int - num rows
+     * @param M - int - num cols
+     * @param i - int - row the neuron is in
+     * @param j - int - col the neuron is in
+     * @param side - int - NORTH, EAST, SOUTH or WEST
+     * @return the edge index, or -1 if the neuron is on that border
+     */
+    static int edgeIndex(int N, int M, int i, int j, int side) {
+        switch (side) {
+            case NORTH:
+                return i > 0 ? 2 * ((i - 1) * M + j) + 1 : -1;
+            case EAST:
+                return j < M - 1 ? 2 * (i * M + j) : -1;
+            case SOUTH:
+                return i < N - 1 ? 2 * (i * M + j) + 1 : -1;
+            case WEST:
+                return j > 0 ? 2 * (i * M + j - 1) : -1;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Excites the neuron at row i, col j, e.g. after a mouse click.
+     *
+     * @param i - int - row the neuron is in
+     * @param j - int - col the neuron is in
+     * @param amount - double - stimulation added to the state
+     */
+    public synchronized void stimulate(int i, int j, double amount) {
+        modifications++;
+        if (grid != null) {
+            grid.addState(i, j, amount);
+            return;
+        }
+        state[i * M + j] += amount;
+        if (sparseStep != null) {
+            sparseStep.stimulated(i * M + j);
+        }
+        if (counts.events != null) {
+            counts.events.changed(i * M + j); //listed with the next generation
+        }
+    }
+
+    public int getN() {
+        return N;
+    }
+
+    public int getM() {
+        return M;
+    }
+
+    public double getState(int i, int j) {
+        return grid != null ? grid.getState(i, j) : state[i * M + j];
+    }
+
+    public double getLeakRate(int i, int j) {
+        return grid != null ? grid.getLeakRate(i, j) : leak[i * M + j];
+    }
+
+    public double getThreshold(int i, int j) {
+        return grid != null ? grid.getThreshold(i, j) : threshold[i * M + j];
+    }
+
+    /**
+     * Gets the resistance of the synapse on one side of a neuron.
+     *
+     * @param i - int - row the neuron is in
+     * @param j - int - col the neuron is in
+     * @param side - int - NORTH, EAST, SOUTH or WEST
+     * @return the resistance, or 0 if there is no synapse on that side
+     */
+    public int getResistance(int i, int j, int side) {
+        int e = edgeIndex(i, j, side);
+        if (e < 0) {
+            return 0;
+        }
+        if (grid != null) {
+            return grid.getResistance(e);
+        }
+        if (sparseStep != null) {
+            //catching up changes the synapse and may list an LTD
+            synchronized (this) {
+                sparseStep.catchUp(e, generation);
+                return resistance[e];
+            }
+        }
+        return resistance[e];
+    }
+
+    /**
+     * Gets the rounds since LTP of the synapse on one side of a neuron.
+     *
+     * @param i - int - row the neuron is in
+     * @param j - int - col the neuron is in
+     * @param side - int - NORTH, EAST, SOUTH or WEST
+     * @return the rounds, or 0 if there is no synapse on that side
+     */
+    int getRoundsSinceLTP(int i, int j, int side) {
+        int e = edgeIndex(i, j, side);
+        if (e < 0) {
+            return 0;
+        }
+        if (grid != null) {
+            return grid.getRoundsSinceLTP(e);
+        }
+        if (sparseStep != null) {
+            synchronized (this) {
+                sparseStep.catchUp(e, generation);
+                return roundsSinceLTP[e];
+            }
+        }
+        return roundsSinceLTP[e];
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Counts the changes made by update() and stimulate(), so a view can
+     * tell whether it needs a new snapshot.
+     *
+     * @return the number of changes so far
+     */
+    public long getModifications() {
+        return modifications;
+    }
+
+    /**
+     * Brings the lazily aged synapses of the sparse update up to the current
+     * generation, so the synapse arrays can be read directly.
+     */
+    synchronized void settle() {
+        if (sparseStep != null) {
+            sparseStep.catchUpAll();
+        }
+    }
+
+    /**
+     * Copies the neuron states and synapse resistances into a snapshot.
+     *
+     * @param snapshot - BrainSnapshot - snapshot of the same size to fill
+     */
+    public synchronized void snapshot(BrainSnapshot snapshot) {
+        if (grid != null) {
+            snapshot.copy(generation, modifications, grid);
+            return;
+        }
+        settle();
+        snapshot.copy(generation, modifications, state, resistance);
+    }
+
+    public String getSetup() {
+        return setup;
+    }
+
+    public void setAuto(boolean a) {
+        auto = a;
+    }
+
+    public boolean isAuto() {
+        return auto;
+    }
+
+    /**
+     * Sets how often and how strongly neurons are auto stimulated.
+     *
+     * @param probability - double - chance that a neuron is stimulated in a
+     * generation, 0.2 by default
+     * @param max - double - the largest stimulation, MAX_RANDOM_STIMULATION by
+     * default
+     */
+    public synchronized void setStimulation(double probability, double max) {
+        if (probability < 0 || probability > 1 || max < 0) {
+            throw new IllegalArgumentException("probability must be in [0, 1]"
+                    + " and max >= 0");
+        }
+        stimulationCutoff = 1 - probability;
+        maxStimulation = max;
+    }
+
+    public double getStimulationProbability() {
+        return 1 - stimulationCutoff;
+    }
+
+    public double getMaxStimulation() {
+        return maxStimulation;
+    }
+
+    /**
+     * Sets after how many rounds without LTP a synapse does LTD.
+     *
+     * @param rounds - int - MAX_ROUNDS_SINCE_LTP by default
+     */
+    public synchronized void setMaxRoundsSinceLTP(int rounds) {
+        if (rounds < 0 || rounds >= Short.MAX_VALUE) {
+            throw new IllegalArgumentException("rounds must be in [0, "
+                    + Short.MAX_VALUE + ")");
+        }
+        if (grid instanceof CompactGrid && rounds > CompactGrid.MAX_ROUNDS) {
+            throw new IllegalArgumentException("A compact core counts at most"
+                    + " " + CompactGrid.MAX_ROUNDS + " rounds");
+        }
+        settle();
+        maxRoundsSinceLTP = rounds;
+    }
+
+    public int getMaxRoundsSinceLTP() {
+        return maxRoundsSinceLTP;
+    }
+
+    public RandomSource getRandom() {
+        return random;
+    }
+
+    /**
+     * Selects how many threads update the grid. With more than one thread
+     * the rows are split into bands that are updated on a ForkJoinPool; the
+     * result is the same as the single threaded update.
+     *
+     * @param threads - int - number of threads, 1 for the sequential update
+     */
+    public void setThreads(int threads) {
+        if (threads > 1 && grid != null) {
+            throw new IllegalStateException("An off-heap or compact core"
+                    + " runs on a single thread");
+        }
+        if (parallelStep != null) {
+            parallelStep.shutdown();
+            parallelStep = null;
+        }
+        if (threads > 1) {
+            setSparse(false);
+            blockedStep = null;
+            parallelStep = new ParallelStep(this, threads);
+        }
+    }
+
+    public int getThreads() {
+        return parallelStep == null ? 1 : parallelStep.getThreads();
+    }
+
+    /**
+     * Selects the sparse update, which only updates the neurons that are
+     * active or receive input, so its cost grows with the activity instead of
+     * the size of the grid. It runs on a single thread and gives the same
+     * result as the full update.
+     *
+     * @param sparse - boolean - whether to use the sparse update
+     */
+    public void setSparse(boolean sparse) {
+        if (sparse == (sparseStep != null)) {
+            return;
+        }
+        if (grid != null) {
+            throw new IllegalStateException("An off-heap or compact core has"
+                    + " no sparse update");
+        }
+        if (sparse) {
+            setThreads(1);
+            blockedStep = null;
+            sparseStep = new SparseStep(this);
+        } else {
+            sparseStep.catchUpAll();
+            sparseStep = null;
+        }
+    }
+
+    public boolean isSparse() {
+        return sparseStep != null;
+    }
+
+    /**
+     * Selects the blocked update, which walks the grid in strips of cols
+     * columns, each from the first row to the last, so the three rows a
+     * neuron reads and writes stay in the cache on wide grids. It runs on a
+     * single thread and gives the same result as the row by row update.
+     *
+     * @param cols - int - width of a strip, e.g. 256, or 0 for the row by
+     * row update
+     */
+    public void setBlockWidth(int cols) {
+        if (cols < 0) {
+            throw new IllegalArgumentException("cols must be >= 0");
+        }
+        if (cols > 0 && grid != null) {
+            throw new IllegalStateException("An off-heap or compact core has"
+                    + " no blocked update");
+        }
+        if (cols > 0) {
+            setThreads(1);
+            setSparse(false);
+            blockedStep = new BlockedStep(this, cols);
+        } else {
+            blockedStep = null;
+        }
+    }
+
+    public int getBlockWidth() {
+        return blockedStep == null ? 0 : blockedStep.getWidth();
+    }
+
+    /**
+     * Sets where the stimulations of every generation come from, next to the
+     * auto stimulation; turn that off with setAuto(false) to only use the
+     * source. The source is not saved in a checkpoint.
+     *
+     * @param source - StimulusSource - the source, null for none
+     */
+    public synchronized void setStimulus(StimulusSource source) {
+        if (source != null && (grid != null || tile != null)) {
+            throw new IllegalStateException("An off-heap, compact or tiled"
+                    + " core has no stimulus source");
+        }
+        stimulus = source;
+    }
+
+    public synchronized StimulusSource getStimulus() {
+        return stimulus;
+    }
+
+    /**
+     * Attaches a recorder that is handed the events and the changed states of
+     * every generation at the end of the update. It starts with a keyframe
+     * of the grid as it is now.
+     *
+     * @param recorder - ActivityRecorder - the recorder, null for none
+     */
+    public synchronized void setRecorder(ActivityRecorder recorder) {
+        if (recorder != null && grid != null) {
+            throw new IllegalStateException("An off-heap or compact core"
+                    + " cannot be recorded");
+        }
+        this.recorder = recorder;
+        counts.record(recorder != null, N * M / 16);
+        if (recorder != null) {
+            recorder.attached();
+        }
+    }
+
+    public synchronized ActivityRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Sets the SimulationMetrics to hand the counts of every generation to.
+     * The SimulationMetrics constructor calls this.
+     *
+     * @param metrics - SimulationMetrics - the metrics, null for none
+     */
+    synchronized void setMetrics(SimulationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public synchronized SimulationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Makes the core one tile of a grid that is split over several
+     * processes; update() then exchanges the signals crossing the tile edges
+     * through the Tile.
+     *
+     * @param tile - Tile - the tile
+     */
+    void setTile(Tile tile) {
+        this.tile = tile;
+    }
+
+    /**
+     * Gets the grid the core keeps its neurons and synapses in instead of
+     * the arrays.
+     *
+     * @return the OffHeapGrid or CompactGrid, or null if the core uses the
+     * arrays
+     */
+    GridStore getGrid() {
+        return grid;
+    }
+
+    public boolean isOffHeap() {
+        return grid instanceof OffHeapGrid;
+    }
+
+    public boolean isCompact() {
+        return grid instanceof CompactGrid;
+    }
+
+    /**
+     * Saves a file-backed off-heap grid with the generation, seed and
+     * settings of the core, so openOffHeap() continues from here. Does
+     * nothing for other cores.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void flush() throws IOException {
+        if (grid instanceof OffHeapGrid) {
+            ((OffHeapGrid) grid).flush(this);
+        }
+    }
+
+    /**
+     * Flushes and releases an off-heap grid; the core cannot be used after
+     * that. Does nothing for other cores.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void close() throws IOException {
+        if (grid instanceof OffHeapGrid) {
+            ((OffHeapGrid) grid).close(this);
+        }
+    }
+
+}
@@ -0,0 +1,229 @@
+package neuronsystemsimulation;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The SimulationLoop steps a SimulationCore on its own thread, at a target
+ * number of generations per second or as fast as it can, so neither the
+ * event dispatch thread nor a timer decides how fast the brain runs.
+ *
+ * All changes to the core go through the loop thread: stimulate() puts a
+ * stimulation in a StimulusQueue, and setAuto() leaves the new setting for
+ * the loop, which applies both between two generations, so neither a click
+ * nor a toggle lands in the middle of an update. The view
+ * reads the core through BrainSnapshots, which are copied while the core is
+ * locked. If a History is set, every generation is added to it right after
+ * the update, on the loop thread.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class SimulationLoop {
+
+    public static final double DEFAULT_RATE = 5; //generations per second
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int AUTO_UNCHANGED = -1;
+    private static final int AUTO_OFF = 0;
+    private static final int AUTO_ON = 1;
+
+    private final SimulationCore core;
+    private final StimulusQueue inputs = new StimulusQueue(QUEUE_CAPACITY);
+    private final AtomicInteger steps = new AtomicInteger(); //when stopped
+    private final AtomicInteger auto = new AtomicInteger(AUTO_UNCHANGED);
+    private final Thread thread;
+    private volatile double rate = DEFAULT_RATE;
+    private volatile History history;
+    private volatile boolean running;
+    private volatile boolean shutdown;
+
+    /**
+     * Starts the loop thread, stopped.
+     *
+     * @param core - SimulationCore - the simulation to step
+     */
+    public SimulationLoop(SimulationCore core) {
+        this.core = core;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void loop() {
+        long last = System.nanoTime(); //start of the last generation
+        while (!shutdown) {
+            inputs.drain(core);
+            if (running) {
+                waitUntil(last);
+                if (!running || shutdown) {
+                    continue;
+                }
+            } else if (steps.get() > 0) {
+                steps.decrementAndGet();
+            } else {
+                LockSupport.park(this);
+                continue;
+            }
+            last = System.nanoTime();
+            applyAuto();
+            inputs.drain(core);
+            core.update();
+            record();
+        }
+    }
+
+    /**
+     * Turns the auto stimulation of the core on or off if setAuto() was
+     * called since the last generation.
+     */
+    private void applyAuto() {
+        int a = auto.getAndSet(AUTO_UNCHANGED);
+        if (a != AUTO_UNCHANGED) {
+            core.setAuto(a == AUTO_ON);
+        }
+    }
+
+    /**
+     * Adds the generation just computed to the history, if there is one. A
+     * history that cannot be written is dropped, the core keeps running.
+     */
+    private void record() {
+        History h = history;
+        if (h == null) {
+            return;
+        }
+        try {
+            h.add(core);
+        } catch (IOException e) {
+            System.out.println("History stopped: " + e);
+            history = null;
+        }
+    }
+
+    /**
+     * Waits until a generation is due at the target rate. The rate is read
+     * again whenever the thread wakes up, so a new rate applies at once. A
+     * generation that is late starts right away, without catching up on the
+     * ones that were missed.
+     *
+     * @param last - long - System.nanoTime() at the start of the last
+     * generation
+     */
+    private void waitUntil(long last) {
+        while (running && !shutdown) {
+            double target = rate;
+            if (target <= 0) {
+                return;
+            }
+            long wait = last + (long) (1e9 / target) - System.nanoTime();
+            if (wait <= 0) {
+                return;
+            }
+            LockSupport.parkNanos(this, wait);
+            inputs.drain(core); //do not keep clicks waiting at a low rate
+        }
+    }
+
+    /**
+     * Steps the core continuously at the target rate.
+     */
+    public void start() {
+        running = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Stops stepping after the current generation.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Steps the core once, if the loop is stopped.
+     */
+    public void step() {
+        if (!running) {
+            steps.incrementAndGet();
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Sets how many generations per second the loop aims for.
+     *
+     * @param generationsPerSecond - double - the rate, 0 to run as fast as
+     * possible
+     */
+    public void setRate(double generationsPerSecond) {
+        if (generationsPerSecond < 0 || Double.isNaN(generationsPerSecond)) {
+            throw new IllegalArgumentException("rate must be >= 0");
+        }
+        rate = generationsPerSecond;
+        LockSupport.unpark(thread);
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Sets the history every new generation is added to.
+     *
+     * @param history - History - the history, null for none
+     */
+    public void setHistory(History history) {
+        this.history = history;
+    }
+
+    /**
+     * Excites a neuron before the next generation. May be called from any
+     * thread.
+     *
+     * @param i - int - row the neuron is in
+     * @param j - int - col the neuron is in
+     * @param amount - double - stimulation added to the state
+     * @return false if too many stimulations are waiting and this one was
+     * dropped
+     */
+    public boolean stimulate(int i, int j, double amount) {
+        boolean queued = inputs.offer(i, j, amount);
+        LockSupport.unpark(thread);
+        return queued;
+    }
+
+    /**
+     * Turns the auto stimulation on or off from the next generation on. May
+     * be called from any thread.
+     *
+     * @param a - boolean - whether to stimulate neurons at random
+     */
+    public void setAuto(boolean a) {
+        auto.set(a ? AUTO_ON : AUTO_OFF);
+    }
+
+    /**
+     * Stops the loop thread. The core is not stepped again.
+     */
+    public void shutdown() {
+        shutdown = true;
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    public SimulationCore getCore() {
+        return core;
+    }
+
+}
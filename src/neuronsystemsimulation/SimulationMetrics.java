@@ -0,0 +1,264 @@
+package neuronsystemsimulation;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The SimulationMetrics watches a running SimulationCore: how fast it goes,
+ * how long each generation takes, how many neurons fire, how much signal they
+ * send, how many synapses do LTP and LTD, and how the synapse resistances are
+ * spread over 0 to MAX_RESISTANCE.
+ *
+ * The core counts the events of a generation in its StepCounts, one per
+ * thread, and hands them over once when the generation is done, so the
+ * running path only pays for a few adds. The totals are kept in LongAdders
+ * and DoubleAdders and added up when they are read. Once a second the core
+ * also notes the time and the steps so far in a ring of RATE_SAMPLES, and the
+ * rate is taken over the oldest of them, so reading it changes nothing and
+ * any number of clients can poll it. The resistance histogram
+ * needs a pass over the whole grid, so it is computed at most once every
+ * STATS_MILLIS and shared by the readers in between.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class SimulationMetrics implements SimulationMetricsMXBean {
+
+    static final long STATS_MILLIS = 1000;
+    static final int RATE_SAMPLES = 10; //seconds the rate is taken over
+    private static final long SAMPLE_NANOS = 1000000000L;
+
+    private final SimulationCore core;
+    private final LongAdder steps = new LongAdder();
+    private final LongAdder fired = new LongAdder();
+    private final LongAdder potentiated = new LongAdder();
+    private final LongAdder depressed = new LongAdder();
+    private final DoubleAdder signal = new DoubleAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    //the last generation, written by the simulation thread only
+    private volatile int lastFired;
+    private volatile int lastPotentiated;
+    private volatile int lastDepressed;
+    private volatile double lastSignal;
+
+    //times and steps so far, guarded by itself; rateNext is the oldest
+    private final long[] rateNanos = new long[RATE_SAMPLES];
+    private final long[] rateSteps = new long[RATE_SAMPLES];
+    private int rateNext;
+    private long nextSample; //written under the lock of the core
+
+    //guarded by this
+    private final GenerationStats stats = new GenerationStats();
+    private long statsMillis;
+    private ObjectName name;
+
+    /**
+     * Starts watching a core.
+     *
+     * @param core - SimulationCore - the simulation to watch
+     */
+    public SimulationMetrics(SimulationCore core) {
+        this.core = core;
+        long now = System.nanoTime();
+        Arrays.fill(rateNanos, now);
+        nextSample = now + SAMPLE_NANOS;
+        statsMillis = -STATS_MILLIS;
+        core.setMetrics(this);
+    }
+
+    /**
+     * Adds the counts of a generation. Called by the core at the end of
+     * update().
+     *
+     * @param counts - StepCounts - what happened in the generation
+     * @param nanos - long - how long the generation took
+     */
+    void generationDone(StepCounts counts, long nanos) {
+        steps.increment();
+        fired.add(counts.fired);
+        potentiated.add(counts.potentiated);
+        depressed.add(counts.depressed);
+        signal.add(counts.signal);
+        latency.record(nanos);
+        lastFired = counts.fired;
+        lastPotentiated = counts.potentiated;
+        lastDepressed = counts.depressed;
+        lastSignal = counts.signal;
+        long now = System.nanoTime();
+        if (now - nextSample >= 0) {
+            synchronized (rateNanos) {
+                rateNanos[rateNext] = now;
+                rateSteps[rateNext] = steps.sum();
+                rateNext = (rateNext + 1) % RATE_SAMPLES;
+            }
+            nextSample = now + SAMPLE_NANOS;
+        }
+    }
+
+    /**
+     * Registers this as an MXBean of the platform MBean server, replacing
+     * any earlier one with the same name.
+     *
+     * @param name - String - name of the simulation, such as "headless"
+     */
+    public synchronized void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(
+                "neuronsystemsimulation:type=SimulationMetrics,name="
+                + ObjectName.quote(name));
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+        server.registerMBean(this, objectName);
+        this.name = objectName;
+    }
+
+    /**
+     * Stops watching the core and unregisters the MXBean, if it was
+     * registered.
+     */
+    public synchronized void close() throws JMException {
+        core.setMetrics(null);
+        if (name != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            name = null;
+        }
+    }
+
+    @Override
+    public int getGeneration() {
+        return core.getGeneration();
+    }
+
+    /**
+     * Gets the generations per second over about the last RATE_SAMPLES
+     * seconds, or since the metrics were created if that is sooner. If the
+     * core stops, the rate falls towards 0.
+     */
+    @Override
+    public double getGenerationsPerSecond() {
+        long since;
+        long before;
+        synchronized (rateNanos) {
+            since = rateNanos[rateNext];
+            before = rateSteps[rateNext];
+        }
+        long total = steps.sum(); //after the sample, so never less
+        long now = System.nanoTime();
+        return now > since ? (total - before) * 1e9 / (now - since) : 0;
+    }
+
+    @Override
+    public long getSteps() {
+        return steps.sum();
+    }
+
+    @Override
+    public double getStepMillisP50() {
+        return latency.getPercentile(50) / 1e6;
+    }
+
+    @Override
+    public double getStepMillisP90() {
+        return latency.getPercentile(90) / 1e6;
+    }
+
+    @Override
+    public double getStepMillisP99() {
+        return latency.getPercentile(99) / 1e6;
+    }
+
+    @Override
+    public double getStepMillisP999() {
+        return latency.getPercentile(99.9) / 1e6;
+    }
+
+    @Override
+    public double getStepMillisMax() {
+        return latency.getMax() / 1e6;
+    }
+
+    /**
+     * Gets how many neurons were at or above their threshold, and so fired,
+     * in the last generation.
+     */
+    @Override
+    public int getNeuronsAboveThreshold() {
+        return lastFired;
+    }
+
+    /**
+     * Gets the signal sent through all synapses in the last generation.
+     */
+    @Override
+    public double getSignal() {
+        return lastSignal;
+    }
+
+    @Override
+    public double getTotalSignal() {
+        return signal.sum();
+    }
+
+    @Override
+    public int getPotentiations() {
+        return lastPotentiated;
+    }
+
+    /**
+     * Gets the LTD of the last generation. In sparse mode a synapse that was
+     * not used for a while is depressed late, in the generation its neuron
+     * is updated again, so single generations can be off while the totals
+     * agree with the full update.
+     */
+    @Override
+    public int getDepressions() {
+        return lastDepressed;
+    }
+
+    public long getTotalFired() {
+        return fired.sum();
+    }
+
+    @Override
+    public long getTotalPotentiations() {
+        return potentiated.sum();
+    }
+
+    @Override
+    public long getTotalDepressions() {
+        return depressed.sum();
+    }
+
+    /**
+     * Gets how many synapses have each resistance from 0 to MAX_RESISTANCE.
+     */
+    @Override
+    public synchronized long[] getResistanceHistogram() {
+        long now = System.currentTimeMillis();
+        if (now - statsMillis >= STATS_MILLIS) {
+            stats.capture(core);
+            statsMillis = now;
+        }
+        long[] histogram = new long[SimulationCore.NUM_THICKNESSES];
+        for (int r = 0; r < histogram.length; r++) {
+            histogram[r] = stats.getResistanceCount(r);
+        }
+        return histogram;
+    }
+
+    @Override
+    public void resetLatency() {
+        latency.reset();
+    }
+
+}
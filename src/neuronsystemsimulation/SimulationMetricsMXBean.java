@@ -0,0 +1,46 @@
+package neuronsystemsimulation;
+
+/**
+ * The attributes a SimulationMetrics shows through JMX, for example in
+ * JConsole under neuronsystemsimulation:type=SimulationMetrics.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public interface SimulationMetricsMXBean {
+
+    int getGeneration();
+
+    double getGenerationsPerSecond();
+
+    long getSteps();
+
+    double getStepMillisP50();
+
+    double getStepMillisP90();
+
+    double getStepMillisP99();
+
+    double getStepMillisP999();
+
+    double getStepMillisMax();
+
+    int getNeuronsAboveThreshold();
+
+    double getSignal();
+
+    double getTotalSignal();
+
+    int getPotentiations();
+
+    int getDepressions();
+
+    long getTotalPotentiations();
+
+    long getTotalDepressions();
+
+    long[] getResistanceHistogram();
+
+    void resetLatency();
+
+}
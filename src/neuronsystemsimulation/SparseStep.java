@@ -0,0 +1,418 @@
+package neuronsystemsimulation;
+
+import java.util.Arrays;
+
+/**
+ * The SparseStep updates only the neurons of a SimulationCore that can
+ * change: the ones with a nonzero state, the ones that are stimulated and the
+ * ones that receive a signal before their turn. A neuron at state 0 without
+ * input stays at 0, so skipping it gives the same result as updating it.
+ *
+ * Skipped neurons still age their outgoing synapses every generation. Instead
+ * of touching them, each synapse remembers the generation it was last brought
+ * up to date, and the rounds it missed are applied in one go the next time
+ * its neuron is updated or its resistance is read.
+ *
+ * Neurons are updated in increasing index order, like the full update. The
+ * ones to update come from three increasing sequences: the active list of the
+ * previous generation, the east neighbour of the neuron that was just updated
+ * and the queue of south neighbours that were signalled.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+class SparseStep {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int RADIX_BITS = 8;
+
+    private final SimulationCore core;
+    private final int N;
+    private final int M;
+
+    private final int[] touchedGeneration; //generation newState was set
+    private final int[] syncedGeneration; //per edge, last generation aged
+
+    private int[] active = new int[INITIAL_CAPACITY];
+    private int activeCount;
+    private int[] spare = new int[INITIAL_CAPACITY];
+    private int[] touched = new int[INITIAL_CAPACITY];
+    private int touchedCount;
+    private int[] southQueue = new int[INITIAL_CAPACITY];
+    private int southHead;
+    private int southTail;
+    private int[] stimulated = new int[INITIAL_CAPACITY];
+    private int stimulatedCount;
+    private int eastPending;
+    private int[] sortBuffer = new int[INITIAL_CAPACITY];
+    private final int[] digitCount = new int[1 << RADIX_BITS];
+    private final int radixPasses;
+
+    /**
+     * Collects the neurons with a nonzero state of a core.
+     *
+     * @param core - SimulationCore - the simulation to update
+     */
+    SparseStep(SimulationCore core) {
+        this.core = core;
+        N = core.getN();
+        M = core.getM();
+        touchedGeneration = new int[N * M];
+        Arrays.fill(touchedGeneration, -1);
+        syncedGeneration = new int[2 * N * M];
+        Arrays.fill(syncedGeneration, core.getGeneration());
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, N * M - 1));
+        radixPasses = (bits + RADIX_BITS - 1) / RADIX_BITS;
+        for (int c = 0; c < N * M; c++) {
+            if (core.state[c] != 0) {
+                active = append(active, activeCount++, c);
+            }
+        }
+    }
+
+    /**
+     * Updates the active neurons for the current generation of the core. The
+     * new states are written back into the state buffer directly.
+     */
+    void step() {
+        int g = core.getGeneration();
+        double[] state = core.state;
+        double[] newState = core.newState;
+        touchedCount = 0;
+        southHead = 0;
+        southTail = 0;
+        eastPending = Integer.MAX_VALUE;
+
+        if (stimulatedCount > 0) {
+            mergeStimulated();
+        }
+        if (core.isAuto()) {
+            drawAutoStimulation(g);
+        }
+        if (core.stimuli.size() > 0 && core.getStimulus() != null) {
+            mergeStimuli(core.stimuli, g);
+        }
+
+        int a = 0;
+        int last = -1;
+        while (true) {
+            int c = eastPending;
+            if (a < activeCount && active[a] < c) {
+                c = active[a];
+            }
+            if (southHead < southTail && southQueue[southHead] < c) {
+                c = southQueue[southHead];
+            }
+            if (c == Integer.MAX_VALUE) {
+                break;
+            }
+            if (c == eastPending) {
+                eastPending = Integer.MAX_VALUE;
+            }
+            if (a < activeCount && active[a] == c) {
+                a++;
+            }
+            if (southHead < southTail && southQueue[southHead] == c) {
+                southHead++;
+            }
+            if (c != last) {
+                updateNeuron(c, g);
+                last = c;
+            }
+        }
+
+        activeCount = 0;
+        StepEvents events = core.counts.events;
+        for (int t = 0; t < touchedCount; t++) {
+            int c = touched[t];
+            state[c] = newState[c];
+            if (events != null) {
+                events.changed(c);
+            }
+            if (state[c] != 0) {
+                active = append(active, activeCount++, c);
+            }
+        }
+        sortActive();
+    }
+
+    /**
+     * Draws the auto stimulation for every neuron and adds the stimulated
+     * neurons to the active list.
+     *
+     * @param g - int - the generation being computed
+     */
+    private void drawAutoStimulation(int g) {
+        int[] merged = spare;
+        int mergedCount = 0;
+        int a = 0;
+        for (int c = 0; c < N * M; c++) {
+            double amount = core.autoStimulation(c);
+            if (amount > 0) {
+                touch(c, g);
+                core.newState[c] += amount;
+                merged = append(merged, mergedCount++, c);
+            } else if (a < activeCount && active[a] == c) {
+                merged = append(merged, mergedCount++, c);
+            }
+            if (a < activeCount && active[a] == c) {
+                a++;
+            }
+        }
+        spare = active;
+        active = merged;
+        activeCount = mergedCount;
+    }
+
+    /**
+     * Adds the stimulations of the StimulusSource to the new states and the
+     * stimulated neurons to the active list, in one merge of the two sorted
+     * lists, so it costs as much as the stimulations and the active neurons.
+     *
+     * @param stimuli - Stimuli - the sorted stimulations
+     * @param g - int - the generation being computed
+     */
+    private void mergeStimuli(Stimuli stimuli, int g) {
+        int[] merged = spare;
+        int mergedCount = 0;
+        int a = 0;
+        int k = 0;
+        while (a < activeCount || k < stimuli.size()) {
+            int c = k < stimuli.size() ? stimuli.getCell(k)
+                    : Integer.MAX_VALUE;
+            if (a < activeCount && active[a] <= c) {
+                c = active[a];
+            }
+            if (a < activeCount && active[a] == c) {
+                a++;
+            }
+            for (; k < stimuli.size() && stimuli.getCell(k) == c; k++) {
+                touch(c, g);
+                core.newState[c] += stimuli.getAmount(k);
+            }
+            merged = append(merged, mergedCount++, c);
+        }
+        spare = active;
+        active = merged;
+        activeCount = mergedCount;
+    }
+
+    /**
+     * Moves the neurons stimulated between generations into the active list.
+     */
+    private void mergeStimulated() {
+        for (int s = 0; s < stimulatedCount; s++) {
+            active = append(active, activeCount++, stimulated[s]);
+        }
+        stimulatedCount = 0;
+        sortActive();
+        int unique = 0;
+        for (int a = 0; a < activeCount; a++) {
+            if (unique == 0 || active[a] != active[unique - 1]) {
+                active[unique++] = active[a];
+            }
+        }
+        activeCount = unique;
+    }
+
+    /**
+     * Updates one neuron like SimulationCore.updateNeuron(), bringing its
+     * outgoing synapses up to date first.
+     *
+     * @param c - int - index of the neuron
+     * @param g - int - the generation being computed
+     */
+    private void updateNeuron(int c, int g) {
+        int i = c / M;
+        int j = c - i * M;
+        byte[] direction = core.direction;
+        int north = i > 0 && direction[2 * (c - M) + 1]
+                == SimulationCore.BACKWARD ? 2 * (c - M) + 1 : -1;
+        int east = direction[2 * c] == SimulationCore.FORWARD ? 2 * c : -1;
+        int south = direction[2 * c + 1] == SimulationCore.FORWARD
+                ? 2 * c + 1 : -1;
+        int west = j > 0 && direction[2 * (c - 1)]
+                == SimulationCore.BACKWARD ? 2 * (c - 1) : -1;
+        catchUp(north, g - 1);
+        catchUp(east, g - 1);
+        catchUp(south, g - 1);
+        catchUp(west, g - 1);
+
+        touch(c, g);
+        StepCounts counts = core.counts;
+        double[] newState = core.newState;
+        double s = core.state[c];
+        if (s >= core.threshold[c]) {
+            counts.fired++;
+            if (counts.events != null) {
+                counts.events.fired(c);
+            }
+            send(c - M, core.fire(c, s, north, counts), g,
+                    SimulationCore.NORTH);
+            send(c + 1, core.fire(c, s, east, counts), g,
+                    SimulationCore.EAST);
+            send(c + M, core.fire(c, s, south, counts), g,
+                    SimulationCore.SOUTH);
+            send(c - 1, core.fire(c, s, west, counts), g,
+                    SimulationCore.WEST);
+        }
+        if (newState[c] >= 0) {
+            if (newState[c] > core.leak[c]) {
+                newState[c] -= core.leak[c];
+            } else {
+                newState[c] = 0;
+            }
+            core.age(north, counts);
+            core.age(east, counts);
+            core.age(south, counts);
+            core.age(west, counts);
+        }
+        synced(north, g);
+        synced(east, g);
+        synced(south, g);
+        synced(west, g);
+    }
+
+    /**
+     * Adds a signal to a postsynaptic neuron. A neuron east or south of the
+     * sender has not had its turn yet, so it is scheduled for an update.
+     *
+     * @param post - int - index of the postsynaptic neuron
+     * @param signal - double - the signal, 0 if none is sent
+     * @param g - int - the generation being computed
+     * @param side - int - side of the sender the postsynaptic neuron is on
+     */
+    private void send(int post, double signal, int g, int side) {
+        if (signal <= 0) {
+            return;
+        }
+        touch(post, g);
+        core.newState[post] += signal;
+        if (side == SimulationCore.EAST) {
+            eastPending = post;
+        } else if (side == SimulationCore.SOUTH) {
+            southQueue = append(southQueue, southTail++, post);
+        }
+    }
+
+    /**
+     * Starts the new state of a neuron from its old state the first time it
+     * is touched in a generation.
+     *
+     * @param c - int - index of the neuron
+     * @param g - int - the generation being computed
+     */
+    private void touch(int c, int g) {
+        if (touchedGeneration[c] != g) {
+            touchedGeneration[c] = g;
+            core.newState[c] = core.state[c];
+            touched = append(touched, touchedCount++, c);
+        }
+    }
+
+    /**
+     * Applies the rounds without LTP a synapse missed while its presynaptic
+     * neuron was skipped.
+     *
+     * @param e - int - edge index of the synapse, -1 if there is none
+     * @param g - int - the generation to bring the synapse up to
+     */
+    void catchUp(int e, int g) {
+        if (e < 0 || syncedGeneration[e] >= g) {
+            return;
+        }
+        int missed = g - syncedGeneration[e];
+        syncedGeneration[e] = g;
+        if (core.direction[e] == SimulationCore.NO_SYNAPSE) {
+            return;
+        }
+        int period = core.getMaxRoundsSinceLTP() + 1; //rounds from LTD to LTD
+        int rounds = core.roundsSinceLTP[e];
+        //at least 1, in case the period was shortened since the last LTP
+        int untilLTD = Math.max(1, period - rounds);
+        if (missed < untilLTD) {
+            core.roundsSinceLTP[e] = (short) (rounds + missed);
+            return;
+        }
+        int depressions = 1 + (missed - untilLTD) / period;
+        //counted and listed in the generation the synapse is caught up in
+        core.counts.depressed += depressions;
+        if (core.counts.events != null) {
+            for (int d = 0; d < depressions; d++) {
+                core.counts.events.depressed(e);
+            }
+        }
+        core.roundsSinceLTP[e] = (short) ((missed - untilLTD) % period);
+        core.resistance[e] = (byte) Math.min(SimulationCore.MAX_RESISTANCE,
+                core.resistance[e] + depressions);
+    }
+
+    /**
+     * Brings every synapse up to the current generation.
+     */
+    void catchUpAll() {
+        int g = core.getGeneration();
+        for (int e = 0; e < syncedGeneration.length; e++) {
+            catchUp(e, g);
+        }
+    }
+
+    private void synced(int e, int g) {
+        if (e >= 0) {
+            syncedGeneration[e] = g;
+        }
+    }
+
+    /**
+     * Marks a neuron that was stimulated between generations as active.
+     *
+     * @param c - int - index of the neuron
+     */
+    void stimulated(int c) {
+        stimulated = append(stimulated, stimulatedCount++, c);
+    }
+
+    /**
+     * Sorts the active list with a radix sort on the neuron index. The
+     * buffers are kept between generations, unlike Arrays.sort(), which
+     * allocates a new one whenever it merges runs of a partly sorted list.
+     */
+    private void sortActive() {
+        if (sortBuffer.length < active.length) {
+            sortBuffer = new int[active.length];
+        }
+        int[] from = active;
+        int[] to = sortBuffer;
+        for (int pass = 0; pass < radixPasses; pass++) {
+            int shift = pass * RADIX_BITS;
+            Arrays.fill(digitCount, 0);
+            for (int a = 0; a < activeCount; a++) {
+                digitCount[(from[a] >>> shift) & (digitCount.length - 1)]++;
+            }
+            int sum = 0;
+            for (int d = 0; d < digitCount.length; d++) {
+                int count = digitCount[d];
+                digitCount[d] = sum;
+                sum += count;
+            }
+            for (int a = 0; a < activeCount; a++) {
+                int c = from[a];
+                to[digitCount[(c >>> shift) & (digitCount.length - 1)]++] = c;
+            }
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+        active = from;
+        sortBuffer = to;
+    }
+
+    private static int[] append(int[] array, int index, int value) {
+        if (index == array.length) {
+            array = Arrays.copyOf(array, 2 * array.length + 1);
+        }
+        array[index] = value;
+        return array;
+    }
+
+}
@@ -0,0 +1,55 @@
+package neuronsystemsimulation;
+
+/**
+ * The StepCounts counts what happened in one generation, or in one band of
+ * it: how many neurons fired, how many synapses did LTP and LTD and the total
+ * signal sent. Every thread that updates neurons counts into its own
+ * StepCounts, and they are added up once the generation is done. While the
+ * core is recorded the StepCounts also lists the events in a StepEvents.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+class StepCounts {
+
+    int fired; //neurons at or above their threshold
+    int potentiated;
+    int depressed;
+    double signal;
+    StepEvents events; //null unless the core is recorded
+
+    void clear() {
+        fired = 0;
+        potentiated = 0;
+        depressed = 0;
+        signal = 0;
+        if (events != null) {
+            events.clear();
+        }
+    }
+
+    void add(StepCounts other) {
+        fired += other.fired;
+        potentiated += other.potentiated;
+        depressed += other.depressed;
+        signal += other.signal;
+        if (events != null && other.events != null) {
+            events.add(other.events);
+        }
+    }
+
+    /**
+     * Starts or stops listing the events.
+     *
+     * @param record - boolean - whether to list them
+     * @param capacity - int - initial length of the lists
+     */
+    void record(boolean record, int capacity) {
+        if (!record) {
+            events = null;
+        } else if (events == null) {
+            events = new StepEvents(capacity);
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package neuronsystemsimulation;
+
+import java.util.Arrays;
+
+/**
+ * The StepEvents lists what happened in one generation, or in one band of it,
+ * for an ActivityRecorder: the neurons that fired, the synapses that did LTP
+ * and LTD, and the neurons whose state may have changed. A StepCounts carries
+ * one while its core is recorded, and the engines add to it where they count.
+ * The lists keep their arrays from one generation to the next, so once they
+ * have grown to the busiest generation nothing is allocated.
+ *
+ * The lists are in the order the engine met the events, not sorted. A
+ * synapse that the sparse update caught up on may be in depressed more than
+ * once, and a neuron in changed more than once.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+class StepEvents {
+
+    int[] fired;
+    int firedCount;
+    int[] potentiated;
+    int potentiatedCount;
+    int[] depressed;
+    int depressedCount;
+    int[] changed;
+    int changedCount;
+
+    /**
+     * Creates empty lists.
+     *
+     * @param capacity - int - initial length of each list
+     */
+    StepEvents(int capacity) {
+        capacity = Math.max(16, capacity);
+        fired = new int[capacity];
+        potentiated = new int[capacity];
+        depressed = new int[capacity];
+        changed = new int[capacity];
+    }
+
+    void fired(int c) {
+        fired = add(fired, firedCount++, c);
+    }
+
+    void potentiated(int e) {
+        potentiated = add(potentiated, potentiatedCount++, e);
+    }
+
+    void depressed(int e) {
+        depressed = add(depressed, depressedCount++, e);
+    }
+
+    void changed(int c) {
+        changed = add(changed, changedCount++, c);
+    }
+
+    void clear() {
+        firedCount = 0;
+        potentiatedCount = 0;
+        depressedCount = 0;
+        changedCount = 0;
+    }
+
+    /**
+     * Appends the lists of another band.
+     *
+     * @param other - StepEvents - the events to append
+     */
+    void add(StepEvents other) {
+        for (int k = 0; k < other.firedCount; k++) {
+            fired(other.fired[k]);
+        }
+        for (int k = 0; k < other.potentiatedCount; k++) {
+            potentiated(other.potentiated[k]);
+        }
+        for (int k = 0; k < other.depressedCount; k++) {
+            depressed(other.depressed[k]);
+        }
+        for (int k = 0; k < other.changedCount; k++) {
+            changed(other.changed[k]);
+        }
+    }
+
+    static int[] add(int[] array, int index, int value) {
+        if (index == array.length) {
+            array = Arrays.copyOf(array, 2 * array.length);
+        }
+        array[index] = value;
+        return array;
+    }
+
+}
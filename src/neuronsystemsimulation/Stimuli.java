@@ -0,0 +1,140 @@
+package neuronsystemsimulation;
+
+import java.util.Arrays;
+
+/**
+ * The Stimuli are the stimulations of one generation as a sparse vector of
+ * (cell, amount) pairs, filled by a StimulusSource. A SimulationCore keeps
+ * one and reuses its arrays every generation, so a source that only adds to
+ * it does not allocate once the arrays are large enough.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class Stimuli {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int[] cells = new int[INITIAL_CAPACITY];
+    private double[] amounts = new double[INITIAL_CAPACITY];
+    private int[] spareCells = new int[0]; //for sort()
+    private double[] spareAmounts = new double[0];
+    private int size;
+    private int limit; //cells are in [0, limit)
+    private boolean sorted = true;
+
+    /**
+     * Adds a stimulation.
+     *
+     * @param cell - int - index of the neuron, i * M + j
+     * @param amount - double - added to its new state
+     */
+    public void add(int cell, double amount) {
+        if (cell < 0 || cell >= limit) {
+            throw new IllegalArgumentException("Cell " + cell
+                    + " is not in the grid");
+        }
+        if (size == cells.length) {
+            cells = Arrays.copyOf(cells, 2 * size);
+            amounts = Arrays.copyOf(amounts, 2 * size);
+        }
+        if (size > 0 && cell < cells[size - 1]) {
+            sorted = false;
+        }
+        cells[size] = cell;
+        amounts[size] = amount;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCell(int k) {
+        return cells[k];
+    }
+
+    public double getAmount(int k) {
+        return amounts[k];
+    }
+
+    /**
+     * Gets the number of neurons the cells must be below.
+     *
+     * @return N * M of the grid
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Empties the vector for a new generation.
+     *
+     * @param limit - int - N * M of the grid
+     */
+    void clear(int limit) {
+        this.limit = limit;
+        size = 0;
+        sorted = true;
+    }
+
+    /**
+     * Sorts the stimulations by cell, keeping the order in which those of
+     * the same cell were added, so every engine adds them up the same way.
+     * Sources usually add in cell order, then there is nothing to do;
+     * otherwise a bottom-up merge sort runs through a second pair of arrays
+     * that is kept for the next time.
+     */
+    void sort() {
+        if (sorted) {
+            return;
+        }
+        if (spareCells.length < size) {
+            spareCells = new int[cells.length];
+            spareAmounts = new double[cells.length];
+        }
+        for (int width = 1; width < size; width *= 2) {
+            for (int lo = 0; lo < size; lo += 2 * width) {
+                int mid = Math.min(lo + width, size);
+                int hi = Math.min(lo + 2 * width, size);
+                int a = lo;
+                int b = mid;
+                for (int k = lo; k < hi; k++) {
+                    int from = b >= hi || (a < mid && cells[a] <= cells[b])
+                            ? a++ : b++;
+                    spareCells[k] = cells[from];
+                    spareAmounts[k] = amounts[from];
+                }
+            }
+            int[] swapCells = cells;
+            cells = spareCells;
+            spareCells = swapCells;
+            double[] swapAmounts = amounts;
+            amounts = spareAmounts;
+            spareAmounts = swapAmounts;
+        }
+        sorted = true;
+    }
+
+    /**
+     * Finds the first stimulation of a cell or of a later one. The vector
+     * must be sorted.
+     *
+     * @param cell - int - index of the neuron
+     * @return its position, size() if all cells are before it
+     */
+    int from(int cell) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cells[mid] < cell) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+}
@@ -0,0 +1,97 @@
+package neuronsystemsimulation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The StimulusQueue carries stimulations from any number of threads, such as
+ * the event dispatch thread, to the one thread that updates a core. It is a
+ * bounded ring: a producer claims a slot by a compare-and-set on the tail,
+ * fills it and publishes it through the sequence number of the slot, so
+ * neither side ever takes a lock or allocates.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+class StimulusQueue {
+
+    private final int mask;
+    private final int[] rows;
+    private final int[] cols;
+    private final double[] amounts;
+    //slot k is free for the producer of position p when it holds p, and
+    //ready for the consumer when it holds p + 1
+    private final AtomicLongArray sequence;
+    private final AtomicLong tail = new AtomicLong();
+    private long head; //only used by the consumer
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param capacity - int - the most stimulations that can wait, rounded
+     * up to a power of two
+     */
+    StimulusQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        rows = new int[size];
+        cols = new int[size];
+        amounts = new double[size];
+        sequence = new AtomicLongArray(size);
+        for (int k = 0; k < size; k++) {
+            sequence.set(k, k);
+        }
+    }
+
+    /**
+     * Adds a stimulation. May be called from any thread.
+     *
+     * @param i - int - row of the neuron
+     * @param j - int - col of the neuron
+     * @param amount - double - stimulation added to the state
+     * @return false if the queue is full and the stimulation was dropped
+     */
+    boolean offer(int i, int j, double amount) {
+        long position;
+        int k;
+        while (true) {
+            position = tail.get();
+            k = (int) position & mask;
+            long available = sequence.get(k);
+            if (available == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (available < position) {
+                return false; //the consumer has not emptied the slot yet
+            }
+        }
+        rows[k] = i;
+        cols[k] = j;
+        amounts[k] = amount;
+        sequence.lazySet(k, position + 1);
+        return true;
+    }
+
+    /**
+     * Applies every stimulation that has been published to a core. Must only
+     * be called by the thread that updates the core.
+     *
+     * @param core - SimulationCore - the simulation to stimulate
+     * @return the number of stimulations applied
+     */
+    int drain(SimulationCore core) {
+        int drained = 0;
+        while (true) {
+            int k = (int) head & mask;
+            if (sequence.get(k) != head + 1) {
+                return drained;
+            }
+            core.stimulate(rows[k], cols[k], amounts[k]);
+            sequence.lazySet(k, head + mask + 1);
+            head++;
+            drained++;
+        }
+    }
+
+}
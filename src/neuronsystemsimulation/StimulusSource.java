@@ -0,0 +1,24 @@
+package neuronsystemsimulation;
+
+/**
+ * A StimulusSource decides which neurons are stimulated in a generation and
+ * by how much, in place of or next to the auto stimulation of a
+ * SimulationCore. The core asks it for every generation just before the
+ * update, and the stimulations are added to the new states the way the auto
+ * stimulation is, after it and before any signal arrives.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public interface StimulusSource {
+
+    /**
+     * Adds the stimulations of a generation. Called on the thread that
+     * updates the core, once per generation in increasing order.
+     *
+     * @param generation - int - the generation about to be computed
+     * @param out - Stimuli - the empty vector to add them to
+     */
+    void fill(int generation, Stimuli out);
+
+}
@@ -0,0 +1,211 @@
+package neuronsystemsimulation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The Tile is one band of rows lo to hi - 1 of an N x M grid whose bands are
+ * updated by separate TileWorker processes, the same way ParallelStep splits
+ * a grid over threads. Its SimulationCore holds the rows of the band and,
+ * unless the band is the first, one ghost row above them: row lo - 1 is not
+ * updated here, but its south synapses are the ones between the two bands.
+ *
+ * Only the presynaptic neuron of a synapse changes it, so each synapse
+ * between two bands is only changed by one of them and no synapse state has
+ * to be exchanged. Every generation the tiles only trade the signals that
+ * cross a band edge, as one message per neighbour and direction:
+ * <ol>
+ * <li>the signals the last row sends south, computed from the old states, go
+ * to the tile below before anything else, so all tiles send at once;</li>
+ * <li>the signals from the tile above are added to the new states of the
+ * first row, then the band is updated;</li>
+ * <li>the signals the first row sent north go to the tile above, and the
+ * ones from the tile below are added to the last row.</li>
+ * </ol>
+ * This is the order of ParallelStep, so the result is the same as updating
+ * the whole grid in one process. A tile cannot start a generation before its
+ * neighbours have finished the previous one, so the tiles run in lockstep.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+class Tile {
+
+    private final SimulationCore core;
+    private final int N;
+    private final int M;
+    private final int lo;
+    private final int hi;
+    private final int ghost; //1 if the core has a ghost row, else 0
+    private final MessageChannel north; //null for the first band
+    private final MessageChannel south; //null for the last band
+    private final double[] haloNorth;
+
+    /**
+     * Builds the band of a grid with the same leak rates and synapses as
+     * new SimulationCore(N, M, setup, random) would have in those rows.
+     *
+     * @param N - int - num rows of the whole grid
+     * @param M - int - num cols
+     * @param lo - int - first row of the band
+     * @param hi - int - row after the last row of the band
+     * @param setup - String - "Random" or "Structured"
+     * @param random - RandomSource - source of all random numbers of the run
+     * @param north - MessageChannel - connection to the band above, or null
+     * @param south - MessageChannel - connection to the band below, or null
+     */
+    Tile(int N, int M, int lo, int hi, String setup, RandomSource random,
+            MessageChannel north, MessageChannel south) {
+        this.N = N;
+        this.M = M;
+        this.lo = lo;
+        this.hi = hi;
+        this.north = north;
+        this.south = south;
+        ghost = lo > 0 ? 1 : 0;
+        haloNorth = new double[M];
+        core = new SimulationCore(hi - lo + ghost, M, setup, random, 0);
+        core.firstCell = (lo - ghost) * M;
+        core.setUp(setup, N - 1 - (lo - ghost));
+        core.directionsChanged();
+        core.setTile(this);
+    }
+
+    /**
+     * Computes one generation of the band into the new state buffer of the
+     * core. Called by SimulationCore.update().
+     */
+    void step() {
+        try {
+            int first = ghost;
+            int last = hi - lo - 1 + ghost;
+            if (south != null) {
+                ByteBuffer out = south.begin(8 + 12 * M);
+                out.putInt(core.getGeneration());
+                out.putInt(0);
+                int count = 0;
+                int c = last * M;
+                for (int j = 0; j < M; j++, c++) {
+                    if (core.direction[2 * c + 1] == SimulationCore.FORWARD) {
+                        double signal = core.outgoingSignal(c, 2 * c + 1);
+                        if (signal > 0) {
+                            out.putInt(j);
+                            out.putDouble(signal);
+                            count++;
+                        }
+                    }
+                }
+                out.putInt(8, count); //after the length and generation
+                south.send();
+            }
+            core.prepareRow(first);
+            if (north != null) {
+                receive(north, first);
+            }
+            Arrays.fill(haloNorth, 0);
+            core.updateRows(first, last + 1, haloNorth, core.counts);
+            if (north != null) {
+                ByteBuffer out = north.begin(8 + 12 * M);
+                out.putInt(core.getGeneration());
+                out.putInt(0);
+                int count = 0;
+                for (int j = 0; j < M; j++) {
+                    if (haloNorth[j] > 0) {
+                        out.putInt(j);
+                        out.putDouble(haloNorth[j]);
+                        count++;
+                    }
+                }
+                out.putInt(8, count); //after the length and generation
+                north.send();
+            }
+            if (south != null) {
+                receive(south, last);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Adds the signals a neighbouring tile sent into one row.
+     *
+     * @param from - MessageChannel - the neighbour
+     * @param row - int - the row of the core the signals go to
+     */
+    private void receive(MessageChannel from, int row) throws IOException {
+        ByteBuffer in = from.receive();
+        int generation = in.getInt();
+        if (generation != core.getGeneration()) {
+            throw new IOException("Expected generation "
+                    + core.getGeneration() + " from a neighbour, got "
+                    + generation);
+        }
+        double[] newState = core.newState;
+        for (int k = in.getInt(); k > 0; k--) {
+            newState[row * M + in.getInt()] += in.getDouble();
+        }
+    }
+
+    /**
+     * Writes the statistics of the band: active neurons, neurons above
+     * threshold, total and max state, then the number of synapses with each
+     * resistance. A synapse between two bands is counted by the band of its
+     * presynaptic neuron, which is the one that changes it, or by the lower
+     * band if it has no direction.
+     *
+     * @param out - ByteBuffer - where to put the statistics
+     */
+    void putStats(ByteBuffer out) {
+        int active = 0;
+        int aboveThreshold = 0;
+        double total = 0;
+        double max = 0;
+        long[] resistances = new long[SimulationCore.NUM_THICKNESSES];
+        if (ghost == 1) {
+            for (int j = 0; j < M; j++) {
+                if (core.direction[2 * j + 1] != SimulationCore.FORWARD) {
+                    resistances[core.resistance[2 * j + 1]]++;
+                }
+            }
+        }
+        int last = hi - lo - 1 + ghost;
+        for (int i = ghost; i <= last; i++) {
+            int c = i * M;
+            for (int j = 0; j < M; j++, c++) {
+                double s = core.state[c];
+                if (s > 0) {
+                    active++;
+                }
+                if (s >= core.threshold[c]) {
+                    aboveThreshold++;
+                }
+                total += s;
+                if (s > max) {
+                    max = s;
+                }
+                if (j < M - 1) {
+                    resistances[core.resistance[2 * c]]++;
+                }
+                if (i < last || (hi < N && core.direction[2 * c + 1]
+                        == SimulationCore.FORWARD)) {
+                    resistances[core.resistance[2 * c + 1]]++;
+                }
+            }
+        }
+        out.putInt(active);
+        out.putInt(aboveThreshold);
+        out.putDouble(total);
+        out.putDouble(max);
+        for (long count : resistances) {
+            out.putLong(count);
+        }
+    }
+
+    SimulationCore getCore() {
+        return core;
+    }
+
+}
@@ -0,0 +1,162 @@
+package neuronsystemsimulation;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The TileWorker is a process that updates one Tile of a grid for a
+ * DistributedSimulation. Usage:
+ * <pre>
+ * java -cp NeuronSystemSimulation.jar neuronsystemsimulation.TileWorker
+ *         [port] [bind address]
+ * </pre>
+ * It listens on the port (any free one if 0 or left out), prints it, and
+ * waits for the coordinator to connect. The coordinator tells it which rows
+ * to build and where the worker of the band above listens; the worker
+ * connects there and accepts the worker of the band below on its own port.
+ * It then runs generations when it is told to and answers with the
+ * statistics of its band, until it is told to stop.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class TileWorker {
+
+    //message types, the first int of every message to or from a coordinator
+    static final int CONFIGURE = 1;
+    static final int READY = 2;
+    static final int RUN = 3;
+    static final int DONE = 4;
+    static final int STOP = 5;
+
+    private static final int STATS_BYTES = 24
+            + 8 * SimulationCore.NUM_THICKNESSES;
+
+    private final ServerSocketChannel server;
+    private MessageChannel coordinator;
+    private MessageChannel north;
+    private MessageChannel south;
+    private Tile tile;
+
+    /**
+     * Starts listening.
+     *
+     * @param address - InetSocketAddress - where to listen
+     * @throws IOException if the port cannot be bound
+     */
+    public TileWorker(InetSocketAddress address) throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(address);
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Serves one coordinator until it sends STOP or the connection fails.
+     *
+     * @throws IOException if a connection fails
+     */
+    public void serve() throws IOException {
+        try {
+            coordinator = new MessageChannel(server.accept());
+            while (true) {
+                ByteBuffer in = coordinator.receive();
+                int type = in.getInt();
+                switch (type) {
+                    case CONFIGURE:
+                        configure(in);
+                        coordinator.begin(4).putInt(READY);
+                        coordinator.send();
+                        break;
+                    case RUN:
+                        run(in.getInt());
+                        break;
+                    case STOP:
+                        return;
+                    default:
+                        throw new IOException("Unknown message " + type);
+                }
+            }
+        } finally {
+            close(north);
+            close(south);
+            close(coordinator);
+            server.close();
+        }
+    }
+
+    /**
+     * Builds the tile and connects to the neighbouring workers.
+     */
+    private void configure(ByteBuffer in) throws IOException {
+        int N = in.getInt();
+        int M = in.getInt();
+        int lo = in.getInt();
+        int hi = in.getInt();
+        String setup = MessageChannel.getString(in);
+        long seed = in.getLong();
+        boolean auto = in.get() != 0;
+        double probability = in.getDouble();
+        double max = in.getDouble();
+        int maxRounds = in.getInt();
+        String northHost = MessageChannel.getString(in);
+        int northPort = in.getInt();
+        boolean hasSouth = in.get() != 0;
+
+        if (!northHost.isEmpty()) {
+            north = new MessageChannel(SocketChannel.open(
+                    new InetSocketAddress(northHost, northPort)));
+        }
+        if (hasSouth) {
+            south = new MessageChannel(server.accept());
+        }
+        tile = new Tile(N, M, lo, hi, setup, new CounterRandom(seed), north,
+                south);
+        SimulationCore core = tile.getCore();
+        core.setAuto(auto);
+        core.setStimulation(probability, max);
+        core.setMaxRoundsSinceLTP(maxRounds);
+    }
+
+    /**
+     * Runs generations and answers with the generation, the time it took
+     * and the statistics of the band.
+     */
+    private void run(int generations) throws IOException {
+        SimulationCore core = tile.getCore();
+        long start = System.nanoTime();
+        for (int g = 0; g < generations; g++) {
+            core.update();
+        }
+        long nanos = System.nanoTime() - start;
+        ByteBuffer out = coordinator.begin(16 + STATS_BYTES);
+        out.putInt(DONE);
+        out.putInt(core.getGeneration());
+        out.putLong(nanos);
+        tile.putStats(out);
+        coordinator.send();
+    }
+
+    private static void close(MessageChannel channel) throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        InetSocketAddress address = args.length > 1
+                ? new InetSocketAddress(args[1], port)
+                : new InetSocketAddress(port);
+        TileWorker worker = new TileWorker(address);
+        System.out.println("TileWorker listening on port "
+                + worker.getPort());
+        worker.serve();
+    }
+
+}
@@ -0,0 +1,403 @@
+package neuronsystemsimulation;
+
+import java.util.Arrays;
+
+/**
+ * A Topology says which neuron connects to which. The synapses are stored as
+ * a compressed sparse row index: the synapses leaving neuron c are numbered
+ * start[c] to start[c + 1] - 1, target[k] is the postsynaptic neuron of
+ * synapse k, and resistance[k] is the resistance it starts with. A neuron
+ * fires through its synapses in that order.
+ *
+ * The lattice, torus and moore factories build grids of N x M neurons where
+ * neuron (i, j) has index i * M + j, and every pair of neighbours gets one
+ * synapse in a random direction, drawn like SimulationCore draws them.
+ * smallWorld and scaleFree build random graphs of any size; other shapes can
+ * be built with a Builder.
+ *
+ * @author Geeling Chau
+ * @date May 2016
+ */
+public class Topology {
+
+    //random graphs draw with generation TOPOLOGY and below, 256 draws each
+    private static final long TOPOLOGY = RandomSource.SETUP - 1;
+
+    //pairs of grid neighbours, owned by the west or north neuron of the pair:
+    //row offset, col offset, direction draw, thickness draw, 1 in how many
+    //draws gives FORWARD, structured thickness
+    private static final int[][] PAIRS = {
+        {0, 1, 1, 2, 3, SimulationCore.DEFAULT_VERTICAL_THICKNESS}, //east
+        {1, 0, 3, 4, 4, SimulationCore.DEFAULT_HORIZONTAL_THICKNESS}, //south
+        {1, 1, 5, 6, 2, SimulationCore.DEFAULT_VERTICAL_THICKNESS}, //southeast
+        {1, -1, 7, 8, 2, SimulationCore.DEFAULT_VERTICAL_THICKNESS} //southwest
+    };
+    private static final int EAST_PAIR = 0;
+    private static final int SOUTH_PAIR = 1;
+    private static final int SOUTHEAST_PAIR = 2;
+    private static final int SOUTHWEST_PAIR = 3;
+
+    //sides of a neuron in the order it fires through them: the pair, and
+    //whether the neuron owns it
+    private static final int[][] LATTICE_SIDES = {
+        {SOUTH_PAIR, 0}, //north
+        {EAST_PAIR, 1}, //east
+        {SOUTH_PAIR, 1}, //south
+        {EAST_PAIR, 0} //west
+    };
+    private static final int[][] MOORE_SIDES = {
+        {SOUTH_PAIR, 0}, //north
+        {SOUTHWEST_PAIR, 0}, //northeast
+        {EAST_PAIR, 1}, //east
+        {SOUTHEAST_PAIR, 1}, //southeast
+        {SOUTH_PAIR, 1}, //south
+        {SOUTHWEST_PAIR, 1}, //southwest
+        {EAST_PAIR, 0}, //west
+        {SOUTHEAST_PAIR, 0} //northwest
+    };
+
+    private final String name;
+    private final int size;
+    final int[] start;
+    final int[] target;
+    final byte[] resistance;
+
+    private Topology(String name, int size, int[] start, int[] target,
+            byte[] resistance) {
+        this.name = name;
+        this.size = size;
+        this.start = start;
+        this.target = target;
+        this.resistance = resistance;
+    }
+
+    /**
+     * Builds the grid SimulationCore uses: every neuron connects to its north,
+     * east, south and west neighbours. With the same setup and RandomSource
+     * the synapses are the same as in a SimulationCore.
+     *
+     * @param N - int - num rows
+     * @param M - int - num cols
+     * @param setup - String - "Random" or "Structured"
+     * @param random - RandomSource - source of the directions and resistances
+     * @return the topology
+     */
+    public static Topology lattice(int N, int M, String setup,
+            RandomSource random) {
+        return grid("lattice", N, M, setup, random, LATTICE_SIDES, false);
+    }
+
+    /**
+     * Builds a lattice whose east border wraps around to the west border and
+     * south border to the north border.
+     *
+     * @param N - int - num rows
+     * @param M - int - num cols
+     * @param setup - String - "Random" or "Structured"
+     * @param random - RandomSource - source of the directions and resistances
+     * @return the topology
+     */
+    public static Topology torus(int N, int M, String setup,
+            RandomSource random) {
+        return grid("torus", N, M, setup, random, LATTICE_SIDES, true);
+    }
+
+    /**
+     * Builds a grid where every neuron connects to its 8 neighbours,
+     * including the diagonal ones.
+     *
+     * @param N - int - num rows
+     * @param M - int - num cols
+     * @param setup - String - "Random" or "Structured"
+     * @param random - RandomSource - source of the directions and resistances
+     * @param wrap - boolean - whether the borders wrap around like a torus
+     * @return the topology
+     */
+    public static Topology moore(int N, int M, String setup,
+            RandomSource random, boolean wrap) {
+        return grid(wrap ? "moore torus" : "moore", N, M, setup, random,
+                MOORE_SIDES, wrap);
+    }
+
+    /**
+     * Builds a grid from the pairs of neighbours on the given sides. Each
+     * neuron lists its synapses side by side, so no sorting is needed.
+     */
+    private static Topology grid(String name, int N, int M, String setup,
+            RandomSource random, int[][] sides, boolean wrap) {
+        boolean structured = setup.equals("Structured");
+        Builder builder = new Builder(N * M);
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < M; j++) {
+                int c = i * M + j;
+                for (int[] side : sides) {
+                    int[] pair = PAIRS[side[0]];
+                    boolean owner = side[1] == 1;
+                    //the pair is owned by the west or north neuron
+                    int oi = owner ? i : i - pair[0];
+                    int oj = owner ? j : j - pair[1];
+                    int ti = owner ? i + pair[0] : oi;
+                    int tj = owner ? j + pair[1] : oj;
+                    if (wrap) {
+                        oi = Math.floorMod(oi, N);
+                        oj = Math.floorMod(oj, M);
+                        ti = Math.floorMod(ti, N);
+                        tj = Math.floorMod(tj, M);
+                    } else if (oi < 0 || oi >= N || oj < 0 || oj >= M
+                            || ti < 0 || ti >= N || tj < 0 || tj >= M) {
+                        continue;
+                    }
+                    int o = oi * M + oj;
+                    int t = ti * M + tj;
+                    if (t == c) {
+                        continue; //wrapped onto itself
+                    }
+                    byte direction = structured ? SimulationCore.FORWARD
+                            : (int) (random.uniform(RandomSource.SETUP, o,
+                                    pair[2]) * pair[4]) == 0
+                                    ? SimulationCore.FORWARD
+                                    : SimulationCore.BACKWARD;
+                    if (direction != (owner ? SimulationCore.FORWARD
+                            : SimulationCore.BACKWARD)) {
+                        continue; //the synapse goes the other way
+                    }
+                    builder.add(c, t, structured ? pair[5]
+                            : (int) (random.uniform(RandomSource.SETUP, o,
+                                    pair[3])
+                                    * SimulationCore.NUM_THICKNESSES));
+                }
+            }
+        }
+        return builder.build(name + " " + N + "x" + M + " " + setup);
+    }
+
+    /**
+     * Builds a Watts-Strogatz small-world graph: the neurons sit on a ring
+     * and each sends synapses to its k nearest neighbours, alternately
+     * clockwise and counterclockwise, and each synapse is rewired to a random
+     * neuron with probability p.
+     *
+     * @param n - int - number of neurons
+     * @param k - int - synapses leaving each neuron
+     * @param p - double - probability of rewiring a synapse
+     * @param random - RandomSource - source of the graph and resistances
+     * @return the topology
+     */
+    public static Topology smallWorld(int n, int k, double p,
+            RandomSource random) {
+        if (k >= n) {
+            throw new IllegalArgumentException("k must be less than n");
+        }
+        Builder builder = new Builder(n);
+        for (int c = 0; c < n; c++) {
+            for (int s = 0; s < k; s++) {
+                int offset = s / 2 + 1;
+                int t = Math.floorMod(s % 2 == 0 ? c + offset : c - offset, n);
+                if (draw(random, c, 3 * s) < p) {
+                    //any neuron but c itself
+                    t = (c + 1 + (int) (draw(random, c, 3 * s + 1) * (n - 1)))
+                            % n;
+                }
+                builder.add(c, t, thickness(random, c, 3 * s + 2));
+            }
+        }
+        return builder.build("small world " + n + " k=" + k + " p=" + p);
+    }
+
+    /**
+     * Builds a Barabasi-Albert scale-free graph: it starts with m + 1 fully
+     * connected neurons, and every further neuron connects to m distinct
+     * earlier ones, chosen with a probability proportional to how many
+     * synapses they already have. Each connection is one synapse in a random
+     * direction, so the hubs end up with thousands of synapses in large
+     * graphs.
+     *
+     * @param n - int - number of neurons
+     * @param m - int - connections made by each new neuron
+     * @param random - RandomSource - source of the graph and resistances
+     * @return the topology
+     */
+    public static Topology scaleFree(int n, int m, RandomSource random) {
+        if (m < 1 || m >= n) {
+            throw new IllegalArgumentException("m must be in [1, n)");
+        }
+        Builder builder = new Builder(n);
+        //every end of every connection, so a uniform pick from it is a pick
+        //proportional to the number of connections
+        long connections = (long) m * (m + 1) / 2 + (long) (n - m - 1) * m;
+        if (2 * connections > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many synapses");
+        }
+        int[] ends = new int[(int) (2 * connections)];
+        int numEnds = 0;
+        int[] chosen = new int[n];
+        Arrays.fill(chosen, -1);
+        for (int c = 0; c < n; c++) {
+            int d = 0;
+            int links = Math.min(c, m);
+            for (int l = 0; l < links; l++) {
+                int t;
+                if (c <= m) {
+                    t = l; //the fully connected start
+                } else {
+                    do {
+                        t = ends[(int) (draw(random, c, d++) * numEnds)];
+                    } while (chosen[t] == c);
+                }
+                chosen[t] = c;
+                boolean outgoing = draw(random, c, d++) < 0.5;
+                int thickness = thickness(random, c, d++);
+                if (outgoing) {
+                    builder.add(c, t, thickness);
+                } else {
+                    builder.add(t, c, thickness);
+                }
+                ends[numEnds++] = c;
+                ends[numEnds++] = t;
+            }
+        }
+        return builder.build("scale free " + n + " m=" + m);
+    }
+
+    /**
+     * Gets the k-th topology draw of a neuron. The RandomSource tells 256
+     * draws of a neuron apart per generation, so each block of 256 draws uses
+     * the next generation below TOPOLOGY.
+     */
+    private static double draw(RandomSource random, int c, int k) {
+        return random.uniform(TOPOLOGY - (k >>> 8), c, k & 0xff);
+    }
+
+    private static int thickness(RandomSource random, int c, int k) {
+        return (int) (draw(random, c, k) * SimulationCore.NUM_THICKNESSES);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the number of neurons.
+     *
+     * @return the number of neurons
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the number of synapses.
+     *
+     * @return the number of synapses
+     */
+    public int getSynapses() {
+        return target.length;
+    }
+
+    /**
+     * Gets the first synapse leaving a neuron.
+     *
+     * @param c - int - index of the neuron
+     * @return the index of its first synapse
+     */
+    public int getStart(int c) {
+        return start[c];
+    }
+
+    /**
+     * Gets the number of synapses leaving a neuron.
+     *
+     * @param c - int - index of the neuron
+     * @return its out degree
+     */
+    public int getDegree(int c) {
+        return start[c + 1] - start[c];
+    }
+
+    /**
+     * Gets the postsynaptic neuron of a synapse.
+     *
+     * @param k - int - index of the synapse
+     * @return the index of the neuron it fires into
+     */
+    public int getTarget(int k) {
+        return target[k];
+    }
+
+    /**
+     * Collects synapses in any order and sorts them into a Topology. The
+     * synapses of a neuron keep the order they were added in.
+     */
+    public static class Builder {
+
+        private final int size;
+        private int[] source = new int[16];
+        private int[] target = new int[16];
+        private byte[] resistance = new byte[16];
+        private int count = 0;
+
+        /**
+         * Creates a builder for a number of neurons.
+         *
+         * @param size - int - number of neurons
+         */
+        public Builder(int size) {
+            this.size = size;
+        }
+
+        /**
+         * Adds a synapse.
+         *
+         * @param from - int - presynaptic neuron
+         * @param to - int - postsynaptic neuron
+         * @param thickness - int - resistance it starts with, 0 to
+         * MAX_RESISTANCE
+         * @return this builder
+         */
+        public Builder add(int from, int to, int thickness) {
+            if (from < 0 || from >= size || to < 0 || to >= size) {
+                throw new IndexOutOfBoundsException(from + " -> " + to);
+            }
+            if (count == source.length) {
+                int length = Math.max(16, (int) Math.min(Integer.MAX_VALUE - 8,
+                        2L * count));
+                source = Arrays.copyOf(source, length);
+                target = Arrays.copyOf(target, length);
+                resistance = Arrays.copyOf(resistance, length);
+            }
+            source[count] = from;
+            target[count] = to;
+            resistance[count] = (byte) Math.min(Math.max(thickness, 0),
+                    SimulationCore.MAX_RESISTANCE);
+            count++;
+            return this;
+        }
+
+        /**
+         * Sorts the synapses by presynaptic neuron with a counting sort.
+         *
+         * @param name - String - description of the topology
+         * @return the topology
+         */
+        public Topology build(String name) {
+            int[] start = new int[size + 1];
+            for (int k = 0; k < count; k++) {
+                start[source[k] + 1]++;
+            }
+            for (int c = 0; c < size; c++) {
+                start[c + 1] += start[c];
+            }
+            int[] next = Arrays.copyOf(start, size);
+            int[] sortedTarget = new int[count];
+            byte[] sortedResistance = new byte[count];
+            for (int k = 0; k < count; k++) {
+                int slot = next[source[k]]++;
+                sortedTarget[slot] = target[k];
+                sortedResistance[slot] = resistance[k];
+            }
+            return new Topology(name, size, start, sortedTarget,
+                    sortedResistance);
+        }
+    }
+
+}